@@ -0,0 +1,188 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.gatt;
+
+import java.util.Arrays;
+
+/**
+ * Helper class to parse the AD structures of LE advertising data.
+ * The parser is reused for every scan result; service UUIDs are stored as
+ * primitive (msb, lsb) pairs and service/manufacturer data is exposed as
+ * offsets into the advertising data array, so parsing does not allocate.
+ * @hide
+ */
+/*package*/ class AdvDataParser {
+    /** Lower 64 bits of the Bluetooth base UUID */
+    static final long BASE_UUID_LSB = 0x800000805F9B34FBL;
+    /** Upper 64 bits of the Bluetooth base UUID, without the 16/32-bit value */
+    static final long BASE_UUID_MSB = 0x0000000000001000L;
+
+    private static final int TYPE_UUID16_PARTIAL = 0x02;
+    private static final int TYPE_UUID16 = 0x03;
+    private static final int TYPE_UUID32_PARTIAL = 0x04;
+    private static final int TYPE_UUID32 = 0x05;
+    private static final int TYPE_UUID128_PARTIAL = 0x06;
+    private static final int TYPE_UUID128 = 0x07;
+    private static final int TYPE_SERVICE_DATA_UUID16 = 0x16;
+    private static final int TYPE_SERVICE_DATA_UUID32 = 0x20;
+    private static final int TYPE_SERVICE_DATA_UUID128 = 0x21;
+    private static final int TYPE_MANUFACTURER_DATA = 0xFF;
+
+    private long[] mUuidMsb = new long[16];
+    private long[] mUuidLsb = new long[16];
+    private int mUuidCount = 0;
+
+    private int[] mServiceDataOffset = new int[4];
+    private int[] mServiceDataLength = new int[4];
+    private int mServiceDataCount = 0;
+
+    private int mManufacturerDataOffset = -1;
+    private int mManufacturerDataLength = 0;
+
+    /**
+     * Parses the given advertising data, replacing any previous result.
+     * Malformed trailing structures are ignored.
+     */
+    void parse(byte[] advData) {
+        mUuidCount = 0;
+        mServiceDataCount = 0;
+        mManufacturerDataOffset = -1;
+        mManufacturerDataLength = 0;
+        if (advData == null) return;
+
+        int offset = 0;
+        while (offset < advData.length - 1) {
+            int len = advData[offset] & 0xFF;
+            if (len == 0) break;
+
+            int end = offset + 1 + len;
+            if (end > advData.length) break;
+
+            int type = advData[offset + 1] & 0xFF;
+            int data = offset + 2;
+
+            switch (type) {
+                case TYPE_UUID16_PARTIAL:
+                case TYPE_UUID16:
+                    for (; data + 2 <= end; data += 2) {
+                        addUuid(((long) readLe(advData, data, 2) << 32) | BASE_UUID_MSB,
+                                BASE_UUID_LSB);
+                    }
+                    break;
+
+                case TYPE_UUID32_PARTIAL:
+                case TYPE_UUID32:
+                    for (; data + 4 <= end; data += 4) {
+                        addUuid((readLe(advData, data, 4) << 32) | BASE_UUID_MSB,
+                                BASE_UUID_LSB);
+                    }
+                    break;
+
+                case TYPE_UUID128_PARTIAL:
+                case TYPE_UUID128:
+                    for (; data + 16 <= end; data += 16) {
+                        addUuid(readLe(advData, data + 8, 8), readLe(advData, data, 8));
+                    }
+                    break;
+
+                case TYPE_SERVICE_DATA_UUID16:
+                case TYPE_SERVICE_DATA_UUID32:
+                case TYPE_SERVICE_DATA_UUID128:
+                    addServiceData(data, end - data);
+                    break;
+
+                case TYPE_MANUFACTURER_DATA:
+                    mManufacturerDataOffset = data;
+                    mManufacturerDataLength = end - data;
+                    break;
+
+                default:
+                    break;
+            }
+
+            offset = end;
+        }
+    }
+
+    int getUuidCount() {
+        return mUuidCount;
+    }
+
+    long getUuidMsb(int index) {
+        return mUuidMsb[index];
+    }
+
+    long getUuidLsb(int index) {
+        return mUuidLsb[index];
+    }
+
+    /**
+     * Returns the number of service data structures. Each structure starts
+     * with the little endian service UUID, followed by the service data.
+     */
+    int getServiceDataCount() {
+        return mServiceDataCount;
+    }
+
+    int getServiceDataOffset(int index) {
+        return mServiceDataOffset[index];
+    }
+
+    int getServiceDataLength(int index) {
+        return mServiceDataLength[index];
+    }
+
+    /**
+     * Returns the offset of the manufacturer specific data (starting with
+     * the company identifier), or -1 if none was advertised.
+     */
+    int getManufacturerDataOffset() {
+        return mManufacturerDataOffset;
+    }
+
+    int getManufacturerDataLength() {
+        return mManufacturerDataLength;
+    }
+
+    private void addUuid(long msb, long lsb) {
+        if (mUuidCount == mUuidMsb.length) {
+            mUuidMsb = Arrays.copyOf(mUuidMsb, mUuidCount * 2);
+            mUuidLsb = Arrays.copyOf(mUuidLsb, mUuidCount * 2);
+        }
+        mUuidMsb[mUuidCount] = msb;
+        mUuidLsb[mUuidCount] = lsb;
+        ++mUuidCount;
+    }
+
+    private void addServiceData(int offset, int length) {
+        if (mServiceDataCount == mServiceDataOffset.length) {
+            mServiceDataOffset = Arrays.copyOf(mServiceDataOffset, mServiceDataCount * 2);
+            mServiceDataLength = Arrays.copyOf(mServiceDataLength, mServiceDataCount * 2);
+        }
+        mServiceDataOffset[mServiceDataCount] = offset;
+        mServiceDataLength[mServiceDataCount] = length;
+        ++mServiceDataCount;
+    }
+
+    private static long readLe(byte[] data, int offset, int length) {
+        long value = 0;
+        for (int i = length - 1; i >= 0; i--) {
+            value = (value << 8) | (data[offset + i] & 0xFF);
+        }
+        return value;
+    }
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.gatt;
+
+import android.util.Log;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Helper class caching characteristic and descriptor values read from
+ * remote devices. Values are shared between all clients connected to the
+ * same device and kept in LRU order.
+ * @hide
+ */
+/*package*/ class AttributeCache {
+    private static final String TAG = GattServiceConfig.TAG_PREFIX + "AttributeCache";
+
+    /** Maximum number of cached attribute values */
+    static final int MAX_ENTRIES = 256;
+
+    /**
+     * Identifies a characteristic, or a descriptor if descrUuid is set.
+     */
+    static class Key {
+        String address;
+        int srvcType;
+        int srvcInstId;
+        UUID srvcUuid;
+        int charInstId;
+        UUID charUuid;
+        int descrInstId;
+        UUID descrUuid;
+
+        Key(String address, int srvcType, int srvcInstId, UUID srvcUuid,
+            int charInstId, UUID charUuid, int descrInstId, UUID descrUuid) {
+            this.address = address;
+            this.srvcType = srvcType;
+            this.srvcInstId = srvcInstId;
+            this.srvcUuid = srvcUuid;
+            this.charInstId = charInstId;
+            this.charUuid = charUuid;
+            this.descrInstId = descrInstId;
+            this.descrUuid = descrUuid;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) return false;
+            Key other = (Key) o;
+            return srvcType == other.srvcType && srvcInstId == other.srvcInstId
+                    && charInstId == other.charInstId && descrInstId == other.descrInstId
+                    && address.equals(other.address) && srvcUuid.equals(other.srvcUuid)
+                    && charUuid.equals(other.charUuid)
+                    && (descrUuid == null ? other.descrUuid == null
+                                          : descrUuid.equals(other.descrUuid));
+        }
+
+        @Override
+        public int hashCode() {
+            int h = address.hashCode();
+            h = 31 * h + srvcType;
+            h = 31 * h + srvcInstId;
+            h = 31 * h + srvcUuid.hashCode();
+            h = 31 * h + charInstId;
+            h = 31 * h + charUuid.hashCode();
+            h = 31 * h + descrInstId;
+            return 31 * h + (descrUuid == null ? 0 : descrUuid.hashCode());
+        }
+    }
+
+    private final Map<Key, byte[]> mValues =
+            new LinkedHashMap<Key, byte[]>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Key, byte[]> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+
+    private int mHits = 0;
+    private int mMisses = 0;
+
+    static Key characteristic(String address, int srvcType, int srvcInstId, UUID srvcUuid,
+                              int charInstId, UUID charUuid) {
+        return new Key(address, srvcType, srvcInstId, srvcUuid, charInstId, charUuid, 0, null);
+    }
+
+    static Key descriptor(String address, int srvcType, int srvcInstId, UUID srvcUuid,
+                          int charInstId, UUID charUuid, int descrInstId, UUID descrUuid) {
+        return new Key(address, srvcType, srvcInstId, srvcUuid, charInstId, charUuid,
+                       descrInstId, descrUuid);
+    }
+
+    /**
+     * Returns the cached value, or null on a cache miss.
+     */
+    synchronized byte[] get(Key key) {
+        byte[] value = mValues.get(key);
+        if (value != null) {
+            ++mHits;
+        } else {
+            ++mMisses;
+        }
+        return value;
+    }
+
+    synchronized void put(Key key, byte[] value) {
+        if (key.address == null || value == null) return;
+        mValues.put(key, value);
+    }
+
+    synchronized void invalidate(Key key) {
+        mValues.remove(key);
+    }
+
+    /**
+     * Drops all values cached for a remote device.
+     */
+    synchronized void invalidateDevice(String address) {
+        if (address == null) return;
+        for (Iterator<Key> it = mValues.keySet().iterator(); it.hasNext();) {
+            if (address.equals(it.next().address)) it.remove();
+        }
+    }
+
+    synchronized void clear() {
+        mValues.clear();
+    }
+
+    /**
+     * Logs debug information.
+     */
+    synchronized void dump() {
+        int lookups = mHits + mMisses;
+        StringBuilder b = new StringBuilder();
+        b.append(  "-------------- GATT Attribute Cache ------------");
+        b.append("\nEntries: " + mValues.size());
+        b.append("\nHits: " + mHits + ", misses: " + mMisses);
+        b.append("\nHit rate: " + (lookups == 0 ? 0 : (mHits * 100 / lookups)) + "%");
+
+        for (Map.Entry<Key, byte[]> entry : mValues.entrySet()) {
+            Key key = entry.getKey();
+            b.append("\n" + key.address + ": " + key.charUuid);
+            if (key.descrUuid != null) b.append(" / " + key.descrUuid);
+            b.append(" (" + entry.getValue().length + " bytes)");
+        }
+
+        b.append("\n------------------------------------------------");
+        Log.d(TAG, b.toString());
+    }
+}
@@ -24,9 +24,12 @@ import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
  * Helper class that keeps track of registered GATT applications.
@@ -104,17 +107,40 @@ import java.util.UUID;
     }
 
     /** Our internal application list */
-    List<App> mApps = new ArrayList<App>();
+    List<App> mApps = new CopyOnWriteArrayList<App>();
 
-    /** Internal list of connected devices **/
-    Set<Connection> mConnections = new HashSet<Connection>();
+    /** Application index by application ID */
+    Map<Integer, App> mAppsById = new ConcurrentHashMap<Integer, App>();
+
+    /** Application index by application UUID */
+    Map<UUID, App> mAppsByUuid = new ConcurrentHashMap<UUID, App>();
+
+    /** Internal list of connected devices, indexed by connection ID **/
+    Map<Integer, Connection> mConnections = new ConcurrentHashMap<Integer, Connection>();
+
+    /** Connections of each application ID, indexed by device address */
+    Map<Integer, Map<String, Connection>> mConnectionsByApp =
+            new ConcurrentHashMap<Integer, Map<String, Connection>>();
 
     /**
      * Add an entry to the application context list.
      */
     void add(UUID uuid, T callback) {
         synchronized (mApps) {
-            mApps.add(new App(uuid, callback));
+            App app = new App(uuid, callback);
+            mApps.add(app);
+            if (!mAppsByUuid.containsKey(uuid)) mAppsByUuid.put(uuid, app);
+        }
+    }
+
+    /**
+     * Assigns the application ID once the application has been registered.
+     */
+    void setId(App app, int id) {
+        synchronized (mApps) {
+            if (mAppsById.get(app.id) == app) mAppsById.remove(app.id);
+            app.id = id;
+            if (!mAppsById.containsKey(id)) mAppsById.put(id, app);
         }
     }
 
@@ -123,18 +149,32 @@ import java.util.UUID;
      */
     void remove(int id) {
         synchronized (mApps) {
-            Iterator<App> i = mApps.iterator();
-            while(i.hasNext()) {
-                App entry = i.next();
-                if (entry.id == id) {
-                    entry.unlinkToDeath();
-                    i.remove();
-                    break;
-                }
+            App entry = mAppsById.get(id);
+            if (entry == null) return;
+
+            entry.unlinkToDeath();
+            mApps.remove(entry);
+            mAppsById.remove(id);
+            if (mAppsByUuid.get(entry.uuid) == entry) {
+                mAppsByUuid.remove(entry.uuid);
+                reindex(entry.uuid, id);
             }
         }
     }
 
+    /**
+     * Re-points the indexes at the next application sharing a UUID or ID
+     * with a removed application, if there is one.
+     */
+    private void reindex(UUID uuid, int id) {
+        for (App app : mApps) {
+            if (app.uuid.equals(uuid) && !mAppsByUuid.containsKey(uuid))
+                mAppsByUuid.put(uuid, app);
+            if (app.id == id && id != 0 && !mAppsById.containsKey(id))
+                mAppsById.put(id, app);
+        }
+    }
+
     /**
      * Add a new connection for a given application ID.
      */
@@ -142,7 +182,16 @@ import java.util.UUID;
         synchronized (mConnections) {
             App entry = getById(id);
             if (entry != null){
-                mConnections.add(new Connection(connId, address, id));
+                Connection connection = new Connection(connId, address, id);
+                Connection previous = mConnections.put(connId, connection);
+                if (previous != null) unindexConnection(previous);
+
+                Map<String, Connection> connections = mConnectionsByApp.get(id);
+                if (connections == null) {
+                    connections = new ConcurrentHashMap<String, Connection>();
+                    mConnectionsByApp.put(id, connections);
+                }
+                connections.put(address, connection);
             }
         }
     }
@@ -152,41 +201,37 @@ import java.util.UUID;
      */
     void removeConnection(int id, int connId) {
         synchronized (mConnections) {
-            Iterator<Connection> i = mConnections.iterator();
-            while(i.hasNext()) {
-                Connection connection = i.next();
-                if (connection.connId == connId) {
-                    i.remove();
-                    break;
-                }
-            }
+            Connection connection = mConnections.remove(connId);
+            if (connection != null) unindexConnection(connection);
+        }
+    }
+
+    private void unindexConnection(Connection connection) {
+        Map<String, Connection> connections = mConnectionsByApp.get(connection.appId);
+        if (connections == null) return;
+
+        if (connections.get(connection.address) == connection) {
+            connections.remove(connection.address);
         }
+        if (connections.isEmpty()) mConnectionsByApp.remove(connection.appId);
     }
 
     /**
      * Get an application context by ID.
      */
     App getById(int id) {
-        Iterator<App> i = mApps.iterator();
-        while(i.hasNext()) {
-            App entry = i.next();
-            if (entry.id == id) return entry;
-        }
-        Log.e(TAG, "Context not found for ID " + id);
-        return null;
+        App entry = mAppsById.get(id);
+        if (entry == null) Log.e(TAG, "Context not found for ID " + id);
+        return entry;
     }
 
     /**
      * Get an application context by UUID.
      */
     App getByUuid(UUID uuid) {
-        Iterator<App> i = mApps.iterator();
-        while(i.hasNext()) {
-            App entry = i.next();
-            if (entry.uuid.equals(uuid)) return entry;
-        }
-        Log.e(TAG, "Context not found for UUID " + uuid);
-        return null;
+        App entry = mAppsByUuid.get(uuid);
+        if (entry == null) Log.e(TAG, "Context not found for UUID " + uuid);
+        return entry;
     }
 
     /**
@@ -194,9 +239,7 @@ import java.util.UUID;
      */
     Set<String> getConnectedDevices() {
         Set<String> addresses = new HashSet<String>();
-        Iterator<Connection> i = mConnections.iterator();
-        while(i.hasNext()) {
-            Connection connection = i.next();
+        for (Connection connection : mConnections.values()) {
             addresses.add(connection.address);
         }
         return addresses;
@@ -206,14 +249,9 @@ import java.util.UUID;
      * Get an application context by a connection ID.
      */
     App getByConnId(int connId) {
-        Iterator<Connection> ii = mConnections.iterator();
-        while(ii.hasNext()) {
-            Connection connection = ii.next();
-            if (connection.connId == connId){
-                return getById(connection.appId);
-            }
-        }
-        return null;
+        Connection connection = mConnections.get(connId);
+        if (connection == null) return null;
+        return getById(connection.appId);
     }
 
     /**
@@ -223,35 +261,27 @@ import java.util.UUID;
         App entry = getById(id);
         if (entry == null) return null;
 
-        Iterator<Connection> i = mConnections.iterator();
-        while(i.hasNext()) {
-            Connection connection = i.next();
-            if (connection.address.equals(address) && connection.appId == id)
-                return connection.connId;
-        }
-        return null;
+        Map<String, Connection> connections = mConnectionsByApp.get(id);
+        if (connections == null) return null;
+
+        Connection connection = connections.get(address);
+        if (connection == null) return null;
+        return connection.connId;
     }
 
     /**
      * Returns the device address for a given connection ID.
      */
     String addressByConnId(int connId) {
-        Iterator<Connection> i = mConnections.iterator();
-        while(i.hasNext()) {
-            Connection connection = i.next();
-            if (connection.connId == connId) return connection.address;
-        }
-        return null;
+        Connection connection = mConnections.get(connId);
+        if (connection == null) return null;
+        return connection.address;
     }
 
     List<Connection> getConnectionByApp(int appId) {
         List<Connection> currentConnections = new ArrayList<Connection>();
-        Iterator<Connection> i = mConnections.iterator();
-        while(i.hasNext()) {
-            Connection connection = i.next();
-            if (connection.appId == appId)
-                currentConnections.add(connection);
-        }
+        Map<String, Connection> connections = mConnectionsByApp.get(appId);
+        if (connections != null) currentConnections.addAll(connections.values());
         return currentConnections;
     }
 
@@ -260,16 +290,17 @@ import java.util.UUID;
      */
     void clear() {
         synchronized (mApps) {
-            Iterator<App> i = mApps.iterator();
-            while(i.hasNext()) {
-                App entry = i.next();
+            for (App entry : mApps) {
                 entry.unlinkToDeath();
-                i.remove();
             }
+            mApps.clear();
+            mAppsById.clear();
+            mAppsByUuid.clear();
         }
 
         synchronized (mConnections) {
             mConnections.clear();
+            mConnectionsByApp.clear();
         }
     }
 
@@ -34,6 +34,8 @@ import java.util.UUID;
                                 "android.bluetooth.action.DEBUG_DUMP_SERVERMAP";
     private static final String ACTION_DEBUG_DUMP_HANDLEMAP =
                                 "android.bluetooth.action.DEBUG_DUMP_HANDLEMAP";
+    private static final String ACTION_DEBUG_DUMP_ATTRCACHE =
+                                "android.bluetooth.action.DEBUG_DUMP_ATTRCACHE";
 
     private static final String ACTION_GATT_PAIRING_CONFIG =
                                 "android.bluetooth.action.GATT_PAIRING_CONFIG";
@@ -93,6 +95,9 @@ import java.util.UUID;
         } else if (ACTION_DEBUG_DUMP_HANDLEMAP.equals(action)) {
             svc.mHandleMap.dump();
 
+        } else if (ACTION_DEBUG_DUMP_ATTRCACHE.equals(action)) {
+            svc.mAttributeCache.dump();
+
         /*
          * PTS test commands
          */
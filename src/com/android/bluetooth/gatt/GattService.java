@@ -24,13 +24,17 @@ import android.bluetooth.IBluetoothGatt;
 import android.bluetooth.IBluetoothGattCallback;
 import android.bluetooth.IBluetoothGattServerCallback;
 import android.content.Intent;
+import android.os.Handler;
 import android.os.IBinder;
 import android.os.IBinder.DeathRecipient;
+import android.os.Message;
 import android.os.ParcelUuid;
 import android.os.RemoteException;
 import android.util.Log;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -38,6 +42,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import com.android.bluetooth.btservice.ProfileService;
 import com.android.bluetooth.btservice.ProfileService.IProfileServiceBinder;
@@ -52,6 +57,28 @@ public class GattService extends ProfileService {
     private static final String TAG = GattServiceConfig.TAG_PREFIX + "GattService";
     BluetoothAdapter mAdapter = BluetoothAdapter.getDefaultAdapter();
 
+    private static final int MSG_FLUSH_SCAN_BATCH = 1;
+
+    /**
+     * Per device results of sendNotification() to multiple devices.
+     * NOTIFY_SUCCESS only means the notification was dispatched to the stack,
+     * not that the device received it.
+     */
+    static final int NOTIFY_SUCCESS = 0;
+    static final int NOTIFY_NOT_CONNECTED = 1;
+    static final int NOTIFY_NO_ATTRIBUTE = 2;
+
+    private final Handler mHandler = new Handler() {
+        @Override
+        public void handleMessage(Message msg) {
+            switch (msg.what) {
+                case MSG_FLUSH_SCAN_BATCH:
+                    flushScanBatch((ScanClient) msg.obj);
+                    break;
+            }
+        }
+    };
+
     /**
      * Search queue to serialize remote onbject inspection.
      */
@@ -112,8 +139,15 @@ public class GattService extends ProfileService {
 
     /**
      * List of clients intereste in scan results.
+     * Copy on write, as it is iterated on the callback thread while binder
+     * threads and the batch flush handler add and remove clients.
+     */
+    private List<ScanClient> mScanQueue = new CopyOnWriteArrayList<ScanClient>();
+
+    /**
+     * Advertising data parser, reused for every scan result.
      */
-    private List<ScanClient> mScanQueue = new ArrayList<ScanClient>();
+    private AdvDataParser mAdvDataParser = new AdvDataParser();
 
     private ScanClient getScanClient(int appIf, boolean isServer) {
         for(ScanClient client : mScanQueue) {
@@ -127,6 +161,7 @@ public class GattService extends ProfileService {
     private void removeScanClient(int appIf, boolean isServer) {
         for(ScanClient client : mScanQueue) {
             if (client.appIf == appIf && client.isServer == isServer) {
+                mHandler.removeMessages(MSG_FLUSH_SCAN_BATCH, client);
                 mScanQueue.remove(client);
                 break;
             }
@@ -138,6 +173,14 @@ public class GattService extends ProfileService {
      */
     private Set<String> mReliableQueue = new HashSet<String>();
 
+    /**
+     * Cached attribute values, and the clients reading through the cache.
+     * Reads requesting authentication always go to the remote device.
+     */
+    AttributeCache mAttributeCache = new AttributeCache();
+    private Set<Integer> mCachedReadClients =
+            Collections.synchronizedSet(new HashSet<Integer>());
+
     static {
         classInitNative();
     }
@@ -158,6 +201,7 @@ public class GattService extends ProfileService {
 
     protected boolean stop() {
         if (DBG) Log.d(TAG, "stop()");
+        mHandler.removeCallbacksAndMessages(null);
         mClientMap.clear();
         mServerMap.clear();
         mSearchQueue.clear();
@@ -165,6 +209,8 @@ public class GattService extends ProfileService {
         mHandleMap.clear();
         mServiceDeclarations.clear();
         mReliableQueue.clear();
+        mAttributeCache.clear();
+        mCachedReadClients.clear();
         return true;
     }
 
@@ -269,6 +315,17 @@ public class GattService extends ProfileService {
             service.startScanWithUuids(appIf, isServer, uuids);
         }
 
+        public void startScanWithUuidsBatched(int appIf, boolean isServer, ParcelUuid[] ids,
+                                              int batchPeriodMs, int maxBatchSize) {
+            GattService service = getService();
+            if (service == null) return;
+            UUID[] uuids = new UUID[ids.length];
+            for(int i = 0; i != ids.length; ++i) {
+                uuids[i] = ids[i].getUuid();
+            }
+            service.startScanWithUuids(appIf, isServer, uuids, batchPeriodMs, maxBatchSize);
+        }
+
         public void stopScan(int appIf, boolean isServer) {
             GattService service = getService();
             if (service == null) return;
@@ -305,6 +362,29 @@ public class GattService extends ProfileService {
             service.discoverServices(clientIf, address);
         }
 
+        public void setAttributeCacheEnabled(int clientIf, boolean enable) {
+            GattService service = getService();
+            if (service == null) return;
+            service.setAttributeCacheEnabled(clientIf, enable);
+        }
+
+        /*
+         * Needs these declarations in frameworks/base:
+         *   IBluetoothGatt:
+         *     void discoverServicesStreaming(in int clientIf, in String address);
+         *   IBluetoothGattCallback:
+         *     void onServiceExplored(in String address, in int srvcType,
+         *                            in int srvcInstId, in ParcelUuid srvcUuid);
+         * onServiceExplored() is called once per service, after its
+         * characteristics and descriptors have been reported.
+         * onSearchComplete() is still called once, when the whole search is done.
+         */
+        public void discoverServicesStreaming(int clientIf, String address) {
+            GattService service = getService();
+            if (service == null) return;
+            service.discoverServices(clientIf, address, true);
+        }
+
         public void readCharacteristic(int clientIf, String address, int srvcType,
                                        int srvcInstanceId, ParcelUuid srvcId,
                                        int charInstanceId, ParcelUuid charId,
@@ -478,6 +558,25 @@ public class GattService extends ProfileService {
                 srvcId.getUuid(), charInstanceId, charId.getUuid(), confirm, value);
         }
 
+        /*
+         * Needs this declaration in IBluetoothGatt in frameworks/base:
+         *   int[] sendNotificationToDevices(in int serverIf, in String[] addresses,
+         *       in int srvcType, in int srvcInstanceId, in ParcelUuid srvcId,
+         *       in int charInstanceId, in ParcelUuid charId, in boolean confirm,
+         *       in byte[] value, out List<String> targets);
+         * targets receives the address of each result, in the same order.
+         */
+        public int[] sendNotificationToDevices(int serverIf, String[] addresses,
+                                              int srvcType, int srvcInstanceId,
+                                              ParcelUuid srvcId, int charInstanceId,
+                                              ParcelUuid charId, boolean confirm,
+                                              byte[] value, List<String> targets) {
+            GattService service = getService();
+            if (service == null) return null;
+            return service.sendNotification(serverIf, addresses, srvcType, srvcInstanceId,
+                srvcId.getUuid(), charInstanceId, charId.getUuid(), confirm, value, targets);
+        }
+
         public void setAdvData(int serverIf, boolean setScanRsp, boolean inclName,
                                 boolean inclTxPower, int minInterval, int maxInterval,
                                 int appearance, byte[] manufacturerData) {
@@ -496,46 +595,67 @@ public class GattService extends ProfileService {
         if (DBG) Log.d(TAG, "onScanResult() - address=" + address
                     + ", rssi=" + rssi);
 
-        List<UUID> remoteUuids = parseUuids(adv_data);
+        mAdvDataParser.parse(adv_data);
         for (ScanClient client : mScanQueue) {
-            if (client.uuids.length > 0) {
-                int matches = 0;
-                for (UUID search : client.uuids) {
-                    for (UUID remote: remoteUuids) {
-                        if (remote.equals(search)) {
-                            ++matches;
-                            break; // Only count 1st match in case of duplicates
-                        }
-                    }
-                }
+            if (!client.matches(mAdvDataParser)) continue;
 
-                if (matches < client.uuids.length) continue;
+            if (client.batch == null) {
+                sendScanResult(client, address, rssi, adv_data);
+                continue;
             }
 
-            if (!client.isServer) {
-                ClientMap.App app = mClientMap.getById(client.appIf);
-                if (app != null) {
-                    try {
-                        app.callback.onScanResult(address, rssi, adv_data);
-                    } catch (RemoteException e) {
-                        Log.e(TAG, "Exception: " + e);
-                        mClientMap.remove(client.appIf);
-                        mScanQueue.remove(client);
-                    }
+            int pending = client.batch.add(address, rssi, adv_data);
+            if (pending >= client.batch.maxSize) {
+                mHandler.removeMessages(MSG_FLUSH_SCAN_BATCH, client);
+                mHandler.sendMessage(mHandler.obtainMessage(MSG_FLUSH_SCAN_BATCH, client));
+            } else if (pending == 1) {
+                mHandler.sendMessageDelayed(mHandler.obtainMessage(MSG_FLUSH_SCAN_BATCH, client),
+                                            client.batch.periodMs);
+            }
+        }
+    }
+
+    private void flushScanBatch(ScanClient client) {
+        if (!mScanQueue.contains(client)) return;
+
+        List<ScanBatch.Result> results = client.batch.drain();
+        if (DBG) Log.d(TAG, "flushScanBatch() - client=" + client.appIf
+                    + ", results=" + results.size()
+                    + ", duplicates=" + client.batch.getDuplicateCount());
+
+        for (ScanBatch.Result result : results) {
+            if (!sendScanResult(client, result.address, result.rssi, result.advData)) break;
+        }
+    }
+
+    private boolean sendScanResult(ScanClient client, String address, int rssi,
+                                   byte[] adv_data) {
+        if (!client.isServer) {
+            ClientMap.App app = mClientMap.getById(client.appIf);
+            if (app != null) {
+                try {
+                    app.callback.onScanResult(address, rssi, adv_data);
+                } catch (RemoteException e) {
+                    Log.e(TAG, "Exception: " + e);
+                    mClientMap.remove(client.appIf);
+                    mScanQueue.remove(client);
+                    return false;
                 }
-            } else {
-                ServerMap.App app = mServerMap.getById(client.appIf);
-                if (app != null) {
-                    try {
-                        app.callback.onScanResult(address, rssi, adv_data);
-                    } catch (RemoteException e) {
-                        Log.e(TAG, "Exception: " + e);
-                        mServerMap.remove(client.appIf);
-                        mScanQueue.remove(client);
-                    }
+            }
+        } else {
+            ServerMap.App app = mServerMap.getById(client.appIf);
+            if (app != null) {
+                try {
+                    app.callback.onScanResult(address, rssi, adv_data);
+                } catch (RemoteException e) {
+                    Log.e(TAG, "Exception: " + e);
+                    mServerMap.remove(client.appIf);
+                    mScanQueue.remove(client);
+                    return false;
                 }
             }
         }
+        return true;
     }
 
     void onClientRegistered(int status, int clientIf, long uuidLsb, long uuidMsb)
@@ -544,7 +664,7 @@ public class GattService extends ProfileService {
         if (DBG) Log.d(TAG, "onClientRegistered() - UUID=" + uuid + ", clientIf=" + clientIf);
         ClientMap.App app = mClientMap.getByUuid(uuid);
         if (app != null) {
-            app.id = clientIf;
+            mClientMap.setId(app, clientIf);
             app.linkToDeath(new ClientDeathRecipient(clientIf));
             app.callback.onClientRegistered(status, clientIf);
         }
@@ -569,6 +689,7 @@ public class GattService extends ProfileService {
 
         mClientMap.removeConnection(clientIf, connId);
         mSearchQueue.removeConnId(connId);
+        mAttributeCache.invalidateDevice(address);
         ClientMap.App app = mClientMap.getById(clientIf);
         if (app != null) {
             app.callback.onClientConnectionState(status, clientIf, false, address);
@@ -719,6 +840,9 @@ public class GattService extends ProfileService {
         if (DBG) Log.d(TAG, "onNotify() - address=" + address
             + ", charUuid=" + charUuid + ", length=" + data.length);
 
+        mAttributeCache.put(AttributeCache.characteristic(address, srvcType,
+            srvcInstId, srvcUuid, charInstId, charUuid), data);
+
         ClientMap.App app = mClientMap.getByConnId(connId);
         if (app != null) {
             app.callback.onNotify(address, srvcType,
@@ -740,6 +864,11 @@ public class GattService extends ProfileService {
         if (DBG) Log.d(TAG, "onReadCharacteristic() - address=" + address
             + ", status=" + status + ", length=" + data.length);
 
+        if (status == 0) {
+            mAttributeCache.put(AttributeCache.characteristic(address, srvcType,
+                srvcInstId, srvcUuid, charInstId, charUuid), data);
+        }
+
         ClientMap.App app = mClientMap.getByConnId(connId);
         if (app != null) {
             app.callback.onCharacteristicRead(address, status, srvcType,
@@ -793,6 +922,11 @@ public class GattService extends ProfileService {
         if (DBG) Log.d(TAG, "onReadDescriptor() - address=" + address
             + ", status=" + status + ", length=" + data.length);
 
+        if (status == 0) {
+            mAttributeCache.put(AttributeCache.descriptor(address, srvcType,
+                srvcInstId, srvcUuid, charInstId, charUuid, descrInstId, descrUuid), data);
+        }
+
         ClientMap.App app = mClientMap.getByConnId(connId);
         if (app != null) {
             app.callback.onDescriptorRead(address, status, srvcType,
@@ -908,13 +1042,26 @@ public class GattService extends ProfileService {
     }
 
     void startScanWithUuids(int appIf, boolean isServer, UUID[] uuids) {
+        startScanWithUuids(appIf, isServer, uuids, 0, 0);
+    }
+
+    /**
+     * Starts a scan filtered on the given service UUIDs. If batchPeriodMs
+     * is non-zero, repeated advertisements from the same device are
+     * suppressed and results are delivered every batchPeriodMs, or as soon
+     * as maxBatchSize results are pending.
+     */
+    void startScanWithUuids(int appIf, boolean isServer, UUID[] uuids,
+                            int batchPeriodMs, int maxBatchSize) {
         enforceCallingOrSelfPermission(BLUETOOTH_ADMIN_PERM, "Need BLUETOOTH_ADMIN permission");
 
-        if (DBG) Log.d(TAG, "startScanWithUuids() - queue=" + mScanQueue.size());
+        if (DBG) Log.d(TAG, "startScanWithUuids() - queue=" + mScanQueue.size()
+                    + ", batchPeriodMs=" + batchPeriodMs);
 
         if (getScanClient(appIf, isServer) == null) {
             if (DBG) Log.d(TAG, "startScanWithUuids() - adding client=" + appIf);
-            mScanQueue.add(new ScanClient(appIf, isServer, uuids));
+            mScanQueue.add(new ScanClient(appIf, isServer, uuids,
+                                          batchPeriodMs, maxBatchSize));
         }
 
         gattClientScanNative(appIf, true);
@@ -949,6 +1096,7 @@ public class GattService extends ProfileService {
         enforceCallingOrSelfPermission(BLUETOOTH_PERM, "Need BLUETOOTH permission");
 
         if (DBG) Log.d(TAG, "unregisterClient() - clientIf=" + clientIf);
+        mCachedReadClients.remove(clientIf);
         mClientMap.remove(clientIf);
         gattClientUnregisterAppNative(clientIf);
     }
@@ -984,23 +1132,54 @@ public class GattService extends ProfileService {
         return connectedDeviceList;
     }
 
+    /**
+     * Lets a client's characteristic and descriptor reads be answered from
+     * values recently read or notified on the same device. Reads with an
+     * authentication requirement are not answered from the cache.
+     */
+    void setAttributeCacheEnabled(int clientIf, boolean enable) {
+        enforceCallingOrSelfPermission(BLUETOOTH_PERM, "Need BLUETOOTH permission");
+
+        if (DBG) Log.d(TAG, "setAttributeCacheEnabled() - clientIf=" + clientIf
+                    + ", enable=" + enable);
+        if (enable) {
+            mCachedReadClients.add(clientIf);
+        } else {
+            mCachedReadClients.remove(clientIf);
+        }
+    }
+
     void refreshDevice(int clientIf, String address) {
         enforceCallingOrSelfPermission(BLUETOOTH_PERM, "Need BLUETOOTH permission");
 
         if (DBG) Log.d(TAG, "refreshDevice() - address=" + address);
+        mAttributeCache.invalidateDevice(address);
         gattClientRefreshNative(clientIf, address);
     }
 
     void discoverServices(int clientIf, String address) {
+        discoverServices(clientIf, address, false);
+    }
+
+    /**
+     * Discovers the services of a remote device. Streaming searches
+     * receive onServiceExplored() for each service, as soon as all of its
+     * characteristics and descriptors have been reported, and
+     * onSearchComplete() once the whole search is done.
+     */
+    void discoverServices(int clientIf, String address, boolean streaming) {
         enforceCallingOrSelfPermission(BLUETOOTH_PERM, "Need BLUETOOTH permission");
 
         Integer connId = mClientMap.connIdByAddress(clientIf, address);
-        if (DBG) Log.d(TAG, "discoverServices() - address=" + address + ", connId=" + connId);
+        if (DBG) Log.d(TAG, "discoverServices() - address=" + address + ", connId=" + connId
+                    + ", streaming=" + streaming);
 
-        if (connId != null)
+        if (connId != null) {
+            mSearchQueue.start(connId, streaming);
             gattClientSearchServiceNative(connId, true, 0, 0);
-        else
+        } else {
             Log.e(TAG, "discoverServices() - No connection for " + address + "...");
+        }
     }
 
     void readCharacteristic(int clientIf, String address, int srvcType,
@@ -1010,6 +1189,25 @@ public class GattService extends ProfileService {
 
         if (DBG) Log.d(TAG, "readCharacteristic() - address=" + address);
 
+        if (authReq == 0 && mCachedReadClients.contains(clientIf)
+                && mClientMap.connIdByAddress(clientIf, address) != null) {
+            byte[] value = mAttributeCache.get(AttributeCache.characteristic(address,
+                srvcType, srvcInstanceId, srvcUuid, charInstanceId, charUuid));
+            if (value != null) {
+                ClientMap.App app = mClientMap.getById(clientIf);
+                if (app != null) {
+                    try {
+                        app.callback.onCharacteristicRead(address, 0, srvcType,
+                            srvcInstanceId, new ParcelUuid(srvcUuid),
+                            charInstanceId, new ParcelUuid(charUuid), value);
+                        return;
+                    } catch (RemoteException e) {
+                        Log.e(TAG, "Exception: " + e);
+                    }
+                }
+            }
+        }
+
         Integer connId = mClientMap.connIdByAddress(clientIf, address);
         if (connId != null)
             gattClientReadCharacteristicNative(connId, srvcType,
@@ -1029,6 +1227,9 @@ public class GattService extends ProfileService {
 
         if (DBG) Log.d(TAG, "writeCharacteristic() - address=" + address);
 
+        mAttributeCache.invalidate(AttributeCache.characteristic(address, srvcType,
+            srvcInstanceId, srvcUuid, charInstanceId, charUuid));
+
         if (mReliableQueue.contains(address)) writeType = 3; // Prepared write
 
         Integer connId = mClientMap.connIdByAddress(clientIf, address);
@@ -1051,6 +1252,27 @@ public class GattService extends ProfileService {
 
         if (DBG) Log.d(TAG, "readDescriptor() - address=" + address);
 
+        if (authReq == 0 && mCachedReadClients.contains(clientIf)
+                && mClientMap.connIdByAddress(clientIf, address) != null) {
+            byte[] value = mAttributeCache.get(AttributeCache.descriptor(address,
+                srvcType, srvcInstanceId, srvcUuid, charInstanceId, charUuid,
+                descrInstanceId, descrUuid));
+            if (value != null) {
+                ClientMap.App app = mClientMap.getById(clientIf);
+                if (app != null) {
+                    try {
+                        app.callback.onDescriptorRead(address, 0, srvcType,
+                            srvcInstanceId, new ParcelUuid(srvcUuid),
+                            charInstanceId, new ParcelUuid(charUuid),
+                            descrInstanceId, new ParcelUuid(descrUuid), value);
+                        return;
+                    } catch (RemoteException e) {
+                        Log.e(TAG, "Exception: " + e);
+                    }
+                }
+            }
+        }
+
         Integer connId = mClientMap.connIdByAddress(clientIf, address);
         if (connId != null)
             gattClientReadDescriptorNative(connId, srvcType,
@@ -1074,6 +1296,9 @@ public class GattService extends ProfileService {
 
         if (DBG) Log.d(TAG, "writeDescriptor() - address=" + address);
 
+        mAttributeCache.invalidate(AttributeCache.descriptor(address, srvcType,
+            srvcInstanceId, srvcUuid, charInstanceId, charUuid, descrInstanceId, descrUuid));
+
         Integer connId = mClientMap.connIdByAddress(clientIf, address);
         if (connId != null)
             gattClientWriteDescriptorNative(connId, srvcType,
@@ -1153,7 +1378,7 @@ public class GattService extends ProfileService {
         if (DBG) Log.d(TAG, "onServerRegistered() - UUID=" + uuid + ", serverIf=" + serverIf);
         ServerMap.App app = mServerMap.getByUuid(uuid);
         if (app != null) {
-            app.id = serverIf;
+            mServerMap.setId(app, serverIf);
             app.linkToDeath(new ServerDeathRecipient(serverIf));
             app.callback.onServerRegistered(status, serverIf);
         }
@@ -1500,6 +1725,68 @@ public class GattService extends ProfileService {
         }
     }
 
+    /**
+     * Sends one notification or indication to several connected devices.
+     * The attribute handle is resolved once for all devices. A null address
+     * list targets every device connected to the server.
+     * Returns, per device, NOTIFY_SUCCESS or the reason it was not sent.
+     * The address of each result is added to targets, if not null, in the
+     * order of the results; for a null address list these are the connected
+     * devices, resolved before sending.
+     */
+    int[] sendNotification(int serverIf, String[] addresses, int srvcType,
+                           int srvcInstanceId, UUID srvcUuid,
+                           int charInstanceId, UUID charUuid,
+                           boolean confirm, byte[] value, List<String> targets) {
+        enforceCallingOrSelfPermission(BLUETOOTH_PERM, "Need BLUETOOTH permission");
+
+        int[] connIds;
+        if (addresses == null) {
+            List<ServerMap.Connection> connections = mServerMap.getConnectionByApp(serverIf);
+            addresses = new String[connections.size()];
+            connIds = new int[connections.size()];
+            for (int i = 0; i < connIds.length; i++) {
+                addresses[i] = connections.get(i).address;
+                connIds[i] = connections.get(i).connId;
+            }
+        } else {
+            connIds = new int[addresses.length];
+            for (int i = 0; i < connIds.length; i++) {
+                Integer connId = mServerMap.connIdByAddress(serverIf, addresses[i]);
+                connIds[i] = connId != null ? connId : 0;
+            }
+        }
+        if (targets != null) {
+            targets.clear();
+            targets.addAll(Arrays.asList(addresses));
+        }
+
+        if (DBG) Log.d(TAG, "sendNotification() - devices=" + connIds.length);
+
+        int[] results = new int[connIds.length];
+
+        int charHandle = 0;
+        int srvcHandle = mHandleMap.getServiceHandle(srvcUuid, srvcType, srvcInstanceId);
+        if (srvcHandle != 0) {
+            charHandle = mHandleMap.getCharacteristicHandle(srvcHandle, charUuid, charInstanceId);
+        }
+        if (charHandle == 0) {
+            Arrays.fill(results, NOTIFY_NO_ATTRIBUTE);
+            return results;
+        }
+
+        for (int i = 0; i < connIds.length; i++) {
+            if (connIds[i] == 0) {
+                results[i] = NOTIFY_NOT_CONNECTED;
+            } else if (confirm) {
+                gattServerSendIndicationNative(serverIf, charHandle, connIds[i], value);
+            } else {
+                gattServerSendNotificationNative(serverIf, charHandle, connIds[i], value);
+            }
+        }
+        return results;
+    }
+
     /**************************************************************************
      * Private functions
      *************************************************************************/
@@ -1512,9 +1799,13 @@ public class GattService extends ProfileService {
     }
 
     private void continueSearch(int connId, int status) throws RemoteException {
-        if (status == 0 && !mSearchQueue.isEmpty()) {
-            SearchQueue.Entry svc = mSearchQueue.pop();
+        SearchQueue.Entry svc = null;
+        if (status == 0) {
+            // Streaming searches report every completed service
+            svc = mSearchQueue.next(connId, mServiceExploredListener);
+        }
 
+        if (svc != null) {
             if (svc.charUuidLsb == 0) {
                 // Characteristic is up next
                 gattClientGetCharacteristicNative(svc.connId, svc.srvcType,
@@ -1526,11 +1817,33 @@ public class GattService extends ProfileService {
                     svc.charInstId, svc.charUuidLsb, svc.charUuidMsb, 0, 0, 0);
             }
         } else {
-            ClientMap.App app = mClientMap.getByConnId(connId);
-            if (app != null) {
-                app.callback.onSearchComplete(mClientMap.addressByConnId(connId), status);
+            mSearchQueue.removeConnId(connId);
+            notifySearchComplete(connId, status);
+        }
+    }
+
+    private final SearchQueue.ServiceListener mServiceExploredListener =
+            new SearchQueue.ServiceListener() {
+        @Override
+        public void onServiceExplored(SearchQueue.Entry service) {
+            if (DBG) Log.d(TAG, "onServiceExplored() - connId=" + service.connId);
+            ClientMap.App app = mClientMap.getByConnId(service.connId);
+            if (app == null) return;
+            try {
+                app.callback.onServiceExplored(mClientMap.addressByConnId(service.connId),
+                    service.srvcType, service.srvcInstId,
+                    new ParcelUuid(new UUID(service.srvcUuidMsb, service.srvcUuidLsb)));
+            } catch (RemoteException e) {
+                Log.e(TAG, "Exception: " + e);
             }
         }
+    };
+
+    private void notifySearchComplete(int connId, int status) throws RemoteException {
+        ClientMap.App app = mClientMap.getByConnId(connId);
+        if (app != null) {
+            app.callback.onSearchComplete(mClientMap.addressByConnId(connId), status);
+        }
     }
 
     private void continueServiceDeclaration(int serverIf, int status, int srvcHandle) throws RemoteException {
@@ -1612,12 +1925,9 @@ public class GattService extends ProfileService {
             + ", status=" + status);
 
         if (status == 0) {
-            List<HandleMap.Entry> entries = mHandleMap.getEntries();
+            List<HandleMap.Entry> entries = mHandleMap.getServiceEntries(serverIf);
             for(HandleMap.Entry entry : entries) {
-                if (entry.type != HandleMap.TYPE_SERVICE ||
-                    entry.serverIf != serverIf ||
-                    entry.started == false)
-                        continue;
+                if (entry.started == false) continue;
 
                 gattServerStopServiceNative(serverIf, entry.handle);
                 return;
@@ -1633,11 +1943,8 @@ public class GattService extends ProfileService {
          * The handles are copied into a new list to avoid race conditions.
          */
         List<Integer> handleList = new ArrayList<Integer>();
-        List<HandleMap.Entry> entries = mHandleMap.getEntries();
+        List<HandleMap.Entry> entries = mHandleMap.getServiceEntries(serverIf);
         for(HandleMap.Entry entry : entries) {
-            if (entry.type != HandleMap.TYPE_SERVICE ||
-                entry.serverIf != serverIf)
-                    continue;
             handleList.add(entry.handle);
         }
 
@@ -1647,36 +1954,6 @@ public class GattService extends ProfileService {
         }
     }
 
-    private List<UUID> parseUuids(byte[] adv_data) {
-        List<UUID> uuids = new ArrayList<UUID>();
-
-        int offset = 0;
-        while(offset < (adv_data.length-2)) {
-            int len = adv_data[offset++];
-            if (len == 0) break;
-
-            int type = adv_data[offset++];
-            switch (type) {
-                case 0x02: // Partial list of 16-bit UUIDs
-                case 0x03: // Complete list of 16-bit UUIDs
-                    while (len > 1) {
-                        int uuid16 = adv_data[offset++];
-                        uuid16 += (adv_data[offset++] << 8);
-                        len -= 2;
-                        uuids.add(UUID.fromString(String.format(
-                            "%08x-0000-1000-8000-00805f9b34fb", uuid16)));
-                    }
-                    break;
-
-                default:
-                    offset += (len - 1);
-                    break;
-            }
-        }
-
-        return uuids;
-    }
-
     /**************************************************************************
      * GATT Test functions
      *************************************************************************/
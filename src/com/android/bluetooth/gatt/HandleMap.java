@@ -16,7 +16,10 @@
 package com.android.bluetooth.gatt;
 
 import android.util.Log;
+import android.util.SparseArray;
+import android.util.SparseIntArray;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
@@ -32,6 +35,10 @@ class HandleMap {
     public static final int TYPE_CHARACTERISTIC = 2;
     public static final int TYPE_DESCRIPTOR = 3;
 
+    /** ATT handles are 16-bit values */
+    private static final int MAX_HANDLES = 0x10000;
+    private static final int INITIAL_TABLE_SIZE = 64;
+
     class Entry {
         int serverIf = 0;
         int type = TYPE_UNDEFINED;
@@ -72,94 +79,185 @@ class HandleMap {
         }
     }
 
-    List<Entry> mEntries = null;
-    Map<Integer, Integer> mRequestMap = null;
+    /**
+     * Composite lookup key for the service and characteristic indexes.
+     * Services are keyed by (uuid, service type, instance), characteristics
+     * by (uuid, service handle, instance).
+     */
+    private static class AttributeKey {
+        final long uuidMsb;
+        final long uuidLsb;
+        final int scope;
+        final int instance;
+
+        AttributeKey(UUID uuid, int scope, int instance) {
+            this.uuidMsb = uuid.getMostSignificantBits();
+            this.uuidLsb = uuid.getLeastSignificantBits();
+            this.scope = scope;
+            this.instance = instance;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof AttributeKey)) return false;
+            AttributeKey other = (AttributeKey) o;
+            return uuidMsb == other.uuidMsb && uuidLsb == other.uuidLsb
+                    && scope == other.scope && instance == other.instance;
+        }
+
+        @Override
+        public int hashCode() {
+            long hilo = uuidMsb ^ uuidLsb;
+            int h = ((int) (hilo >> 32)) ^ (int) hilo;
+            h = 31 * h + scope;
+            return 31 * h + instance;
+        }
+    }
+
+    /** Attribute entries, indexed directly by attribute handle */
+    Entry[] mHandleTable = new Entry[INITIAL_TABLE_SIZE];
+    int mEntryCount = 0;
+
+    /**
+     * Services by (uuid, type, instance), in the order they were added.
+     * Several servers may register services with the same key.
+     */
+    Map<AttributeKey, List<Entry>> mServiceIndex = new HashMap<AttributeKey, List<Entry>>();
+
+    /** Characteristics by (uuid, service handle, instance), in the order they were added */
+    Map<AttributeKey, List<Entry>> mCharIndex = new HashMap<AttributeKey, List<Entry>>();
+
+    /** Service entries owned by each server interface */
+    SparseArray<List<Entry>> mServerServices = new SparseArray<List<Entry>>();
+
+    /** Characteristic and descriptor entries of each service handle */
+    SparseArray<List<Entry>> mServiceAttributes = new SparseArray<List<Entry>>();
+
+    /** Attribute handle by request (transaction) ID */
+    SparseIntArray mRequestMap = new SparseIntArray();
+
     int mLastCharacteristic = 0;
 
     HandleMap() {
-        mEntries = new ArrayList<Entry>();
-        mRequestMap = new HashMap<Integer, Integer>();
     }
 
     void clear() {
-        mEntries.clear();
+        Arrays.fill(mHandleTable, null);
+        mEntryCount = 0;
+        mServiceIndex.clear();
+        mCharIndex.clear();
+        mServerServices.clear();
+        mServiceAttributes.clear();
         mRequestMap.clear();
     }
 
     void addService(int serverIf, int handle, UUID uuid, int serviceType, int instance) {
-        mEntries.add(new Entry(serverIf, handle, uuid, serviceType, instance));
+        Entry entry = new Entry(serverIf, handle, uuid, serviceType, instance);
+        if (!putEntry(entry)) return;
+
+        addToIndex(mServiceIndex, new AttributeKey(uuid, serviceType, instance), entry);
+
+        List<Entry> services = mServerServices.get(serverIf);
+        if (services == null) {
+            services = new ArrayList<Entry>();
+            mServerServices.put(serverIf, services);
+        }
+        services.add(entry);
     }
 
     void addCharacteristic(int serverIf, int handle, UUID uuid, int serviceHandle) {
         mLastCharacteristic = handle;
-        mEntries.add(new Entry(serverIf, TYPE_CHARACTERISTIC, handle, uuid, serviceHandle));
+        Entry entry = new Entry(serverIf, TYPE_CHARACTERISTIC, handle, uuid, serviceHandle);
+        if (!putEntry(entry)) return;
+
+        addToIndex(mCharIndex, new AttributeKey(uuid, serviceHandle, entry.instance), entry);
+
+        addServiceAttribute(entry);
     }
 
     void addDescriptor(int serverIf, int handle, UUID uuid, int serviceHandle) {
-        mEntries.add(new Entry(serverIf, TYPE_DESCRIPTOR, handle, uuid, serviceHandle, mLastCharacteristic));
+        Entry entry = new Entry(serverIf, TYPE_DESCRIPTOR, handle, uuid, serviceHandle,
+                                mLastCharacteristic);
+        if (!putEntry(entry)) return;
+        addServiceAttribute(entry);
     }
 
     void setStarted(int serverIf, int handle, boolean started) {
-        for(Entry entry : mEntries) {
-            if (entry.type != TYPE_SERVICE ||
-                entry.serverIf != serverIf ||
-                entry.handle != handle)
-                continue;
-
-            entry.started = started;
+        Entry entry = lookup(handle);
+        if (entry == null ||
+            entry.type != TYPE_SERVICE ||
+            entry.serverIf != serverIf)
             return;
-        }
+
+        entry.started = started;
     }
 
     Entry getByHandle(int handle) {
-        for(Entry entry : mEntries) {
-            if (entry.handle == handle)
-                return entry;
+        Entry entry = lookup(handle);
+        if (entry == null) {
+            Log.e(TAG, "getByHandle() - Handle " + handle + " not found!");
         }
-        Log.e(TAG, "getByHandle() - Handle " + handle + " not found!");
-        return null;
+        return entry;
     }
 
     int getServiceHandle(UUID uuid, int serviceType, int instance) {
-        for(Entry entry : mEntries) {
-            if (entry.type == TYPE_SERVICE &&
-                entry.serviceType == serviceType &&
-                entry.instance == instance &&
-                entry.uuid.equals(uuid)) {
-                return entry.handle;
-            }
+        Entry entry = getFirst(mServiceIndex, new AttributeKey(uuid, serviceType, instance));
+        if (entry == null) {
+            Log.e(TAG, "getServiceHandle() - UUID " + uuid + " not found!");
+            return 0;
         }
-        Log.e(TAG, "getServiceHandle() - UUID " + uuid + " not found!");
-        return 0;
+        return entry.handle;
     }
 
     int getCharacteristicHandle(int serviceHandle, UUID uuid, int instance) {
-        for(Entry entry : mEntries) {
-            if (entry.type == TYPE_CHARACTERISTIC &&
-                entry.serviceHandle == serviceHandle &&
-                entry.instance == instance &&
-                entry.uuid.equals(uuid)) {
-                return entry.handle;
-            }
+        Entry entry = getFirst(mCharIndex, new AttributeKey(uuid, serviceHandle, instance));
+        if (entry == null) {
+            Log.e(TAG, "getCharacteristicHandle() - Service " + serviceHandle
+                        + ", UUID " + uuid + " not found!");
+            return 0;
         }
-        Log.e(TAG, "getCharacteristicHandle() - Service " + serviceHandle
-                    + ", UUID " + uuid + " not found!");
-        return 0;
+        return entry.handle;
     }
 
     void deleteService(int serverIf, int serviceHandle) {
-        for(Iterator <Entry> it = mEntries.iterator(); it.hasNext();) {
+        Entry service = lookup(serviceHandle);
+        if (service != null && service.serverIf == serverIf) {
+            removeEntry(service);
+            removeFromIndex(mServiceIndex, new AttributeKey(service.uuid,
+                            service.serviceType, service.instance), service);
+
+            List<Entry> services = mServerServices.get(serverIf);
+            if (services != null) {
+                services.remove(service);
+                if (services.isEmpty()) mServerServices.remove(serverIf);
+            }
+        }
+
+        List<Entry> attributes = mServiceAttributes.get(serviceHandle);
+        if (attributes == null) return;
+
+        for(Iterator <Entry> it = attributes.iterator(); it.hasNext();) {
             Entry entry = it.next();
             if (entry.serverIf != serverIf) continue;
 
-            if (entry.handle == serviceHandle ||
-                entry.serviceHandle == serviceHandle)
-                it.remove();
+            removeEntry(entry);
+            if (entry.type == TYPE_CHARACTERISTIC) {
+                removeFromIndex(mCharIndex, new AttributeKey(entry.uuid, serviceHandle,
+                                entry.instance), entry);
+            }
+            it.remove();
         }
+        if (attributes.isEmpty()) mServiceAttributes.remove(serviceHandle);
     }
 
-    List<Entry> getEntries() {
-        return mEntries;
+    /**
+     * Returns the service entries registered by a given server interface.
+     * The returned list must not be modified by the caller.
+     */
+    List<Entry> getServiceEntries(int serverIf) {
+        List<Entry> services = mServerServices.get(serverIf);
+        if (services == null) return new ArrayList<Entry>(0);
+        return services;
     }
 
     void addRequest(int requestId, int handle) {
@@ -167,18 +265,80 @@ class HandleMap {
     }
 
     void deleteRequest(int requestId) {
-        mRequestMap.remove(requestId);
+        mRequestMap.delete(requestId);
     }
 
     Entry getByRequestId(int requestId) {
-        Integer handle = mRequestMap.get(requestId);
-        if (handle == null) {
+        int handle = mRequestMap.get(requestId, 0);
+        if (handle == 0) {
             Log.e(TAG, "getByRequestId() - Request ID " + requestId + " not found!");
             return null;
         }
         return getByHandle(handle);
     }
 
+    private Entry lookup(int handle) {
+        if (handle < 0 || handle >= mHandleTable.length) return null;
+        return mHandleTable[handle];
+    }
+
+    private boolean putEntry(Entry entry) {
+        int handle = entry.handle;
+        if (handle < 0 || handle >= MAX_HANDLES) {
+            Log.e(TAG, "putEntry() - Invalid handle " + handle);
+            return false;
+        }
+
+        if (handle >= mHandleTable.length) {
+            int size = mHandleTable.length;
+            while (size <= handle) size <<= 1;
+            mHandleTable = Arrays.copyOf(mHandleTable, Math.min(size, MAX_HANDLES));
+        }
+
+        if (mHandleTable[handle] == null) ++mEntryCount;
+        mHandleTable[handle] = entry;
+        return true;
+    }
+
+    private void removeEntry(Entry entry) {
+        if (lookup(entry.handle) != entry) return;
+        mHandleTable[entry.handle] = null;
+        --mEntryCount;
+    }
+
+    private static void addToIndex(Map<AttributeKey, List<Entry>> index, AttributeKey key,
+                                   Entry entry) {
+        List<Entry> entries = index.get(key);
+        if (entries == null) {
+            entries = new ArrayList<Entry>(1);
+            index.put(key, entries);
+        }
+        entries.add(entry);
+    }
+
+    private static void removeFromIndex(Map<AttributeKey, List<Entry>> index, AttributeKey key,
+                                        Entry entry) {
+        List<Entry> entries = index.get(key);
+        if (entries == null) return;
+        entries.remove(entry);
+        if (entries.isEmpty()) index.remove(key);
+    }
+
+    /** Returns the first entry added with a key, as the former list scan did */
+    private static Entry getFirst(Map<AttributeKey, List<Entry>> index, AttributeKey key) {
+        List<Entry> entries = index.get(key);
+        if (entries == null || entries.isEmpty()) return null;
+        return entries.get(0);
+    }
+
+    private void addServiceAttribute(Entry entry) {
+        List<Entry> attributes = mServiceAttributes.get(entry.serviceHandle);
+        if (attributes == null) {
+            attributes = new ArrayList<Entry>();
+            mServiceAttributes.put(entry.serviceHandle, attributes);
+        }
+        attributes.add(entry);
+    }
 
     /**
      * Logs debug information.
@@ -186,10 +346,11 @@ class HandleMap {
     void dump() {
         StringBuilder b = new StringBuilder();
         b.append(  "-------------- GATT Handle Map -----------------");
-        b.append("\nEntries: " + mEntries.size());
+        b.append("\nEntries: " + mEntryCount);
         b.append("\nRequests: " + mRequestMap.size());
 
-        for (Entry entry : mEntries) {
+        for (Entry entry : mHandleTable) {
+            if (entry == null) continue;
             b.append("\n" + entry.serverIf + ": [" + entry.handle + "] ");
             switch(entry.type) {
                 case TYPE_SERVICE:
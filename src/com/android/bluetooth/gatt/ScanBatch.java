@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.gatt;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Helper class buffering scan results for a client that requested
+ * batched delivery. Results repeating the payload most recently seen
+ * from the same device are dropped.
+ * @hide
+ */
+/*package*/ class ScanBatch {
+    /** Number of devices remembered for duplicate suppression */
+    static final int DUPLICATE_CACHE_SIZE = 256;
+
+    class Result {
+        String address;
+        int rssi;
+        byte[] advData;
+
+        Result(String address, int rssi, byte[] advData) {
+            this.address = address;
+            this.rssi = rssi;
+            this.advData = advData;
+        }
+    }
+
+    final int periodMs;
+    final int maxSize;
+
+    /** Payload hash last seen per device address, in LRU order */
+    private final Map<String, Integer> mRecent =
+            new LinkedHashMap<String, Integer>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Integer> eldest) {
+            return size() > DUPLICATE_CACHE_SIZE;
+        }
+    };
+
+    private List<Result> mPending = new ArrayList<Result>();
+
+    private int mDuplicates = 0;
+
+    ScanBatch(int periodMs, int maxSize) {
+        this.periodMs = periodMs;
+        this.maxSize = maxSize > 0 ? maxSize : 1;
+    }
+
+    /**
+     * Queues a scan result.
+     * @return the number of pending results, or 0 if the result is a
+     *         duplicate and has been dropped.
+     */
+    synchronized int add(String address, int rssi, byte[] advData) {
+        int hash = Arrays.hashCode(advData);
+        Integer previous = mRecent.put(address, hash);
+        if (previous != null && previous == hash) {
+            ++mDuplicates;
+            return 0;
+        }
+
+        mPending.add(new Result(address, rssi, advData));
+        return mPending.size();
+    }
+
+    /**
+     * Removes and returns all pending results.
+     */
+    synchronized List<Result> drain() {
+        List<Result> results = mPending;
+        mPending = new ArrayList<Result>(results.size());
+        return results;
+    }
+
+    synchronized int getDuplicateCount() {
+        return mDuplicates;
+    }
+}
@@ -16,6 +16,7 @@
 
 package com.android.bluetooth.gatt;
 
+import java.util.Arrays;
 import java.util.UUID;
 
 /**
@@ -27,15 +28,102 @@ import java.util.UUID;
     boolean isServer;
     UUID[] uuids;
 
+    /** Batched result delivery, null if results are delivered immediately */
+    ScanBatch batch;
+
+    /**
+     * UUID filter, compiled into an open addressing hash set of
+     * (msb, lsb) pairs. mFilterSlots holds filter index + 1, 0 if empty.
+     */
+    private long[] mFilterMsb;
+    private long[] mFilterLsb;
+    private int[] mFilterSlots;
+    private int mFilterCount;
+
+    /** Per-filter match marks, compared against mMatchGeneration */
+    private int[] mMatchMarks;
+    private int mMatchGeneration;
+
     ScanClient(int appIf, boolean isServer) {
-        this.appIf = appIf;
-        this.isServer = isServer;
-        this.uuids = new UUID[0];
+        this(appIf, isServer, new UUID[0]);
     }
 
     ScanClient(int appIf, boolean isServer, UUID[] uuids) {
+        this(appIf, isServer, uuids, 0, 0);
+    }
+
+    ScanClient(int appIf, boolean isServer, UUID[] uuids,
+               int batchPeriodMs, int maxBatchSize) {
         this.appIf = appIf;
         this.isServer = isServer;
         this.uuids = uuids;
+        if (batchPeriodMs > 0) this.batch = new ScanBatch(batchPeriodMs, maxBatchSize);
+        compileFilter();
+    }
+
+    /**
+     * Returns true if the parsed advertisement contains all of the
+     * UUIDs this client is filtering on.
+     */
+    boolean matches(AdvDataParser adv) {
+        if (mFilterCount == 0) return true;
+
+        if (++mMatchGeneration == 0) {
+            Arrays.fill(mMatchMarks, 0);
+            mMatchGeneration = 1;
+        }
+
+        int matches = 0;
+        for (int i = 0; i < adv.getUuidCount(); i++) {
+            int index = indexOf(adv.getUuidMsb(i), adv.getUuidLsb(i));
+            if (index < 0 || mMatchMarks[index] == mMatchGeneration) continue;
+
+            // Only count 1st match in case of duplicates
+            mMatchMarks[index] = mMatchGeneration;
+            if (++matches == mFilterCount) return true;
+        }
+        return false;
+    }
+
+    private void compileFilter() {
+        int capacity = 4;
+        while (capacity < uuids.length * 2) capacity <<= 1;
+
+        mFilterMsb = new long[uuids.length];
+        mFilterLsb = new long[uuids.length];
+        mFilterSlots = new int[capacity];
+        mFilterCount = 0;
+
+        for (UUID uuid : uuids) {
+            long msb = uuid.getMostSignificantBits();
+            long lsb = uuid.getLeastSignificantBits();
+            if (indexOf(msb, lsb) >= 0) continue;
+
+            int slot = hash(msb, lsb) & (capacity - 1);
+            while (mFilterSlots[slot] != 0) slot = (slot + 1) & (capacity - 1);
+
+            mFilterMsb[mFilterCount] = msb;
+            mFilterLsb[mFilterCount] = lsb;
+            mFilterSlots[slot] = ++mFilterCount;
+        }
+
+        mMatchMarks = new int[mFilterCount];
+    }
+
+    private int indexOf(long msb, long lsb) {
+        int mask = mFilterSlots.length - 1;
+        int slot = hash(msb, lsb) & mask;
+        while (mFilterSlots[slot] != 0) {
+            int index = mFilterSlots[slot] - 1;
+            if (mFilterMsb[index] == msb && mFilterLsb[index] == lsb) return index;
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    private static int hash(long msb, long lsb) {
+        long h = msb ^ lsb;
+        int x = (int) (h ^ (h >>> 32));
+        return x ^ (x >>> 16);
     }
 }
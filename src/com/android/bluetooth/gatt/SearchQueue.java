@@ -16,13 +16,17 @@
 
 package com.android.bluetooth.gatt;
 
-import java.util.ArrayList;
-import java.util.Iterator;
-import java.util.List;
+import android.util.SparseArray;
+import java.util.ArrayDeque;
 
 /**
  * Helper class to store characteristics and descriptors that will be
  * queued up for future exploration.
+ * Discovery state is kept per connection. Services are explored depth
+ * first, so all characteristics and descriptors of a service are
+ * discovered before the next service is started.
+ * Searches are started from binder threads and advanced from the native
+ * callback thread, so all access to the discovery state is synchronized.
  * @hide
  */
 /*package*/ class SearchQueue {
@@ -37,7 +41,43 @@ import java.util.List;
         public long charUuidMsb;
     }
 
-    private List<Entry> mEntries = new ArrayList<Entry>();
+    /**
+     * Receives the services a streaming search has finished exploring.
+     */
+    interface ServiceListener {
+        void onServiceExplored(Entry service);
+    }
+
+    /**
+     * Discovery state of a single connection.
+     */
+    class Search {
+        boolean streaming = false;
+        Entry currentService = null;
+        ArrayDeque<Entry> services = new ArrayDeque<Entry>();
+        ArrayDeque<Entry> characteristics = new ArrayDeque<Entry>();
+    }
+
+    private SparseArray<Search> mSearches = new SparseArray<Search>();
+
+    /**
+     * Resets the discovery state of a connection before a new search.
+     * Streaming searches report each service as soon as it is complete.
+     */
+    void start(int connId, boolean streaming) {
+        Search search = new Search();
+        search.streaming = streaming;
+        synchronized (mSearches) {
+            mSearches.put(connId, search);
+        }
+    }
+
+    boolean isStreaming(int connId) {
+        synchronized (mSearches) {
+            Search search = mSearches.get(connId);
+            return search != null && search.streaming;
+        }
+    }
 
     void add(int connId, int srvcType,
             int srvcInstId, long srvcUuidLsb, long srvcUuidMsb) {
@@ -48,7 +88,9 @@ import java.util.List;
         entry.srvcUuidLsb = srvcUuidLsb;
         entry.srvcUuidMsb = srvcUuidMsb;
         entry.charUuidLsb = 0;
-        mEntries.add(entry);
+        synchronized (mSearches) {
+            getSearch(connId).services.addLast(entry);
+        }
     }
 
     void add(int connId, int srvcType,
@@ -64,29 +106,89 @@ import java.util.List;
         entry.charInstId = charInstId;
         entry.charUuidLsb = charUuidLsb;
         entry.charUuidMsb = charUuidMsb;
-        mEntries.add(entry);
+        synchronized (mSearches) {
+            getSearch(connId).characteristics.addLast(entry);
+        }
     }
 
-    Entry pop() {
-        Entry entry = mEntries.get(0);
-        mEntries.remove(0);
+    /**
+     * Returns the next entry to explore for a connection, or null if the
+     * search is complete. Characteristics of the current service are
+     * returned before the next service.
+     */
+    Entry pop(int connId) {
+        synchronized (mSearches) {
+            Search search = mSearches.get(connId);
+            if (search == null) return null;
+
+            Entry entry = search.characteristics.pollFirst();
+            if (entry != null) return entry;
+
+            entry = search.services.pollFirst();
+            search.currentService = entry;
+            return entry;
+        }
+    }
+
+    /**
+     * Returns the service currently being explored if all of its
+     * characteristics have been handed out, and clears it.
+     * Returns null while the service is still being explored.
+     */
+    Entry finishService(int connId) {
+        synchronized (mSearches) {
+            Search search = mSearches.get(connId);
+            if (search == null || search.currentService == null
+                    || !search.characteristics.isEmpty()) return null;
+
+            Entry entry = search.currentService;
+            search.currentService = null;
+            return entry;
+        }
+    }
+
+    /**
+     * Advances the search of a connection by one step, depth first.
+     * Returns the next entry to explore, or null if the search is complete,
+     * in which case the discovery state of the connection is removed.
+     * For a streaming search, a service finished by this step is passed to
+     * the listener, outside of the lock.
+     */
+    Entry next(int connId, ServiceListener listener) {
+        Entry explored;
+        Entry entry;
+        synchronized (mSearches) {
+            boolean streaming = isStreaming(connId);
+            explored = finishService(connId);
+            entry = pop(connId);
+            if (entry == null) mSearches.remove(connId);
+            if (!streaming) explored = null;
+        }
+        if (explored != null && listener != null) {
+            listener.onServiceExplored(explored);
+        }
         return entry;
     }
 
     void removeConnId(int connId) {
-        for (Iterator<Entry> it = mEntries.iterator(); it.hasNext();) {
-            Entry entry = it.next();
-            if (entry.connId == connId) {
-                it.remove();
-            }
+        synchronized (mSearches) {
+            mSearches.remove(connId);
         }
     }
 
-    boolean isEmpty() {
-        return mEntries.isEmpty();
+    void clear() {
+        synchronized (mSearches) {
+            mSearches.clear();
+        }
     }
 
-    void clear() {
-        mEntries.clear();
+    /* Must be called with mSearches locked */
+    private Search getSearch(int connId) {
+        Search search = mSearches.get(connId);
+        if (search == null) {
+            search = new Search();
+            mSearches.put(connId, search);
+        }
+        return search;
     }
 }
@@ -0,0 +1,167 @@
+/*
+* Copyright (C) 2013 Samsung System LSI
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package com.android.bluetooth.map;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.provider.ContactsContract.CommonDataKinds.Email;
+import android.provider.ContactsContract.CommonDataKinds.Phone;
+import android.provider.ContactsContract.Contacts;
+import android.telephony.PhoneNumberUtils;
+import android.util.Log;
+
+/**
+ * A compiled originator or recipient filter.
+ * An address matches if the address itself matches the filter, or if it
+ * belongs to a contact whose display name matches the filter. The contacts
+ * are resolved to a set of phone numbers and e-mail addresses once, when the
+ * filter is compiled, hence matching a message needs no queries.
+ * Only contacts in a visible group are matched by name. Contacts in hidden
+ * groups only match through their address, as with the per message
+ * PhoneLookup query, which used the same IN_VISIBLE_GROUP selection.
+ */
+class BluetoothMapAddressFilter {
+    private static final String TAG = "BluetoothMapAddressFilter";
+    private static final boolean D = false;
+
+    private final String mFilter;
+    private final int mGeneration;
+    private final Pattern mPattern;
+    /* Phone numbers without separators and lower case e-mail addresses */
+    private final Set<String> mNumbers = new HashSet<String>();
+    private final Set<String> mEmails = new HashSet<String>();
+    /* Result per address seen, as the same few addresses repeat in a listing */
+    private final HashMap<String, Boolean> mMatches = new HashMap<String, Boolean>();
+
+    private BluetoothMapAddressFilter(String filter, int generation) {
+        mFilter = filter;
+        mGeneration = generation;
+        mPattern = Pattern.compile(".*" + filter.replace("*", ".*") + ".*");
+    }
+
+    /**
+     * Compile a filter, and resolve the visible contacts whose name matches it.
+     * @param resolver used to query the contacts provider
+     * @param filter the filter string from the application parameters, where
+     * '*' is a wildcard
+     * @param generation the contact cache generation the filter is valid for
+     */
+    static BluetoothMapAddressFilter compile(ContentResolver resolver, String filter,
+            int generation) {
+        BluetoothMapAddressFilter f = new BluetoothMapAddressFilter(filter, generation);
+        String like = "%" + filter.replace("*", "%") + "%";
+        /* Same visibility as BluetoothMapContactCache, which names the listed contacts */
+        String selection = Contacts.IN_VISIBLE_GROUP + "=1 AND "
+            + Contacts.DISPLAY_NAME + " LIKE ?";
+
+        Cursor c = resolver.query(Phone.CONTENT_URI,
+            new String[] {Contacts.DISPLAY_NAME, Phone.NUMBER}, selection,
+            new String[] {like}, null);
+        if (c != null) {
+            while (c.moveToNext()) {
+                String name = c.getString(0);
+                String number = c.getString(1);
+                if (name != null && number != null && f.mPattern.matcher(name).matches()) {
+                    f.mNumbers.add(PhoneNumberUtils.stripSeparators(number));
+                }
+            }
+            c.close();
+        }
+
+        c = resolver.query(Email.CONTENT_URI,
+            new String[] {Contacts.DISPLAY_NAME, Email.ADDRESS}, selection,
+            new String[] {like}, null);
+        if (c != null) {
+            while (c.moveToNext()) {
+                String name = c.getString(0);
+                String email = c.getString(1);
+                if (name != null && email != null && f.mPattern.matcher(name).matches()) {
+                    f.mEmails.add(email.toLowerCase());
+                }
+            }
+            c.close();
+        }
+
+        if (D) Log.d(TAG, "compile " + filter + ": " + f.mNumbers.size() + " numbers, "
+            + f.mEmails.size() + " e-mail addresses");
+        return f;
+    }
+
+    /**
+     * @return true if this filter was compiled from the filter string, and
+     * the contacts have not changed since.
+     */
+    boolean isFor(String filter, int generation) {
+        return mGeneration == generation && mFilter.equals(filter);
+    }
+
+    /**
+     * @return the phone numbers, without separators, of the contacts whose
+     * name matches the filter.
+     */
+    Set<String> getNumbers() {
+        return mNumbers;
+    }
+
+    /**
+     * Match an address from a message.
+     * @param address the phone number or e-mail address
+     * @return true if the address or the contact owning it matches.
+     */
+    boolean matches(String address) {
+        if (address == null || address.length() == 0) {
+            return false;
+        }
+        Boolean match = mMatches.get(address);
+        if (match == null) {
+            match = mPattern.matcher(address).matches() || isContactAddress(address);
+            mMatches.put(address, match);
+        }
+        return match;
+    }
+
+    /**
+     * Match an address with a known name, e.g. the local phone number and
+     * its alpha tag.
+     */
+    boolean matches(String address, String name) {
+        if (address != null && address.length() > 0 && mPattern.matcher(address).matches()) {
+            return true;
+        }
+        return name != null && name.length() > 0 && mPattern.matcher(name).matches();
+    }
+
+    private boolean isContactAddress(String address) {
+        if (address.indexOf('@') >= 0) {
+            return mEmails.contains(address.toLowerCase());
+        }
+        if (mNumbers.contains(PhoneNumberUtils.stripSeparators(address))) {
+            return true;
+        }
+        /* Allow for differently formatted numbers, e.g. with or without the
+         * country code, as the contact lookup by number does */
+        for (String number : mNumbers) {
+            if (PhoneNumberUtils.compare(number, address)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
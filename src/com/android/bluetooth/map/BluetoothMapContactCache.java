@@ -0,0 +1,192 @@
+/*
+* Copyright (C) 2013 Samsung System LSI
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package com.android.bluetooth.map;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import android.content.ContentResolver;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.provider.ContactsContract.Contacts;
+import android.provider.ContactsContract.PhoneLookup;
+import android.util.Log;
+
+/**
+ * Cache of phone number to contact lookups, shared by the message listing,
+ * GetMessage and the originator/recipient filters of a MAP instance.
+ * Numbers without a contact are cached as well. The cache is cleared when
+ * the contacts provider reports a change.
+ */
+class BluetoothMapContactCache {
+    private static final String TAG = "BluetoothMapContactCache";
+    private static final boolean D = false;
+
+    private static final int CACHE_SIZE = 256;
+
+    /**
+     * The result of a phone number lookup. contactId and name are null when
+     * the number does not belong to a visible contact.
+     */
+    static class Contact {
+        final String contactId;
+        final String name;
+
+        Contact(String contactId, String name) {
+            this.contactId = contactId;
+            this.name = name;
+        }
+    }
+
+    private final ContentResolver mResolver;
+
+    private final Map<String, Contact> mContacts =
+        new LinkedHashMap<String, Contact>(CACHE_SIZE, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Contact> eldest) {
+                return size() > CACHE_SIZE;
+            }
+        };
+
+    private boolean mObserverRegistered = false;
+    private int mGeneration = 0;
+    private int mHits = 0;
+    private int mMisses = 0;
+
+    private final ContentObserver mObserver =
+        new ContentObserver(new Handler(Looper.getMainLooper())) {
+            @Override
+            public void onChange(boolean selfChange) {
+                if (D) Log.d(TAG, "contacts changed - clearing cache");
+                synchronized (mContacts) {
+                    mContacts.clear();
+                    mGeneration++;
+                }
+            }
+        };
+
+    BluetoothMapContactCache(ContentResolver resolver) {
+        mResolver = resolver;
+    }
+
+    /**
+     * Look up the contact owning a phone number.
+     * @param phone the phone number
+     * @return the contact, with null fields if the number has no contact.
+     */
+    Contact lookup(String phone) {
+        if (phone == null) {
+            return new Contact(null, null);
+        }
+        int generation;
+        synchronized (mContacts) {
+            Contact contact = mContacts.get(phone);
+            if (contact != null) {
+                mHits++;
+                return contact;
+            }
+            mMisses++;
+            if (!mObserverRegistered) {
+                mResolver.registerContentObserver(Contacts.CONTENT_URI, true, mObserver);
+                mObserverRegistered = true;
+            }
+            generation = mGeneration;
+        }
+
+        Contact contact = query(phone);
+
+        synchronized (mContacts) {
+            // Do not cache a contact read while the contacts were changing
+            if (generation == mGeneration) {
+                mContacts.put(phone, contact);
+            }
+        }
+        return contact;
+    }
+
+    /**
+     * @return the display name of the contact owning a phone number, or null.
+     */
+    String getName(String phone) {
+        return lookup(phone).name;
+    }
+
+    private Contact query(String phone) {
+        String contactId = null;
+        String name = null;
+
+        Uri uri = Uri.withAppendedPath(PhoneLookup.CONTENT_FILTER_URI,
+            Uri.encode(phone));
+
+        String[] projection = {Contacts._ID, Contacts.DISPLAY_NAME};
+        String selection = Contacts.IN_VISIBLE_GROUP + "=1";
+        String orderBy = Contacts.DISPLAY_NAME + " ASC";
+
+        Cursor c = mResolver.query(uri, projection, selection, null, orderBy);
+
+        if (c != null) {
+            if (c.moveToFirst()) {
+                contactId = c.getString(c.getColumnIndex(Contacts._ID));
+                name = c.getString(c.getColumnIndex(Contacts.DISPLAY_NAME));
+            }
+            c.close();
+        }
+        return new Contact(contactId, name);
+    }
+
+    /**
+     * Get the generation of the cached contacts. It changes each time the
+     * contacts change, hence results derived from the contacts can be tagged
+     * with it to tell if they are still valid.
+     */
+    int getGeneration() {
+        synchronized (mContacts) {
+            if (!mObserverRegistered) {
+                mResolver.registerContentObserver(Contacts.CONTENT_URI, true, mObserver);
+                mObserverRegistered = true;
+            }
+            return mGeneration;
+        }
+    }
+
+    int getHitCount() {
+        synchronized (mContacts) {
+            return mHits;
+        }
+    }
+
+    int getMissCount() {
+        synchronized (mContacts) {
+            return mMisses;
+        }
+    }
+
+    /**
+     * Clear the cache and stop observing the contacts provider.
+     */
+    void close() {
+        synchronized (mContacts) {
+            if (mObserverRegistered) {
+                mResolver.unregisterContentObserver(mObserver);
+                mObserverRegistered = false;
+            }
+            if (D) Log.d(TAG, "close: hits " + mHits + " misses " + mMisses);
+            mContacts.clear();
+        }
+    }
+}
@@ -15,23 +15,34 @@
 package com.android.bluetooth.map;
 
 import java.io.ByteArrayOutputStream;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
 import org.apache.http.util.ByteArrayBuffer;
 
 import android.content.ContentResolver;
 import android.content.ContentValues;
 import android.content.Context;
+import android.database.ContentObserver;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.ParcelFileDescriptor;
 import android.provider.BaseColumns;
 import android.provider.ContactsContract;
-import android.provider.ContactsContract.Contacts;
-import android.provider.ContactsContract.PhoneLookup;
 import android.provider.Telephony.Mms;
+import android.provider.Telephony.MmsSms;
 import android.provider.Telephony.Sms;
 import android.telephony.TelephonyManager;
 import android.util.Log;
@@ -74,6 +85,9 @@ public class BluetoothMapContent {
 
     private Context mContext;
     private ContentResolver mResolver;
+    private BluetoothMapContactCache mContactCache;
+    private BluetoothMapAddressFilter mOriginatorFilter = null;
+    private BluetoothMapAddressFilter mRecipientFilter = null;
 
     static final String[] SMS_PROJECTION = new String[] {
         BaseColumns._ID,
@@ -111,14 +125,50 @@ public class BluetoothMapContent {
         int phoneType = 0;
         String phoneNum = null;
         String phoneAlphaTag = null;
+
+        /* MMS addresses ({from, to}) and text parts, by message id. Filled
+         * in bulk for a listing page, or as messages are matched. */
+        HashMap<Long, String[]> mmsAddresses = new HashMap<Long, String[]>();
+        HashMap<Long, String> mmsText = new HashMap<Long, String>();
     }
 
+    /* Listing sizes and unread counts computed with originator/recipient
+     * filters, which need a full scan, and the message and unread counts of
+     * each folder per message type. Cleared on any SMS/MMS change. */
+    private static final int LISTING_CACHE_SIZE = 32;
+
+    private final Map<String, Integer> mListingCache =
+        new LinkedHashMap<String, Integer>(LISTING_CACHE_SIZE, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Integer> eldest) {
+                return size() > LISTING_CACHE_SIZE;
+            }
+        };
+
+    private boolean mListingObserverRegistered = false;
+    /* Incremented on each SMS/MMS change, so that a count computed while the
+     * messages were changing is not cached */
+    private int mListingGeneration = 0;
+
+    private final ContentObserver mListingObserver =
+        new ContentObserver(new Handler(Looper.getMainLooper())) {
+            @Override
+            public void onChange(boolean selfChange) {
+                if (V) Log.v(TAG, "listing cache invalidated");
+                synchronized (mListingCache) {
+                    mListingCache.clear();
+                    mListingGeneration++;
+                }
+            }
+        };
+
     public BluetoothMapContent(final Context context) {
         mContext = context;
         mResolver = mContext.getContentResolver();
         if (mResolver == null) {
             Log.d(TAG, "getContentResolver failed");
         }
+        mContactCache = new BluetoothMapContactCache(mResolver);
     }
 
     private void addSmsEntry() {
@@ -427,7 +477,7 @@ public class BluetoothMapContent {
                     hasText = "yes";
                 } else {
                     long id = c.getLong(c.getColumnIndex(BaseColumns._ID));
-                    String text = getTextPartsMms(id);
+                    String text = getTextPartsMms(fi, id);
                     if (text != null && text.length() > 0) {
                         hasText = "yes";
                     } else {
@@ -495,7 +545,7 @@ public class BluetoothMapContent {
                 }
             } else if (fi.msgType == FilterInfo.TYPE_MMS) {
                 long id = c.getLong(c.getColumnIndex(BaseColumns._ID));
-                address = getAddressMms(mResolver, id, MMS_TO);
+                address = getAddressMms(fi, id, MMS_TO);
             }
             if (D) Log.d(TAG, "setRecipientAddressing: " + address);
             e.setRecipientAddressing(address);
@@ -516,7 +566,7 @@ public class BluetoothMapContent {
                 }
             } else if (fi.msgType == FilterInfo.TYPE_MMS) {
                 long id = c.getLong(c.getColumnIndex(BaseColumns._ID));
-                String phone = getAddressMms(mResolver, id, MMS_TO);
+                String phone = getAddressMms(fi, id, MMS_TO);
                 name = getContactNameFromPhone(phone);
             }
             if (D) Log.d(TAG, "setRecipientName: " + name);
@@ -537,7 +587,7 @@ public class BluetoothMapContent {
                 }
             } else if (fi.msgType == FilterInfo.TYPE_MMS) {
                 long id = c.getLong(c.getColumnIndex(BaseColumns._ID));
-                address = getAddressMms(mResolver, id, MMS_FROM);
+                address = getAddressMms(fi, id, MMS_FROM);
             }
             if (D) Log.d(TAG, "setSenderAddressing: " + address);
             e.setSenderAddressing(address);
@@ -558,7 +608,7 @@ public class BluetoothMapContent {
                 }
             } else if (fi.msgType == FilterInfo.TYPE_MMS) {
                 long id = c.getLong(c.getColumnIndex(BaseColumns._ID));
-                String phone = getAddressMms(mResolver, id, MMS_FROM);
+                String phone = getAddressMms(fi, id, MMS_FROM);
                 name = getContactNameFromPhone(phone);
             }
             if (D) Log.d(TAG, "setSenderName: " + name);
@@ -609,6 +659,52 @@ public class BluetoothMapContent {
         return text;
     }
 
+    private String getTextPartsMms(FilterInfo fi, long id) {
+        String text = fi.mmsText.get(id);
+        if (text == null) {
+            text = getTextPartsMms(id);
+            fi.mmsText.put(id, text);
+        }
+        return text;
+    }
+
+    /**
+     * Load the text parts of a page of MMS messages with a single query on
+     * the part table, instead of one query per message.
+     */
+    private void loadTextPartsMms(FilterInfo fi, List<Long> ids) {
+        StringBuilder where = new StringBuilder("ct='text/plain' AND mid IN (");
+        int cnt = 0;
+        for (Long id : ids) {
+            if (fi.mmsText.containsKey(id)) {
+                continue;
+            }
+            if (cnt++ > 0) {
+                where.append(',');
+            }
+            where.append(id);
+            fi.mmsText.put(id, "");
+        }
+        if (cnt == 0) {
+            return;
+        }
+        where.append(')');
+
+        Cursor c = mResolver.query(Uri.parse("content://mms/part"),
+            new String[] {"mid", "text"}, where.toString(), null, BaseColumns._ID);
+        if (c != null) {
+            while (c.moveToNext()) {
+                long id = c.getLong(0);
+                String text = c.getString(1);
+                if (text != null) {
+                    fi.mmsText.put(id, fi.mmsText.get(id) + text);
+                }
+            }
+            c.close();
+        }
+        if (D) Log.d(TAG, "loadTextPartsMms: " + cnt + " messages");
+    }
+
     private void setSubject(BluetoothMapMessageListingElement e, Cursor c,
         FilterInfo fi, BluetoothMapAppParams ap) {
         String subject = "";
@@ -624,7 +720,7 @@ public class BluetoothMapContent {
                 if (subject == null || subject.length() == 0) {
                     /* Get subject from mms text body parts - if any exists */
                     long id = c.getLong(c.getColumnIndex(BaseColumns._ID));
-                    subject = getTextPartsMms(id);
+                    subject = getTextPartsMms(fi, id);
                 }
             }
             if (subject != null) {
@@ -677,24 +773,21 @@ public class BluetoothMapContent {
     }
 
     private String getContactNameFromPhone(String phone) {
-        String name = null;
-
-        Uri uri = Uri.withAppendedPath(PhoneLookup.CONTENT_FILTER_URI,
-            Uri.encode(phone));
-
-        String[] projection = {Contacts._ID, Contacts.DISPLAY_NAME};
-        String selection = Contacts.IN_VISIBLE_GROUP + "=1";
-        String orderBy = Contacts.DISPLAY_NAME + " ASC";
-
-        Cursor c = mResolver.query(uri, projection, selection, null, orderBy);
+        return mContactCache.getName(phone);
+    }
 
-        if (c != null && c.getCount() >= 1) {
-            c.moveToFirst();
-            name = c.getString(c.getColumnIndex(Contacts.DISPLAY_NAME));
-        }
+    /**
+     * @return the number of contact lookups answered by the contact cache.
+     */
+    public int getContactCacheHits() {
+        return mContactCache.getHitCount();
+    }
 
-        c.close();
-        return name;
+    /**
+     * @return the number of contact lookups that queried the contacts provider.
+     */
+    public int getContactCacheMisses() {
+        return mContactCache.getMissCount();
     }
 
     static public String getAddressMms(ContentResolver r, long id, int type) {
@@ -714,77 +807,79 @@ public class BluetoothMapContent {
         return addr;
     }
 
-    private boolean matchRecipientMms(Cursor c, FilterInfo fi, String recip) {
-        boolean res;
-        long id = c.getLong(c.getColumnIndex(BaseColumns._ID));
-        String phone = getAddressMms(mResolver, id, MMS_TO);
-        if (phone != null && phone.length() > 0) {
-            if (phone.matches(recip)) {
-                if (D) Log.d(TAG, "match recipient phone = " + phone);
-                res = true;
-            } else {
-                String name = getContactNameFromPhone(phone);
-                if (name != null && name.length() > 0 && name.matches(recip)) {
-                    if (D) Log.d(TAG, "match recipient name = " + name);
-                    res = true;
-                } else {
-                    res = false;
+    /**
+     * Get an address of an MMS message within a listing. The sender and the
+     * recipient are fetched together by one query on the addr table, which
+     * is then reused by the filters and by every field of the element.
+     * The provider only exposes the addr table per message, hence this can
+     * not be batched further.
+     */
+    private String getAddressMms(FilterInfo fi, long id, int type) {
+        String[] addr = fi.mmsAddresses.get(id);
+        if (addr == null) {
+            addr = new String[2];
+            String selection = "msg_id=" + id + " AND (type=" + MMS_FROM
+                + " OR type=" + MMS_TO + ")";
+            Uri uriAddress = Uri.parse(String.format("content://mms/%d/addr", id));
+            Cursor c = mResolver.query(uriAddress, new String[] {"address", "type"},
+                selection, null, null);
+            if (c != null) {
+                while (c.moveToNext()) {
+                    int i = (c.getInt(1) == MMS_FROM) ? 0 : 1;
+                    if (addr[i] == null) {
+                        addr[i] = c.getString(0);
+                    }
                 }
+                c.close();
             }
-        } else {
-            res = false;
+            fi.mmsAddresses.put(id, addr);
         }
-        return res;
+        return (type == MMS_FROM) ? addr[0] : addr[1];
     }
 
-    private boolean matchRecipientSms(Cursor c, FilterInfo fi, String recip) {
-        boolean res;
-        int msgType = c.getInt(c.getColumnIndex(Sms.TYPE));
-        if (msgType == 1) {
-            String phone = fi.phoneNum;
-            String name = fi.phoneAlphaTag;
-            if (phone != null && phone.length() > 0 && phone.matches(recip)) {
-                if (D) Log.d(TAG, "match recipient phone = " + phone);
-                res = true;
-            } else if (name != null && name.length() > 0 && name.matches(recip)) {
-                if (D) Log.d(TAG, "match recipient name = " + name);
-                res = true;
+    /**
+     * Get the compiled filter for an originator or recipient filter string.
+     * The last filter of each kind is kept, hence paged requests with the
+     * same filter only resolve the contacts once.
+     */
+    private BluetoothMapAddressFilter getAddressFilter(String filter, boolean originator) {
+        int generation = mContactCache.getGeneration();
+        BluetoothMapAddressFilter f = originator ? mOriginatorFilter : mRecipientFilter;
+        if (f == null || !f.isFor(filter, generation)) {
+            f = BluetoothMapAddressFilter.compile(mResolver, filter, generation);
+            if (originator) {
+                mOriginatorFilter = f;
             } else {
-                res = false;
+                mRecipientFilter = f;
             }
         }
-        else {
-            String phone = c.getString(c.getColumnIndex(Sms.ADDRESS));
-            if (phone != null && phone.length() > 0) {
-                if (phone.matches(recip)) {
-                    if (D) Log.d(TAG, "match recipient phone = " + phone);
-                    res = true;
-                } else {
-                    String name = getContactNameFromPhone(phone);
-                    if (name != null && name.length() > 0 && name.matches(recip)) {
-                        if (D) Log.d(TAG, "match recipient name = " + name);
-                        res = true;
-                    } else {
-                        res = false;
-                    }
-                }
-            } else {
-                res = false;
-            }
+        return f;
+    }
+
+    private boolean matchRecipientMms(Cursor c, FilterInfo fi, BluetoothMapAddressFilter recip) {
+        long id = c.getLong(c.getColumnIndex(BaseColumns._ID));
+        String phone = getAddressMms(fi, id, MMS_TO);
+        return recip.matches(phone);
+    }
+
+    private boolean matchRecipientSms(Cursor c, FilterInfo fi, BluetoothMapAddressFilter recip) {
+        int msgType = c.getInt(c.getColumnIndex(Sms.TYPE));
+        if (msgType == 1) {
+            return recip.matches(fi.phoneNum, fi.phoneAlphaTag);
+        } else {
+            return recip.matches(c.getString(c.getColumnIndex(Sms.ADDRESS)));
         }
-        return res;
     }
 
     private boolean matchRecipient(Cursor c, FilterInfo fi, BluetoothMapAppParams ap) {
         boolean res;
         String recip = ap.getFilterRecipient();
         if (recip != null && recip.length() > 0) {
-            recip = recip.replace("*", ".*");
-            recip = ".*" + recip + ".*";
+            BluetoothMapAddressFilter filter = getAddressFilter(recip, false);
             if (fi.msgType == FilterInfo.TYPE_SMS) {
-                res = matchRecipientSms(c, fi, recip);
+                res = matchRecipientSms(c, fi, filter);
             } else if (fi.msgType == FilterInfo.TYPE_MMS) {
-                res = matchRecipientMms(c, fi, recip);
+                res = matchRecipientMms(c, fi, filter);
             } else {
                 if (D) Log.d(TAG, "Unknown msg type: " + fi.msgType);
                 res = false;
@@ -795,77 +890,30 @@ public class BluetoothMapContent {
         return res;
     }
 
-    private boolean matchOriginatorMms(Cursor c, FilterInfo fi, String orig) {
-        boolean res;
+    private boolean matchOriginatorMms(Cursor c, FilterInfo fi, BluetoothMapAddressFilter orig) {
         long id = c.getLong(c.getColumnIndex(BaseColumns._ID));
-        String phone = getAddressMms(mResolver, id, MMS_FROM);
-        if (phone != null && phone.length() > 0) {
-            if (phone.matches(orig)) {
-                if (D) Log.d(TAG, "match originator phone = " + phone);
-                res = true;
-            } else {
-                String name = getContactNameFromPhone(phone);
-                if (name != null && name.length() > 0 && name.matches(orig)) {
-                    if (D) Log.d(TAG, "match originator name = " + name);
-                    res = true;
-                } else {
-                    res = false;
-                }
-            }
-        } else {
-            res = false;
-        }
-        return res;
+        String phone = getAddressMms(fi, id, MMS_FROM);
+        return orig.matches(phone);
     }
 
-    private boolean matchOriginatorSms(Cursor c, FilterInfo fi, String orig) {
-        boolean res;
+    private boolean matchOriginatorSms(Cursor c, FilterInfo fi, BluetoothMapAddressFilter orig) {
         int msgType = c.getInt(c.getColumnIndex(Sms.TYPE));
         if (msgType == 1) {
-            String phone = c.getString(c.getColumnIndex(Sms.ADDRESS));
-            if (phone !=null && phone.length() > 0) {
-                if (phone.matches(orig)) {
-                    if (D) Log.d(TAG, "match originator phone = " + phone);
-                    res = true;
-                } else {
-                    String name = getContactNameFromPhone(phone);
-                    if (name != null && name.length() > 0 && name.matches(orig)) {
-                        if (D) Log.d(TAG, "match originator name = " + name);
-                        res = true;
-                    } else {
-                        res = false;
-                    }
-                }
-            } else {
-                res = false;
-            }
-        }
-        else {
-            String phone = fi.phoneNum;
-            String name = fi.phoneAlphaTag;
-            if (phone != null && phone.length() > 0 && phone.matches(orig)) {
-                if (D) Log.d(TAG, "match originator phone = " + phone);
-                res = true;
-            } else if (name != null && name.length() > 0 && name.matches(orig)) {
-                if (D) Log.d(TAG, "match originator name = " + name);
-                res = true;
-            } else {
-                res = false;
-            }
+            return orig.matches(c.getString(c.getColumnIndex(Sms.ADDRESS)));
+        } else {
+            return orig.matches(fi.phoneNum, fi.phoneAlphaTag);
         }
-        return res;
     }
 
    private boolean matchOriginator(Cursor c, FilterInfo fi, BluetoothMapAppParams ap) {
         boolean res;
         String orig = ap.getFilterOriginator();
         if (orig != null && orig.length() > 0) {
-            orig = orig.replace("*", ".*");
-            orig = ".*" + orig + ".*";
+            BluetoothMapAddressFilter filter = getAddressFilter(orig, true);
             if (fi.msgType == FilterInfo.TYPE_SMS) {
-                res = matchOriginatorSms(c, fi, orig);
+                res = matchOriginatorSms(c, fi, filter);
             } else if (fi.msgType == FilterInfo.TYPE_MMS) {
-                res = matchOriginatorMms(c, fi, orig);
+                res = matchOriginatorMms(c, fi, filter);
             } else {
                 Log.d(TAG, "Unknown msg type: " + fi.msgType);
                 res = false;
@@ -973,44 +1021,22 @@ public class BluetoothMapContent {
         return where;
     }
 
-    private String setWhereFilterPhones(String str) {
+    private String setWhereFilterPhones(String str, boolean originator) {
         String where = "";
-        str = str.replace("*", "%");
 
-        Cursor c = mResolver.query(ContactsContract.Contacts.CONTENT_URI, null,
-            ContactsContract.Contacts.DISPLAY_NAME + " like ?",
-            new String[]{str},
-            ContactsContract.Contacts.DISPLAY_NAME + " ASC");
-
-        while (c != null && c.moveToNext()) {
-            String contactId = c.getString(c.getColumnIndex(ContactsContract.Contacts._ID));
-
-            Cursor p = mResolver.query(ContactsContract.CommonDataKinds.Phone.CONTENT_URI, null,
-                ContactsContract.CommonDataKinds.Phone.CONTACT_ID + " = ?",
-                new String[]{contactId},
-                null);
-
-            while (p != null && p.moveToNext()) {
-                String number = p.getString(
-                    p.getColumnIndex(ContactsContract.CommonDataKinds.Phone.NUMBER));
-
-                where += " address = " + "'" + number + "'";
-                if (!p.isLast()) {
-                    where += " OR ";
-                }
-            }
-            if (!c.isLast()) {
+        for (String number : getAddressFilter(str, originator).getNumbers()) {
+            if (where.length() > 0) {
                 where += " OR ";
             }
-            p.close();
+            where += " address = " + DatabaseUtils.sqlEscapeString(number);
         }
-        c.close();
 
+        str = str.replace("*", "%");
         if (str != null && str.length() > 0) {
             if (where.length() > 0) {
                 where += " OR ";
             }
-            where += " address like " + "'" + str + "'";
+            where += " address like " + DatabaseUtils.sqlEscapeString(str);
         }
 
         return where;
@@ -1022,7 +1048,7 @@ public class BluetoothMapContent {
         String orig = ap.getFilterOriginator();
 
         if (orig != null && orig.length() > 0) {
-            String phones = setWhereFilterPhones(orig);
+            String phones = setWhereFilterPhones(orig, true);
 
             if (phones.length() > 0) {
                 where = " AND ((type <> 1) OR ( " + phones + " ))";
@@ -1058,7 +1084,7 @@ public class BluetoothMapContent {
         String recip = ap.getFilterRecipient();
 
         if (recip != null && recip.length() > 0) {
-            String phones = setWhereFilterPhones(recip);
+            String phones = setWhereFilterPhones(recip, false);
 
             if (phones.length() > 0) {
                 where = " AND ((type = 1) OR ( " + phones + " ))";
@@ -1147,60 +1173,122 @@ public class BluetoothMapContent {
     public BluetoothMapMessageListing msgListing(String folder, BluetoothMapAppParams ap) {
         Log.d(TAG, "msgListing: folder = " + folder);
         BluetoothMapMessageListing bmList = new BluetoothMapMessageListing();
-        BluetoothMapMessageListingElement e = null;
 
         /* Cache some info used throughout filtering */
         FilterInfo fi = new FilterInfo();
         setFilterInfo(fi);
 
-        if (smsSelected(fi, ap)) {
-            fi.msgType = FilterInfo.TYPE_SMS;
+        int maxListCount = ap.getMaxListCount();
+        int startOffset = ap.getStartOffset();
+        if (maxListCount == BluetoothMapAppParams.INVALID_VALUE_PARAMETER)
+            maxListCount = 1024;
+        if (startOffset == BluetoothMapAppParams.INVALID_VALUE_PARAMETER)
+            startOffset = 0;
 
-            String where = setWhereFilter(folder, fi, ap);
+        /* Without address filters every row returned by the provider is part of
+         * the listing, so neither cursor needs more than offset + count rows. */
+        String sortOrder = "date DESC";
+        if (!hasAddressFilter(ap)) {
+            sortOrder += " LIMIT " + (startOffset + maxListCount);
+        }
 
-            Cursor c = mResolver.query(Sms.CONTENT_URI,
-                SMS_PROJECTION, where, null, "date DESC");
+        Cursor smsCursor = null;
+        Cursor mmsCursor = null;
 
-            if (c != null) {
-                while (c.moveToNext()) {
-                    if (matchAddresses(c, fi, ap)) {
-                        printSms(c);
-                        e = element(c, fi, ap);
-                        bmList.add(e);
-                    }
-                }
-                c.close();
+        try {
+            if (smsSelected(fi, ap)) {
+                fi.msgType = FilterInfo.TYPE_SMS;
+                String where = setWhereFilter(folder, fi, ap);
+                smsCursor = mResolver.query(Sms.CONTENT_URI,
+                    SMS_PROJECTION, where, null, sortOrder);
             }
-        }
 
-        if (mmsSelected(fi, ap)) {
-            fi.msgType = FilterInfo.TYPE_MMS;
+            if (mmsSelected(fi, ap)) {
+                fi.msgType = FilterInfo.TYPE_MMS;
+                String where = setWhereFilter(folder, fi, ap);
+                mmsCursor = mResolver.query(Mms.CONTENT_URI,
+                    MMS_PROJECTION, where, null, sortOrder);
+            }
 
-            String where = setWhereFilter(folder, fi, ap);
+            /* Merge the two date ordered cursors, and stop as soon as the
+             * requested segment of the listing has been filled. */
+            boolean smsValid = smsCursor != null && smsCursor.moveToFirst();
+            boolean mmsValid = mmsCursor != null && mmsCursor.moveToFirst();
+            int smsDateIndex = smsValid ? smsCursor.getColumnIndex(Sms.DATE) : -1;
+            int mmsDateIndex = mmsValid ? mmsCursor.getColumnIndex(Mms.DATE) : -1;
+            int skipped = 0;
+
+            /* Cursor positions of the listing page. SMS positions are kept
+             * as is, MMS positions as -(position + 1). */
+            List<Integer> page = new ArrayList<Integer>();
+            List<Long> mmsIds = new ArrayList<Long>();
+
+            while ((smsValid || mmsValid) && page.size() < maxListCount) {
+                boolean useSms = smsValid && (!mmsValid
+                    || smsCursor.getLong(smsDateIndex) >= mmsCursor.getLong(mmsDateIndex) * 1000L);
+                Cursor c = useSms ? smsCursor : mmsCursor;
+                fi.msgType = useSms ? FilterInfo.TYPE_SMS : FilterInfo.TYPE_MMS;
+
+                if (matchAddresses(c, fi, ap)) {
+                    if (skipped < startOffset) {
+                        skipped++;
+                    } else if (useSms) {
+                        page.add(c.getPosition());
+                    } else {
+                        page.add(-(c.getPosition() + 1));
+                        mmsIds.add(c.getLong(c.getColumnIndex(BaseColumns._ID)));
+                    }
+                }
 
-            Cursor c = mResolver.query(Mms.CONTENT_URI,
-                MMS_PROJECTION, where, null, "date DESC");
+                if (useSms) {
+                    smsValid = smsCursor.moveToNext();
+                } else {
+                    mmsValid = mmsCursor.moveToNext();
+                }
+            }
 
-            if (c != null) {
-                int cnt = 0;
-                while (c.moveToNext()) {
-                    if (matchAddresses(c, fi, ap)) {
-                        printMms(c);
-                        e = element(c, fi, ap);
-                        bmList.add(e);
-                    }
+            /* The subject and text fields of MMS messages come from the text
+             * parts, which are loaded for the whole page at once. */
+            if (!mmsIds.isEmpty()
+                    && (ap.getParameterMask() & (MASK_SUBJECT | MASK_TEXT)) != 0) {
+                loadTextPartsMms(fi, mmsIds);
+            }
+
+            for (int pos : page) {
+                Cursor c;
+                if (pos >= 0) {
+                    c = smsCursor;
+                    c.moveToPosition(pos);
+                    fi.msgType = FilterInfo.TYPE_SMS;
+                    printSms(c);
+                } else {
+                    c = mmsCursor;
+                    c.moveToPosition(-pos - 1);
+                    fi.msgType = FilterInfo.TYPE_MMS;
+                    printMms(c);
                 }
-                c.close();
+                bmList.add(element(c, fi, ap));
             }
+        } finally {
+            if (smsCursor != null) smsCursor.close();
+            if (mmsCursor != null) mmsCursor.close();
         }
 
-        /* Enable this if post sorting and segmenting needed */
-        bmList.sort();
-        bmList.segment(ap.getMaxListCount(), ap.getStartOffset());
+        /* The listing only holds the requested segment, but the unread
+         * indication covers the whole folder. */
+        if (!bmList.hasUnread()) {
+            bmList.setHasUnread(msgListingHasUnread(folder, ap));
+        }
 
         return bmList;
     }
 
+    private boolean hasAddressFilter(BluetoothMapAppParams ap) {
+        String orig = ap.getFilterOriginator();
+        String recip = ap.getFilterRecipient();
+        return (orig != null && orig.length() > 0) || (recip != null && recip.length() > 0);
+    }
+
     public int msgListingSize(String folder, BluetoothMapAppParams ap) {
         if (D) Log.d(TAG, "msgListingSize: folder = " + folder);
         int cnt = 0;
@@ -1209,30 +1297,54 @@ public class BluetoothMapContent {
         FilterInfo fi = new FilterInfo();
         setFilterInfo(fi);
 
+        int generation = getListingGeneration();
+        boolean filtered = hasAddressFilter(ap);
+        String key = null;
+        if (filtered) {
+            key = listingCacheKey("size", folder, ap);
+            Integer cached = getCachedListingCount(key);
+            if (cached != null) {
+                if (D) Log.d(TAG, "msgListingSize: cached size = " + cached);
+                return cached;
+            }
+        }
+
+        /* Without period and address filters the size follows from the
+         * folder counters */
+        boolean counted = !filtered && !hasPeriodFilter(ap);
+
         if (smsSelected(fi, ap)) {
             fi.msgType = FilterInfo.TYPE_SMS;
-            String where = setWhereFilter(folder, fi, ap);
-            Cursor c = mResolver.query(Sms.CONTENT_URI,
-                SMS_PROJECTION, where, null, "date DESC");
-
-            if (c != null) {
-                cnt = c.getCount();
-                c.close();
+            if (counted) {
+                cnt = folderCount(folder, fi, ap);
+            } else {
+                String where = setWhereFilter(folder, fi, ap);
+                if (filtered) {
+                    cnt = countMatching(Sms.CONTENT_URI, SMS_PROJECTION, where, fi, ap);
+                } else {
+                    cnt = queryCount(Sms.CONTENT_URI, where);
+                }
             }
         }
 
         if (mmsSelected(fi, ap)) {
             fi.msgType = FilterInfo.TYPE_MMS;
-            String where = setWhereFilter(folder, fi, ap);
-            Cursor c = mResolver.query(Mms.CONTENT_URI,
-                MMS_PROJECTION, where, null, "date DESC");
-
-            if (c != null) {
-                cnt += c.getCount();
-                c.close();
+            if (counted) {
+                cnt += folderCount(folder, fi, ap);
+            } else {
+                String where = setWhereFilter(folder, fi, ap);
+                if (filtered) {
+                    cnt += countMatching(Mms.CONTENT_URI, MMS_PROJECTION, where, fi, ap);
+                } else {
+                    cnt += queryCount(Mms.CONTENT_URI, where);
+                }
             }
         }
 
+        if (filtered) {
+            putCachedListingCount(key, cnt, generation);
+        }
+
         if (D) Log.d(TAG, "msgListingSize: size = " + cnt);
         return cnt;
     }
@@ -1250,38 +1362,200 @@ public class BluetoothMapContent {
         FilterInfo fi = new FilterInfo();
         setFilterInfo(fi);
 
+        int generation = getListingGeneration();
+        boolean filtered = hasAddressFilter(ap);
+        String key = null;
+        if (filtered) {
+            key = listingCacheKey("unread", folder, ap);
+            Integer cached = getCachedListingCount(key);
+            if (cached != null) {
+                if (D) Log.d(TAG, "msgListingHasUnread: cached numUnread = " + cached);
+                return cached > 0;
+            }
+        }
+
+        boolean counted = !filtered && !hasPeriodFilter(ap);
+
         if (smsSelected(fi, ap)) {
             fi.msgType = FilterInfo.TYPE_SMS;
             String where = setWhereFilterFolderType(folder, fi);
             where += " AND read=0 ";
             where += setWhereFilterPeriod(ap, fi);
-            Cursor c = mResolver.query(Sms.CONTENT_URI,
-                SMS_PROJECTION, where, null, "date DESC");
-
-            if (c != null) {
-                cnt = c.getCount();
-                c.close();
+            if (filtered) {
+                cnt = countMatching(Sms.CONTENT_URI, SMS_PROJECTION, where, fi, ap);
+            } else if (counted) {
+                cnt = folderCount(folder, fi, true);
+            } else if (queryExists(Sms.CONTENT_URI, where)) {
+                cnt = 1;
             }
         }
 
-        if (mmsSelected(fi, ap)) {
+        if (cnt == 0 && mmsSelected(fi, ap)) {
             fi.msgType = FilterInfo.TYPE_MMS;
             String where = setWhereFilterFolderType(folder, fi);
             where += " AND read=0 ";
             where += setWhereFilterPeriod(ap, fi);
-            Cursor c = mResolver.query(Mms.CONTENT_URI,
-                MMS_PROJECTION, where, null, "date DESC");
-
-            if (c != null) {
-                cnt += c.getCount();
-                c.close();
+            if (filtered) {
+                cnt += countMatching(Mms.CONTENT_URI, MMS_PROJECTION, where, fi, ap);
+            } else if (counted) {
+                cnt = folderCount(folder, fi, true);
+            } else if (queryExists(Mms.CONTENT_URI, where)) {
+                cnt = 1;
             }
         }
 
+        if (filtered) {
+            putCachedListingCount(key, cnt, generation);
+        }
+
         if (D) Log.d(TAG, "msgListingHasUnread: numUnread = " + cnt);
         return (cnt>0)?true:false;
     }
 
+    private boolean hasPeriodFilter(BluetoothMapAppParams ap) {
+        return ap.getFilterPeriodBegin() != -1 || ap.getFilterPeriodEnd() != -1;
+    }
+
+    /**
+     * Get the number of messages of the type in fi in a folder, applying
+     * the read status filter.
+     */
+    private int folderCount(String folder, FilterInfo fi, BluetoothMapAppParams ap) {
+        int readStatus = ap.getFilterReadStatus();
+        if (readStatus == -1) {
+            return folderCount(folder, fi, false);
+        }
+        /* As in setWhereFilterReadStatus(), "read" wins if both are set */
+        if ((readStatus & 0x02) != 0) {
+            return folderCount(folder, fi, false) - folderCount(folder, fi, true);
+        }
+        if ((readStatus & 0x01) != 0) {
+            return folderCount(folder, fi, true);
+        }
+        return folderCount(folder, fi, false);
+    }
+
+    /**
+     * Get the number of messages, or unread messages, of the type in fi in a
+     * folder. The counts are kept in the listing cache, hence the provider is
+     * only queried again once the messages have changed.
+     */
+    private int folderCount(String folder, FilterInfo fi, boolean unread) {
+        String key = "folder/" + fi.msgType + "/" + folder + (unread ? "/unread" : "");
+        Integer cnt = getCachedListingCount(key);
+        if (cnt == null) {
+            int generation = getListingGeneration();
+            String where = setWhereFilterFolderType(folder, fi);
+            if (unread) {
+                where += " AND read=0 ";
+            }
+            cnt = queryCount((fi.msgType == FilterInfo.TYPE_SMS) ? Sms.CONTENT_URI
+                : Mms.CONTENT_URI, where);
+            putCachedListingCount(key, cnt, generation);
+        }
+        return cnt;
+    }
+
+    /**
+     * Count the rows matching a selection in the provider, without loading them.
+     */
+    private int queryCount(Uri uri, String where) {
+        int cnt = 0;
+        Cursor c = mResolver.query(uri, new String[] { "COUNT(*)" }, where, null, null);
+        if (c != null) {
+            if (c.moveToFirst()) {
+                cnt = c.getInt(0);
+            }
+            c.close();
+        }
+        return cnt;
+    }
+
+    /**
+     * Check if at least one row matches a selection in the provider.
+     */
+    private boolean queryExists(Uri uri, String where) {
+        boolean exists = false;
+        Cursor c = mResolver.query(uri, new String[] { BaseColumns._ID }, where, null,
+            BaseColumns._ID + " LIMIT 1");
+        if (c != null) {
+            exists = c.moveToFirst();
+            c.close();
+        }
+        return exists;
+    }
+
+    /**
+     * Count the rows matching a selection, which also pass the originator and
+     * recipient filters. These cannot be expressed as a provider selection.
+     */
+    private int countMatching(Uri uri, String[] projection, String where,
+            FilterInfo fi, BluetoothMapAppParams ap) {
+        int cnt = 0;
+        Cursor c = mResolver.query(uri, projection, where, null, null);
+        if (c != null) {
+            while (c.moveToNext()) {
+                if (matchAddresses(c, fi, ap)) {
+                    cnt++;
+                }
+            }
+            c.close();
+        }
+        return cnt;
+    }
+
+    private String listingCacheKey(String what, String folder, BluetoothMapAppParams ap) {
+        return what + "/" + folder + "/" + ap.getFilterMessageType()
+            + "/" + ap.getFilterPeriodBegin() + "/" + ap.getFilterPeriodEnd()
+            + "/" + ap.getFilterReadStatus() + "/" + ap.getFilterPriority()
+            + "/" + ap.getFilterOriginator() + "/" + ap.getFilterRecipient();
+    }
+
+    private Integer getCachedListingCount(String key) {
+        synchronized (mListingCache) {
+            return mListingCache.get(key);
+        }
+    }
+
+    /**
+     * Get the generation of the listing cache, to be read before the
+     * provider is queried for a count to cache.
+     */
+    private int getListingGeneration() {
+        synchronized (mListingCache) {
+            if (!mListingObserverRegistered) {
+                mResolver.registerContentObserver(MmsSms.CONTENT_URI, false, mListingObserver);
+                mListingObserverRegistered = true;
+            }
+            return mListingGeneration;
+        }
+    }
+
+    /**
+     * Cache a count, unless the messages changed since generation was read.
+     */
+    private void putCachedListingCount(String key, int cnt, int generation) {
+        synchronized (mListingCache) {
+            if (generation == mListingGeneration) {
+                mListingCache.put(key, cnt);
+            }
+        }
+    }
+
+    /**
+     * Release the resources held for the listing size cache.
+     */
+    public void close() {
+        synchronized (mListingCache) {
+            if (mListingObserverRegistered) {
+                mResolver.unregisterContentObserver(mListingObserver);
+                mListingObserverRegistered = false;
+            }
+            mListingCache.clear();
+        }
+        mContactCache.close();
+    }
+
     /**
      * Get the folder name of an SMS message or MMS message.
      * @param c the cursor pointing at the message
@@ -1328,21 +1602,10 @@ public class BluetoothMapContent {
         String[] emailAddresses = null;
         Cursor p;
 
-        Uri uri = Uri.withAppendedPath(PhoneLookup.CONTENT_FILTER_URI,
-                Uri.encode(phone));
-
-        String[] projection = {Contacts._ID, Contacts.DISPLAY_NAME};
-        String selection = Contacts.IN_VISIBLE_GROUP + "=1";
-        String orderBy = Contacts._ID + " ASC";
-
         // Get the contact _ID and name
-        p = mResolver.query(uri, projection, selection, null, orderBy);
-        if (p != null && p.getCount() >= 1) {
-            p.moveToFirst();
-            contactId = p.getString(p.getColumnIndex(Contacts._ID));
-            contactName = p.getString(p.getColumnIndex(Contacts.DISPLAY_NAME));
-        }
-        p.close();
+        BluetoothMapContactCache.Contact contact = mContactCache.lookup(phone);
+        contactId = contact.contactId;
+        contactName = contact.name;
 
         // Bail out if we are unable to find a contact, based on the phone number
         if(contactId == null) {
@@ -1518,12 +1781,38 @@ public class BluetoothMapContent {
         return retVal;
     }
 
+    /**
+     * Get the size of a mms data part, without reading it.
+     * @param uri the uri of the part
+     * @return the size in bytes, or -1 if unknown.
+     */
+    private long getMmsDataPartLength(Uri uri) {
+        ParcelFileDescriptor pfd = null;
+        try {
+            pfd = mResolver.openFileDescriptor(uri, "r");
+            return (pfd != null) ? pfd.getStatSize() : -1;
+        } catch (FileNotFoundException e) {
+            Log.w(TAG,"Unable to open part data",e);
+            return -1;
+        } finally {
+            if (pfd != null) {
+                try {
+                    pfd.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+    }
+
     /**
      * Read out the mms parts and update the bMessage object provided i {@linkplain message}
      * @param id the content provider ID of the message
      * @param message the bMessage object to add the information to
+     * @param streamParts if true, the data of binary parts is not read, but
+     * left to be streamed from the provider when the message is encoded.
      */
-    private void extractMmsParts(long id, BluetoothMapbMessageMmsEmail message)
+    private void extractMmsParts(long id, BluetoothMapbMessageMmsEmail message,
+            boolean streamParts)
     {
         /* TODO: If the attachment appParam is set to "no", only add the text parts.
          * (content type contains "text" - case insensitive) */
@@ -1575,7 +1864,19 @@ public class BluetoothMapContent {
                         part.charsetName = "utf-8";
                     }
                     else {
-                        part.data = readMmsDataPart(partId);
+                        Uri partUri = Uri.parse(String.format("content://mms/part/%d", partId));
+                        long partLength = -1;
+                        if(streamParts && contentType != null &&
+                                !contentType.toUpperCase().contains("TEXT") &&
+                                !contentType.toUpperCase().contains("SMIL")) {
+                            partLength = getMmsDataPartLength(partUri);
+                        }
+                        if(partLength >= 0) {
+                            part.dataUri = partUri;
+                            part.dataLength = partLength;
+                        } else {
+                            part.data = readMmsDataPart(partId);
+                        }
                         if(charset != null)
                             part.charsetName = CharacterSets.getMimeName(Integer.parseInt(charset));
                     }
@@ -1604,6 +1905,31 @@ public class BluetoothMapContent {
      * which is guaranteed to be supported on an android device
      */
     public byte[] getMmsMessage(long id, BluetoothMapAppParams appParams) throws UnsupportedEncodingException {
+        return loadMmsMessage(id, appParams, false).encode();
+    }
+
+    /**
+     * Write a mms bMessage loaded with streamed parts to a stream. Binary parts
+     * are read from the provider and Base64 encoded while written.
+     * @param message the bMessage from loadMmsMessage(id, appParams, true).
+     * @param out the stream to write the bMessage to, e.g. the OBEX body.
+     * @throws IOException if writing to the stream, or reading a part fails.
+     */
+    public void writeMmsMessage(BluetoothMapbMessageMmsEmail message, OutputStream out)
+            throws IOException {
+        message.encodeMms(out, mResolver);
+    }
+
+    /**
+     * Load a mms into a bMessage object.
+     * @param id the content provider id for the message to fetch.
+     * @param appParams The application parameter object received from the client.
+     * @param streamParts leave binary parts to be read when encoding.
+     * @return the bMessage.
+     * @throws IllegalArgumentException if the message does not exist.
+     */
+    public BluetoothMapbMessageMmsEmail loadMmsMessage(long id, BluetoothMapAppParams appParams,
+            boolean streamParts) {
         int msgBox, threadId;
         BluetoothMapbMessageMmsEmail message = new BluetoothMapbMessageMmsEmail();
         Cursor c = mResolver.query(Mms.CONTENT_URI, MMS_PROJECTION, "_ID = " + id, null, null);
@@ -1632,14 +1958,14 @@ public class BluetoothMapContent {
             // c.getInt(c.getColumnIndex(Mms.STATUS)); - don't know what this is
 
             // The parts
-            extractMmsParts(id, message);
+            extractMmsParts(id, message, streamParts);
 
             // The addresses
             extractMmsAddresses(id, message);
 
             c.close();
 
-            return message.encode();
+            return message;
         }
         else if(c != null) {
             c.close();
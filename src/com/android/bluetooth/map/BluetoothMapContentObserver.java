@@ -25,6 +25,7 @@ import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.Map;
 import java.util.Set;
 
@@ -164,7 +165,7 @@ public class BluetoothMapContentObserver {
         "outbox",
     };
 
-    private class Event {
+    static class Event {
         String eventType;
         long handle;
         String folder;
@@ -243,6 +244,30 @@ public class BluetoothMapContentObserver {
     private Map<Long, Msg> mMsgListMms =
         Collections.synchronizedMap(new HashMap<Long, Msg>());
 
+    /* Incremental change tracking: rows above the high-water _id of a table are
+     * new, and rows in a transient folder (draft, outbox, ...) or MMS inbox
+     * notifications not yet retrieved are re-read on every change. The rows of
+     * the inbox and sent folders are checked by their count and _id sum, which
+     * change on a delete or on a move out of or into the folder. A mismatch
+     * triggers the full table diff on the same change. */
+
+    static final String[] SMS_TRACK_PROJECTION = new String[] {
+        BaseColumns._ID,
+        Sms.TYPE,
+    };
+
+    static final String[] MMS_TRACK_PROJECTION = new String[] {
+        BaseColumns._ID,
+        Mms.MESSAGE_BOX,
+        Mms.MESSAGE_TYPE,
+    };
+
+    private long mMaxIdSms = -1;
+    private long mMaxIdMms = -1;
+
+    /* MMS inbox rows that are not yet a retrieve conf, hence not reported */
+    private Set<Long> mPendingMms = new HashSet<Long>();
+
     public void registerObserver(BluetoothMnsObexClient mns, int masId) {
         if (V) Log.d(TAG, "registerObserver");
         /* Use MmsSms Uri since the Sms Uri is not notified on deletes */
@@ -267,11 +292,8 @@ public class BluetoothMapContentObserver {
             return;
         }
 
-        try {
-            mMnsClient.sendEvent(evt.encode(), mMasId);
-        } catch (UnsupportedEncodingException ex) {
-            /* do nothing */
-        }
+        /* Queued on the MNS thread, where bursts are coalesced before sending */
+        mMnsClient.queueEvent(evt, mMasId);
     }
 
     private void initMsgList() {
@@ -281,9 +303,10 @@ public class BluetoothMapContentObserver {
         mMsgListMms.clear();
 
         HashMap<Long, Msg> msgListSms = new HashMap<Long, Msg>();
+        long maxIdSms = -1;
 
         Cursor c = mResolver.query(Sms.CONTENT_URI,
-            SMS_PROJECTION, null, null, null);
+            SMS_TRACK_PROJECTION, null, null, null);
 
         if (c != null && c.moveToFirst()) {
             do {
@@ -292,16 +315,21 @@ public class BluetoothMapContentObserver {
 
                 Msg msg = new Msg(id, type);
                 msgListSms.put(id, msg);
+                maxIdSms = Math.max(maxIdSms, id);
             } while (c.moveToNext());
+        }
+        if (c != null) {
             c.close();
         }
 
-        mMsgListSms = msgListSms;
+        mMsgListSms = Collections.synchronizedMap(msgListSms);
+        mMaxIdSms = maxIdSms;
 
         HashMap<Long, Msg> msgListMms = new HashMap<Long, Msg>();
+        long maxIdMms = -1;
 
         c = mResolver.query(Mms.CONTENT_URI,
-            MMS_PROJECTION, null, null, null);
+            MMS_TRACK_PROJECTION, null, null, null);
 
         if (c != null && c.moveToFirst()) {
             do {
@@ -310,127 +338,336 @@ public class BluetoothMapContentObserver {
 
                 Msg msg = new Msg(id, type);
                 msgListMms.put(id, msg);
+                maxIdMms = Math.max(maxIdMms, id);
             } while (c.moveToNext());
+        }
+        if (c != null) {
+            c.close();
+        }
+
+        mMsgListMms = Collections.synchronizedMap(msgListMms);
+        mMaxIdMms = maxIdMms;
+        mPendingMms.clear();
+    }
+
+    private static boolean isTransientSms(int type) {
+        return type != Sms.MESSAGE_TYPE_INBOX && type != Sms.MESSAGE_TYPE_SENT;
+    }
+
+    private static boolean isTransientMms(int type) {
+        return type != Mms.MESSAGE_BOX_INBOX && type != Mms.MESSAGE_BOX_SENT;
+    }
+
+    /**
+     * Build a selection of the rows above the high-water _id plus the rows
+     * listed in ids.
+     */
+    private static String trackSelection(long maxId, Set<Long> ids) {
+        StringBuilder where = new StringBuilder();
+        where.append(BaseColumns._ID).append(" > ").append(maxId);
+        if (!ids.isEmpty()) {
+            where.append(" OR ").append(BaseColumns._ID).append(" IN (");
+            boolean first = true;
+            for (Long id : ids) {
+                if (!first) where.append(",");
+                where.append(id);
+                first = false;
+            }
+            where.append(")");
+        }
+        return where.toString();
+    }
+
+    /**
+     * Get the count and the _id sum of the rows of a folder, up to and including
+     * the high-water _id, without loading the rows.
+     */
+    private long[] queryFolderStats(Uri uri, String folderColumn, int folder, long maxId) {
+        long[] stats = new long[2];
+        Cursor c = mResolver.query(uri,
+            new String[] { "COUNT(*)", "SUM(" + BaseColumns._ID + ")" },
+            BaseColumns._ID + " <= " + maxId + " AND " + folderColumn + " = " + folder,
+            null, null);
+        if (c != null) {
+            if (c.moveToFirst()) {
+                stats[0] = c.getLong(0);
+                stats[1] = c.getLong(1);
+            }
             c.close();
         }
+        return stats;
+    }
 
-        mMsgListMms = msgListMms;
+    private static void addFolderStats(long[] stats, long id) {
+        stats[0]++;
+        stats[1] += id;
+    }
+
+    /**
+     * Check the SMS inbox and sent folders against the tracked messages.
+     */
+    private boolean folderStatsMatchSms() {
+        long[] inbox = new long[2];
+        long[] sent = new long[2];
+        for (Msg msg : mMsgListSms.values()) {
+            if (msg.type == Sms.MESSAGE_TYPE_INBOX) {
+                addFolderStats(inbox, msg.id);
+            } else if (msg.type == Sms.MESSAGE_TYPE_SENT) {
+                addFolderStats(sent, msg.id);
+            }
+        }
+        return Arrays.equals(inbox, queryFolderStats(Sms.CONTENT_URI, Sms.TYPE,
+                Sms.MESSAGE_TYPE_INBOX, mMaxIdSms))
+            && Arrays.equals(sent, queryFolderStats(Sms.CONTENT_URI, Sms.TYPE,
+                Sms.MESSAGE_TYPE_SENT, mMaxIdSms));
+    }
+
+    /**
+     * Check the MMS inbox and sent folders against the tracked messages. The
+     * pending notifications are in the inbox as well.
+     */
+    private boolean folderStatsMatchMms() {
+        long[] inbox = new long[2];
+        long[] sent = new long[2];
+        for (Msg msg : mMsgListMms.values()) {
+            if (msg.type == Mms.MESSAGE_BOX_INBOX) {
+                addFolderStats(inbox, msg.id);
+            } else if (msg.type == Mms.MESSAGE_BOX_SENT) {
+                addFolderStats(sent, msg.id);
+            }
+        }
+        for (Long id : mPendingMms) {
+            addFolderStats(inbox, id);
+        }
+        return Arrays.equals(inbox, queryFolderStats(Mms.CONTENT_URI, Mms.MESSAGE_BOX,
+                Mms.MESSAGE_BOX_INBOX, mMaxIdMms))
+            && Arrays.equals(sent, queryFolderStats(Mms.CONTENT_URI, Mms.MESSAGE_BOX,
+                Mms.MESSAGE_BOX_SENT, mMaxIdMms));
+    }
+
+    private void updateMsgSms(long id, int type) {
+        Msg msg = mMsgListSms.get(id);
+
+        if (msg == null) {
+            /* New message */
+            msg = new Msg(id, type);
+            mMsgListSms.put(id, msg);
+
+            if (folderSms[type].equals("inbox")) {
+                Event evt = new Event("NewMessage", id, folderSms[type],
+                    null, mSmsType);
+                sendEvent(evt);
+            }
+        } else {
+            /* Existing message */
+            if (type != msg.type) {
+                Log.d(TAG, "new type: " + type + " old type: " + msg.type);
+                Event evt = new Event("MessageShift", id, folderSms[type],
+                    folderSms[msg.type], mSmsType);
+                sendEvent(evt);
+                msg.type = type;
+            }
+        }
+        mMaxIdSms = Math.max(mMaxIdSms, id);
+    }
+
+    private void updateMsgMms(long id, int type, int mtype) {
+        Msg msg = mMsgListMms.get(id);
+        mMaxIdMms = Math.max(mMaxIdMms, id);
+
+        if (msg == null) {
+            /* New message - only notify on retrieve conf */
+            if (folderMms[type].equals("inbox") &&
+                mtype != MESSAGE_TYPE_RETRIEVE_CONF) {
+                    mPendingMms.add(id);
+                    return;
+            }
+            mPendingMms.remove(id);
+
+            msg = new Msg(id, type);
+            mMsgListMms.put(id, msg);
+
+            if (folderMms[type].equals("inbox")) {
+                Event evt = new Event("NewMessage", id, folderMms[type],
+                    null, TYPE.MMS);
+                sendEvent(evt);
+            }
+        } else {
+            /* Existing message */
+            if (type != msg.type) {
+                Log.d(TAG, "new type: " + type + " old type: " + msg.type);
+                Event evt = new Event("MessageShift", id, folderMms[type],
+                    folderMms[msg.type], TYPE.MMS);
+                sendEvent(evt);
+                msg.type = type;
+
+                if (folderMms[type].equals("sent")) {
+                    evt = new Event("SendingSuccess", id,
+                        folderSms[type], null, TYPE.MMS);
+                    sendEvent(evt);
+                }
+            }
+        }
     }
 
     private void handleMsgListChangesSms() {
         if (V) Log.d(TAG, "handleMsgListChangesSms");
 
-        HashMap<Long, Msg> msgListSms = new HashMap<Long, Msg>();
+        synchronized(mMsgListSms) {
+            Set<Long> tracked = new HashSet<Long>();
+            for (Msg msg : mMsgListSms.values()) {
+                if (isTransientSms(msg.type)) {
+                    tracked.add(msg.id);
+                }
+            }
+            long maxId = mMaxIdSms;
 
-        Cursor c = mResolver.query(Sms.CONTENT_URI,
-            SMS_PROJECTION, null, null, null);
+            Cursor c = mResolver.query(Sms.CONTENT_URI, SMS_TRACK_PROJECTION,
+                trackSelection(maxId, tracked), null, null);
 
-        synchronized(mMsgListSms) {
             if (c != null && c.moveToFirst()) {
                 do {
                     long id = c.getLong(c.getColumnIndex(BaseColumns._ID));
                     int type = c.getInt(c.getColumnIndex(Sms.TYPE));
 
-                    Msg msg = mMsgListSms.remove(id);
-
-                    if (msg == null) {
-                        /* New message */
-                        msg = new Msg(id, type);
-                        msgListSms.put(id, msg);
-
-                        if (folderSms[type].equals("inbox")) {
-                            Event evt = new Event("NewMessage", id, folderSms[type],
-                                null, mSmsType);
-                            sendEvent(evt);
-                        }
-                    } else {
-                        /* Existing message */
-                        if (type != msg.type) {
-                            Log.d(TAG, "new type: " + type + " old type: " + msg.type);
-                            Event evt = new Event("MessageShift", id, folderSms[type],
-                                folderSms[msg.type], mSmsType);
-                            sendEvent(evt);
-                            msg.type = type;
-                        }
-                        msgListSms.put(id, msg);
-                    }
+                    tracked.remove(id);
+                    updateMsgSms(id, type);
                 } while (c.moveToNext());
+            }
+            if (c != null) {
                 c.close();
             }
 
-            for (Msg msg : mMsgListSms.values()) {
+            /* Tracked rows no longer in the table have been deleted */
+            for (Long id : tracked) {
+                Msg msg = mMsgListSms.remove(id);
                 Event evt = new Event("MessageDeleted", msg.id, "deleted",
                     folderSms[msg.type], mSmsType);
                 sendEvent(evt);
             }
 
-            mMsgListSms = msgListSms;
+            if (!folderStatsMatchSms()) {
+                fullSyncSms();
+            }
+        }
+    }
+
+    private void fullSyncSms() {
+        if (V) Log.d(TAG, "fullSyncSms");
+
+        Set<Long> seen = new HashSet<Long>();
+
+        Cursor c = mResolver.query(Sms.CONTENT_URI,
+            SMS_TRACK_PROJECTION, null, null, null);
+
+        if (c != null && c.moveToFirst()) {
+            do {
+                long id = c.getLong(c.getColumnIndex(BaseColumns._ID));
+                int type = c.getInt(c.getColumnIndex(Sms.TYPE));
+
+                seen.add(id);
+                updateMsgSms(id, type);
+            } while (c.moveToNext());
+        }
+        if (c != null) {
+            c.close();
+        }
+
+        Iterator<Msg> it = mMsgListSms.values().iterator();
+        while (it.hasNext()) {
+            Msg msg = it.next();
+            if (!seen.contains(msg.id)) {
+                Event evt = new Event("MessageDeleted", msg.id, "deleted",
+                    folderSms[msg.type], mSmsType);
+                sendEvent(evt);
+                it.remove();
+            }
         }
     }
 
     private void handleMsgListChangesMms() {
         if (V) Log.d(TAG, "handleMsgListChangesMms");
 
-        HashMap<Long, Msg> msgListMms = new HashMap<Long, Msg>();
+        synchronized(mMsgListMms) {
+            Set<Long> tracked = new HashSet<Long>(mPendingMms);
+            for (Msg msg : mMsgListMms.values()) {
+                if (isTransientMms(msg.type)) {
+                    tracked.add(msg.id);
+                }
+            }
+            long maxId = mMaxIdMms;
 
-        Cursor c = mResolver.query(Mms.CONTENT_URI,
-            MMS_PROJECTION, null, null, null);
+            Cursor c = mResolver.query(Mms.CONTENT_URI, MMS_TRACK_PROJECTION,
+                trackSelection(maxId, tracked), null, null);
 
-        synchronized(mMsgListMms) {
             if (c != null && c.moveToFirst()) {
                 do {
                     long id = c.getLong(c.getColumnIndex(BaseColumns._ID));
                     int type = c.getInt(c.getColumnIndex(Mms.MESSAGE_BOX));
                     int mtype = c.getInt(c.getColumnIndex(Mms.MESSAGE_TYPE));
 
-                    Msg msg = mMsgListMms.remove(id);
-
-                    if (msg == null) {
-                        /* New message - only notify on retrieve conf */
-                        if (folderMms[type].equals("inbox") &&
-                            mtype != MESSAGE_TYPE_RETRIEVE_CONF) {
-                                continue;
-                        }
-
-                        msg = new Msg(id, type);
-                        msgListMms.put(id, msg);
-
-                        if (folderMms[type].equals("inbox")) {
-                            Event evt = new Event("NewMessage", id, folderMms[type],
-                                null, TYPE.MMS);
-                            sendEvent(evt);
-                        }
-                    } else {
-                        /* Existing message */
-                        if (type != msg.type) {
-                            Log.d(TAG, "new type: " + type + " old type: " + msg.type);
-                            Event evt = new Event("MessageShift", id, folderMms[type],
-                                folderMms[msg.type], TYPE.MMS);
-                            sendEvent(evt);
-                            msg.type = type;
-
-                            if (folderMms[type].equals("sent")) {
-                                evt = new Event("SendingSuccess", id,
-                                    folderSms[type], null, TYPE.MMS);
-                                sendEvent(evt);
-                            }
-                        }
-                        msgListMms.put(id, msg);
-                    }
+                    tracked.remove(id);
+                    updateMsgMms(id, type, mtype);
                 } while (c.moveToNext());
+            }
+            if (c != null) {
                 c.close();
             }
 
-            for (Msg msg : mMsgListMms.values()) {
+            /* Tracked rows no longer in the table have been deleted. Pending
+             * notifications were never reported, so they go silently. */
+            for (Long id : tracked) {
+                if (mPendingMms.remove(id)) {
+                    continue;
+                }
+                Msg msg = mMsgListMms.remove(id);
                 Event evt = new Event("MessageDeleted", msg.id, "deleted",
                     folderMms[msg.type], TYPE.MMS);
                 sendEvent(evt);
             }
 
-            mMsgListMms = msgListMms;
+            if (!folderStatsMatchMms()) {
+                fullSyncMms();
+            }
+        }
+    }
+
+    private void fullSyncMms() {
+        if (V) Log.d(TAG, "fullSyncMms");
+
+        Set<Long> seen = new HashSet<Long>();
+
+        Cursor c = mResolver.query(Mms.CONTENT_URI,
+            MMS_TRACK_PROJECTION, null, null, null);
+
+        mPendingMms.clear();
+        if (c != null && c.moveToFirst()) {
+            do {
+                long id = c.getLong(c.getColumnIndex(BaseColumns._ID));
+                int type = c.getInt(c.getColumnIndex(Mms.MESSAGE_BOX));
+                int mtype = c.getInt(c.getColumnIndex(Mms.MESSAGE_TYPE));
+
+                seen.add(id);
+                updateMsgMms(id, type, mtype);
+            } while (c.moveToNext());
+        }
+        if (c != null) {
+            c.close();
+        }
+
+        Iterator<Msg> it = mMsgListMms.values().iterator();
+        while (it.hasNext()) {
+            Msg msg = it.next();
+            if (!seen.contains(msg.id)) {
+                Event evt = new Event("MessageDeleted", msg.id, "deleted",
+                    folderMms[msg.type], TYPE.MMS);
+                sendEvent(evt);
+                it.remove();
+            }
         }
     }
 
+    /* The MmsSms observer is not told which table changed, hence check both */
     private void handleMsgListChanges() {
         handleMsgListChangesSms();
         handleMsgListChangesMms();
@@ -31,6 +31,11 @@ public class BluetoothMapFolderElement {
     private String name;
     private BluetoothMapFolderElement parent = null;
     private ArrayList<BluetoothMapFolderElement> subFolders;
+    /* The last encoded folder listing - the folder tree rarely changes, and
+     * clients request the same listing each time they browse a folder */
+    private byte[] encodedListing = null;
+    private int encodedOffset;
+    private int encodedCount;
 
     public BluetoothMapFolderElement( String name, BluetoothMapFolderElement parrent ){
         this.name = name;
@@ -69,6 +74,7 @@ public class BluetoothMapFolderElement {
     public BluetoothMapFolderElement addFolder(String name){
         BluetoothMapFolderElement newFolder = new BluetoothMapFolderElement(name, this);
         subFolders.add(newFolder);
+        encodedListing = null;
         return newFolder;
     }
 
@@ -94,6 +100,9 @@ public class BluetoothMapFolderElement {
     }
 
     public byte[] encode(int offset, int count) throws UnsupportedEncodingException {
+        if(encodedListing != null && encodedOffset == offset && encodedCount == count)
+            return encodedListing;
+
         StringWriter sw = new StringWriter();
         XmlSerializer xmlMsgElement = Xml.newSerializer();
         int i, stopIndex;
@@ -128,6 +137,9 @@ public class BluetoothMapFolderElement {
             // TODO Auto-generated catch block
             e.printStackTrace();
         }
-        return sw.toString().getBytes("UTF-8");
+        encodedListing = sw.toString().getBytes("UTF-8");
+        encodedOffset = offset;
+        encodedCount = count;
+        return encodedListing;
     }
 }
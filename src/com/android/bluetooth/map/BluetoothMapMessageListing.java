@@ -14,9 +14,12 @@
 */
 package com.android.bluetooth.map;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.StringWriter;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
 import java.io.UnsupportedEncodingException;
+import java.io.Writer;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
@@ -64,6 +67,16 @@ public class BluetoothMapMessageListing {
         return hasUnread;
     }
 
+    /**
+     * Set the unread indication, e.g. when the list only holds a segment
+     * of the messages it was built from.
+     * @param hasUnread true if there are unread messages
+     */
+    public void setHasUnread(boolean hasUnread)
+    {
+        this.hasUnread = hasUnread;
+    }
+
     /**
      * Encode the list of BluetoothMapMessageListingElement(s) into a UTF-8
      * formatted XML-string in a trimmed byte array
@@ -73,16 +86,41 @@ public class BluetoothMapMessageListing {
      *             if UTF-8 encoding is unsupported on the platform.
      */
     public byte[] encode() throws UnsupportedEncodingException {
-        StringWriter sw = new StringWriter();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            encode(out);
+        } catch (UnsupportedEncodingException e) {
+            throw e;
+        } catch (IOException e) {
+            Log.w(TAG, e.toString());
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Encode the list of BluetoothMapMessageListingElement(s) as UTF-8
+     * formatted XML directly into a stream, one element at a time. Nothing
+     * beyond the writer buffer is held in memory, hence the stream can be the
+     * OBEX body stream. The stream is flushed, but not closed.
+     *
+     * @param out the stream to write the XML to.
+     * @throws IOException
+     *             if writing to the stream fails, e.g. when the operation
+     *             was aborted.
+     */
+    public void encode(OutputStream out) throws IOException {
+        Writer writer = new OutputStreamWriter(out, "UTF-8");
         XmlSerializer xmlMsgElement = Xml.newSerializer();
         try {
-            xmlMsgElement.setOutput(sw);
+            xmlMsgElement.setOutput(writer);
             xmlMsgElement.startDocument(null, null);
             xmlMsgElement.startTag("", "MAP-msg-listing");
             xmlMsgElement.attribute("", "version", "1.0");
             // Do the XML encoding of list
-            for (BluetoothMapMessageListingElement element : list) {
-                element.encode(xmlMsgElement); // Append the list element
+            if (list != null) {
+                for (BluetoothMapMessageListingElement element : list) {
+                    element.encode(xmlMsgElement); // Append the list element
+                }
             }
             xmlMsgElement.endTag("", "MAP-msg-listing");
             xmlMsgElement.endDocument();
@@ -90,10 +128,8 @@ public class BluetoothMapMessageListing {
             Log.w(TAG, e.toString());
         } catch (IllegalStateException e) {
             Log.w(TAG, e.toString());
-        } catch (IOException e) {
-            Log.w(TAG, e.toString());
         }
-        return sw.toString().getBytes("UTF-8");
+        writer.flush();
     }
 
     public void sort() {
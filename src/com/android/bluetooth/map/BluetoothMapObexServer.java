@@ -397,6 +397,7 @@ public class BluetoothMapObexServer extends ServerRequestHandler {
     public void onClose() {
         if (V) Log.v(TAG, "BluetoothMapObexServer: onClose");
         acquireMapLock();
+        mOutContent.close();
         if (mCallback != null) {
             Message msg = Message.obtain(mCallback);
             msg.what = BluetoothMapService.MSG_SERVERSESSION_CLOSE;
@@ -494,12 +495,11 @@ public class BluetoothMapObexServer extends ServerRequestHandler {
      */
     private int sendMessageListingRsp(Operation op, BluetoothMapAppParams appParams, String folderName){
         OutputStream outStream = null;
-        byte[] outBytes = null;
-        int maxChunkSize, bytesToWrite, bytesWritten = 0, listSize;
+        int listSize;
         boolean hasUnread = false;
         HeaderSet replyHeaders = new HeaderSet();
         BluetoothMapAppParams outAppParams = new BluetoothMapAppParams();
-        BluetoothMapMessageListing outList;
+        BluetoothMapMessageListing outList = null;
         if(folderName == null) {
             folderName = mCurrentFolder.getName();
         }
@@ -522,9 +522,7 @@ public class BluetoothMapObexServer extends ServerRequestHandler {
 
             if(appParams.getMaxListCount() != 0) {
                 outList = mOutContent.msgListing(folderName, appParams);
-                // Generate the byte stream
                 outAppParams.setMessageListingSize(outList.getCount());
-                outBytes = outList.encode();
                 hasUnread = outList.hasUnread();
             }
             else {
@@ -556,13 +554,14 @@ public class BluetoothMapObexServer extends ServerRequestHandler {
             return ResponseCodes.OBEX_HTTP_BAD_REQUEST;
         }
 
-        maxChunkSize = op.getMaxPacketSize(); // This must be called after setting the headers.
-        if(outBytes != null) {
+        if(outList != null) {
+            /* Encode the listing straight into the OBEX body, the stream sends
+             * a packet each time getMaxPacketSize() bytes have been written. */
+            boolean success = false;
             try {
-                while (bytesWritten < outBytes.length && sIsAborted == false) {
-                    bytesToWrite = Math.min(maxChunkSize, outBytes.length - bytesWritten);
-                    outStream.write(outBytes, bytesWritten, bytesToWrite);
-                    bytesWritten += bytesToWrite;
+                if(sIsAborted == false) {
+                    outList.encode(outStream);
+                    success = true;
                 }
             } catch (IOException e) {
                 if(V) Log.w(TAG,e);
@@ -576,7 +575,7 @@ public class BluetoothMapObexServer extends ServerRequestHandler {
                     }
                 }
             }
-            if(bytesWritten != outBytes.length)
+            if(!success || sIsAborted)
                 return ResponseCodes.OBEX_HTTP_BAD_REQUEST;
         } else {
             try {
@@ -691,12 +690,19 @@ public class BluetoothMapObexServer extends ServerRequestHandler {
      */
     private int sendGetMessageRsp(Operation op, String handle, BluetoothMapAppParams appParams){
         OutputStream outStream ;
-        byte[] outBytes;
+        byte[] outBytes = null;
+        BluetoothMapbMessageMmsEmail mmsMessage = null;
         int maxChunkSize, bytesToWrite, bytesWritten = 0;
         long msgHandle;
 
         try {
-            outBytes = mOutContent.getMessage(handle, appParams);
+            if(BluetoothMapUtils.getMsgTypeFromHandle(handle) == TYPE.MMS) {
+                /* The MMS parts are streamed from the provider while sending */
+                mmsMessage = mOutContent.loadMmsMessage(BluetoothMapUtils.getCpHandle(handle),
+                        appParams, true);
+            } else {
+                outBytes = mOutContent.getMessage(handle, appParams);
+            }
             outStream = op.openOutputStream();
 
         } catch (IOException e) {
@@ -707,6 +713,29 @@ public class BluetoothMapObexServer extends ServerRequestHandler {
             return ResponseCodes.OBEX_HTTP_BAD_REQUEST;
         }
 
+        if(mmsMessage != null) {
+            boolean success = false;
+            try {
+                if(sIsAborted == false) {
+                    mOutContent.writeMmsMessage(mmsMessage, outStream);
+                    success = true;
+                }
+            } catch (IOException e) {
+                if(V) Log.w(TAG,e);
+                // We were probably aborted or disconnected
+            } finally {
+                try {
+                    outStream.close();
+                } catch (IOException e) {
+                    // If an error occurs during close, there is no more cleanup to do
+                }
+            }
+            if(success && sIsAborted == false)
+                return ResponseCodes.OBEX_HTTP_OK;
+            else
+                return ResponseCodes.OBEX_HTTP_BAD_REQUEST;
+        }
+
         maxChunkSize = op.getMaxPacketSize(); // This must be called after setting the headers.
 
         if(outBytes != null) {
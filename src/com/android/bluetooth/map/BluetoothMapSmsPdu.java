@@ -18,15 +18,12 @@ import static android.telephony.TelephonyManager.PHONE_TYPE_CDMA;
 import static com.android.internal.telephony.SmsConstants.ENCODING_7BIT;
 
 import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.EOFException;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
-import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Calendar;
-import java.util.Date;
 import java.util.Random;
 
 import android.telephony.PhoneNumberUtils;
@@ -343,30 +340,37 @@ public class BluetoothMapSmsPdu {
             }
         }
 
-        private void gsmWriteDate(ByteArrayOutputStream header, long time) throws UnsupportedEncodingException {
-            SimpleDateFormat format = new SimpleDateFormat("yyMMddHHmmss");
-            Date date = new Date(time);
-            String timeStr = format.format(date); // Format to YYMMDDTHHMMSS UTC time
-            if(V) Log.v(TAG, "Generated time string: " + timeStr);
-            byte[] timeChars = timeStr.getBytes("US-ASCII");
-
-            for(int i = 0, n = timeStr.length(); i < n; i+=2) {
-                header.write((timeChars[i+1]-0x30) << 4 | (timeChars[i]-0x30)); // Offset from ascii char to decimal value
-            }
-
+        /**
+         * Write the 7 octet service center time stamp, as semi-octets in local time followed by
+         * the time zone in quarters of an hour.
+         * @return the offset following the time stamp.
+         */
+        private int gsmWriteDate(byte[] header, int offset, long time) {
             Calendar cal = Calendar.getInstance();
-            int offset = (cal.get(Calendar.ZONE_OFFSET) + cal.get(Calendar.DST_OFFSET)) / (15 * 60 * 1000); /* offset in quarters of an hour */
-            String offsetString;
-            if(offset < 0) {
-                offsetString = String.format("%1$02d", -(offset));
-                char[] offsetChars = offsetString.toCharArray();
-                header.write((offsetChars[1]-0x30) << 4 | 0x40 | (offsetChars[0]-0x30));
+            cal.setTimeInMillis(time);
+            offset = gsmWriteSemiOctets(header, offset, cal.get(Calendar.YEAR) % 100);
+            offset = gsmWriteSemiOctets(header, offset, cal.get(Calendar.MONTH) + 1);
+            offset = gsmWriteSemiOctets(header, offset, cal.get(Calendar.DAY_OF_MONTH));
+            offset = gsmWriteSemiOctets(header, offset, cal.get(Calendar.HOUR_OF_DAY));
+            offset = gsmWriteSemiOctets(header, offset, cal.get(Calendar.MINUTE));
+            offset = gsmWriteSemiOctets(header, offset, cal.get(Calendar.SECOND));
+            if(V) Log.v(TAG, "Generated time stamp: " + time);
+
+            int zone = (cal.get(Calendar.ZONE_OFFSET) + cal.get(Calendar.DST_OFFSET)) / (15 * 60 * 1000); /* offset in quarters of an hour */
+            if(zone < 0) {
+                offset = gsmWriteSemiOctets(header, offset, -zone);
+                header[offset-1] |= 0x40;
             }
             else {
-                offsetString = String.format("%1$02d", offset);
-                char[] offsetChars = offsetString.toCharArray();
-                header.write((offsetChars[1]-0x30) << 4 | (offsetChars[0]-0x30));
+                offset = gsmWriteSemiOctets(header, offset, zone);
             }
+            return offset;
+        }
+
+        /* Write a two digit value as one octet, least significant digit in the upper nibble */
+        private static int gsmWriteSemiOctets(byte[] header, int offset, int value) {
+            header[offset] = (byte)((value % 10) << 4 | (value / 10) % 10);
+            return offset + 1;
         }
 
 /*        private void gsmSubmitExtractUserData() {
@@ -388,36 +392,38 @@ public class BluetoothMapSmsPdu {
          */
         public void gsmChangeToDeliverPdu(long date, String originator)
         {
-            ByteArrayOutputStream newPdu = new ByteArrayOutputStream(22); // 22 is the max length of the deliver pdu header
-            byte[] encodedAddress;
-            int userDataLength = 0;
-            try {
-                newPdu.write(TP_MIT_DELIVER | TP_MMS_NO_MORE | TP_RP_NO_REPLY_PATH | TP_SRI_NO_REPORT
-                             | (data[0] & 0xff)  & TP_UDHI_MASK);
-                encodedAddress = PhoneNumberUtils.networkPortionToCalledPartyBCDWithLength(originator);
-                if(encodedAddress != null) {
-                    int padding = (encodedAddress[encodedAddress.length-1] & 0xf0) == 0xf0 ? 1 : 0;
-                    encodedAddress[0] = (byte)((encodedAddress[0]-1)*2 - padding); // Convert from octet length to semi octet length
-                    // Insert originator address into the header - this includes the length
-                    newPdu.write(encodedAddress);
-                } else {
-                    newPdu.write(0);    /* zero length */
-                    newPdu.write(0x81); /* International type */
-                }
-
-                newPdu.write(data[gsmSubmitGetTpPidOffset()]);
-                newPdu.write(data[gsmSubmitGetTpDcsOffset()]);
-                // Generate service center time stamp
-                gsmWriteDate(newPdu, date);
-                userDataLength = (data[gsmSubmitGetTpUdlOffset()] & 0xff);
-                newPdu.write(userDataLength);
-                // Copy the pdu user data - keep in mind that the userDataLength is not the length in bytes for 7-bit encoding.
-                newPdu.write(data, gsmSubmitGetTpUdOffset(), data.length - gsmSubmitGetTpUdOffset());
-            } catch (IOException e) {
-                Log.e(TAG, "", e);
+            byte[] encodedAddress = PhoneNumberUtils.networkPortionToCalledPartyBCDWithLength(originator);
+            int userDataOffset = gsmSubmitGetTpUdOffset();
+            int userDataSize = data.length - userDataOffset;
+            if(userDataSize < 0) {
                 throw new IllegalArgumentException("Failed to change type to deliver PDU.");
             }
-            data = newPdu.toByteArray();
+            /* first octet + originator + PID + DCS + time stamp + UDL + UD */
+            int addressLength = (encodedAddress != null) ? encodedAddress.length : 2;
+            byte[] newPdu = new byte[1 + addressLength + 2 + 7 + 1 + userDataSize];
+            int offset = 0;
+
+            newPdu[offset++] = (byte)(TP_MIT_DELIVER | TP_MMS_NO_MORE | TP_RP_NO_REPLY_PATH | TP_SRI_NO_REPORT
+                                      | (data[0] & 0xff)  & TP_UDHI_MASK);
+            if(encodedAddress != null) {
+                int padding = (encodedAddress[encodedAddress.length-1] & 0xf0) == 0xf0 ? 1 : 0;
+                encodedAddress[0] = (byte)((encodedAddress[0]-1)*2 - padding); // Convert from octet length to semi octet length
+                // Insert originator address into the header - this includes the length
+                System.arraycopy(encodedAddress, 0, newPdu, offset, encodedAddress.length);
+                offset += encodedAddress.length;
+            } else {
+                newPdu[offset++] = 0;           /* zero length */
+                newPdu[offset++] = (byte)0x81;  /* International type */
+            }
+
+            newPdu[offset++] = data[gsmSubmitGetTpPidOffset()];
+            newPdu[offset++] = data[gsmSubmitGetTpDcsOffset()];
+            // Generate service center time stamp
+            offset = gsmWriteDate(newPdu, offset, date);
+            newPdu[offset++] = data[gsmSubmitGetTpUdlOffset()];
+            // Copy the pdu user data - keep in mind that the userDataLength is not the length in bytes for 7-bit encoding.
+            System.arraycopy(data, userDataOffset, newPdu, offset, userDataSize);
+            data = newPdu;
         }
 
         /* SMS encoding to bmessage strings */
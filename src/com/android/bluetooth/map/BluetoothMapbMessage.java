@@ -23,6 +23,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
 import java.util.ArrayList;
+import java.util.Arrays;
 
 import android.os.Environment;
 import android.telephony.PhoneNumberUtils;
@@ -37,6 +38,15 @@ public abstract class BluetoothMapbMessage {
     protected static final boolean V = false;
     private static final String VERSION = "VERSION:1.0";
 
+    /* The tags around each message fragment of the bMessage body */
+    protected static final byte[] BEGIN_MSG = {
+        'B', 'E', 'G', 'I', 'N', ':', 'M', 'S', 'G', '\r', '\n' };
+    protected static final byte[] END_MSG = {
+        '\r', '\n', 'E', 'N', 'D', ':', 'M', 'S', 'G', '\r', '\n' };
+
+    private static final byte[] HEX_DIGITS = {
+        '0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'a', 'b', 'c', 'd', 'e', 'f' };
+
     public static int INVALID_VALUE = -1;
 
     protected int appParamCharset = BluetoothMapAppParams.INVALID_VALUE_PARAMETER;
@@ -237,14 +247,48 @@ public abstract class BluetoothMapbMessage {
         }
     };
 
-    private static class BMsgReader {
+    /* Package visible for BluetoothMapbMessageBenchmark */
+    static class BMsgReader {
+        private static final int BUFFER_SIZE = 4096;
+
         InputStream mInStream;
+        /* Read-ahead buffer, the bytes from mPos to mLimit are not consumed yet */
+        private final byte[] mBuffer = new byte[BUFFER_SIZE];
+        private int mPos = 0;
+        private int mLimit = 0;
+        /* The current line, the array is reused for all lines */
+        private byte[] mLine = new byte[256];
+        private int mLineLength = 0;
+
         public BMsgReader(InputStream is)
         {
             this.mInStream = is;
         }
 
-        private byte[] getLineAsBytes() {
+        private int readByte() throws IOException {
+            if (mPos == mLimit) {
+                int bytesRead = mInStream.read(mBuffer, 0, BUFFER_SIZE);
+                if (bytesRead <= 0) {
+                    return -1;
+                }
+                mPos = 0;
+                mLimit = bytesRead;
+            }
+            return mBuffer[mPos++] & 0xff;
+        }
+
+        private void appendLine(int readByte) {
+            if (mLineLength == mLine.length) {
+                mLine = Arrays.copyOf(mLine, mLine.length * 2);
+            }
+            mLine[mLineLength++] = (byte)readByte;
+        }
+
+        /**
+         * Read the next non-empty line into mLine.
+         * @return false if reading the stream failed.
+         */
+        private boolean readLine() {
             int readByte;
 
             /* TODO: Actually the vCard spec. allows to break lines by using a newLine
@@ -254,49 +298,76 @@ public abstract class BluetoothMapbMessage {
              * If we read such a folded line, the folded part will be skipped in the parser
              */
 
-            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            mLineLength = 0;
             try {
-                while ((readByte = mInStream.read()) != -1) {
+                while ((readByte = readByte()) != -1) {
                     if (readByte == '\r') {
-                        if ((readByte = mInStream.read()) != -1 && readByte == '\n') {
-                            if(output.size() == 0)
+                        if ((readByte = readByte()) == '\n') {
+                            if(mLineLength == 0)
                                 continue; /* Skip empty lines */
                             else
                                 break;
                         } else {
-                            output.write('\r');
+                            appendLine('\r');
+                            if (readByte == -1)
+                                break;
                         }
-                    } else if (readByte == '\n' && output.size() == 0) {
+                    } else if (readByte == '\n' && mLineLength == 0) {
                         /* Empty line - skip */
                         continue;
                     }
 
-                    output.write(readByte);
+                    appendLine(readByte);
                 }
             } catch (IOException e) {
                 Log.w(TAG, e);
-                return null;
+                return false;
             }
-            return output.toByteArray();
+            return true;
         }
 
         /**
-         * Read a line of text from the BMessage.
-         * @return the next line of text, or null at end of file, or if UTF-8 is not supported.
+         * Case insensitive search for an ASCII string in the current line,
+         * without decoding the line.
          */
-        public String getLine() {
+        private boolean lineContains(String subString) {
+            int subLength = subString.length();
+            for (int i = 0; i <= mLineLength - subLength; i++) {
+                int j = 0;
+                while (j < subLength && toUpper(mLine[i + j])
+                        == Character.toUpperCase(subString.charAt(j))) {
+                    j++;
+                }
+                if (j == subLength) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private static char toUpper(byte b) {
+            return (b >= 'a' && b <= 'z') ? (char)(b - ('a' - 'A')) : (char)(b & 0xff);
+        }
+
+        private String lineToString() {
             try {
-                byte[] line = getLineAsBytes();
-                if (line.length == 0)
-                    return null;
-                else
-                    return new String(line, "UTF-8");
+                return new String(mLine, 0, mLineLength, "UTF-8");
             } catch (UnsupportedEncodingException e) {
                 Log.w(TAG, e);
                 return null;
             }
         }
 
+        /**
+         * Read a line of text from the BMessage.
+         * @return the next line of text, or null at end of file, or if UTF-8 is not supported.
+         */
+        public String getLine() {
+            if (!readLine() || mLineLength == 0)
+                return null;
+            return lineToString();
+        }
+
         /**
          * same as getLine(), but throws an exception, if we run out of lines.
          * Use this function when ever more lines are needed for the bMessage to be complete.
@@ -321,11 +392,10 @@ public abstract class BluetoothMapbMessage {
          *
          */
         public void expect(String subString) throws IllegalArgumentException{
-            String line = getLine();
-            if(line == null || subString == null){
+            if(!readLine() || mLineLength == 0 || subString == null){
                 throw new IllegalArgumentException("Line or substring is null");
-            }else if(!line.toUpperCase().contains(subString.toUpperCase()))
-                throw new IllegalArgumentException("Expected \"" + subString + "\" in: \"" + line + "\"");
+            }else if(!lineContains(subString))
+                throw new IllegalArgumentException("Expected \"" + subString + "\" in: \"" + lineToString() + "\"");
         }
 
         /**
@@ -336,25 +406,29 @@ public abstract class BluetoothMapbMessage {
          * If one or all of the strings are not found.
          */
         public void expect(String subString, String subString2) throws IllegalArgumentException{
-            String line = getLine();
-            if(!line.toUpperCase().contains(subString.toUpperCase()))
-                throw new IllegalArgumentException("Expected \"" + subString + "\" in: \"" + line + "\"");
-            if(!line.toUpperCase().contains(subString2.toUpperCase()))
-                throw new IllegalArgumentException("Expected \"" + subString + "\" in: \"" + line + "\"");
+            if(!readLine() || mLineLength == 0)
+                throw new IllegalArgumentException("Line is null");
+            if(!lineContains(subString))
+                throw new IllegalArgumentException("Expected \"" + subString + "\" in: \"" + lineToString() + "\"");
+            if(!lineContains(subString2))
+                throw new IllegalArgumentException("Expected \"" + subString + "\" in: \"" + lineToString() + "\"");
         }
 
         /**
-         * Read a part of the bMessage as raw data.
+         * Read a part of the bMessage as raw data. The bytes already buffered are
+         * copied, the remaining are read from the stream directly into the result.
          * @param length the number of bytes to read
          * @return the byte[] containing the number of bytes or null if an error occurs or EOF is reached
          * before length bytes have been read.
          */
         public byte[] getDataBytes(int length) {
             byte[] data = new byte[length];
+            int offset = Math.min(length, mLimit - mPos);
+            System.arraycopy(mBuffer, mPos, data, 0, offset);
+            mPos += offset;
             try {
-                int bytesRead;
-                int offset=0;
-                while ((bytesRead = mInStream.read(data, offset, length-offset)) != (length - offset)) {
+                while (offset < length) {
+                    int bytesRead = mInStream.read(data, offset, length - offset);
                     if(bytesRead == -1)
                         return null;
                     offset += bytesRead;
@@ -766,18 +840,34 @@ public abstract class BluetoothMapbMessage {
      * @return the resulting string.
      */
     protected String encodeBinary(byte[] pduData, byte[] scAddressData) {
-        StringBuilder out = new StringBuilder((pduData.length + scAddressData.length)*2);
-        for(int i = 0; i < scAddressData.length; i++) {
-            out.append(Integer.toString((scAddressData[i] >> 4) & 0x0f,16)); // MS-nibble first
-            out.append(Integer.toString( scAddressData[i]       & 0x0f,16));
-        }
-        for(int i = 0; i < pduData.length; i++) {
-            out.append(Integer.toString((pduData[i] >> 4) & 0x0f,16)); // MS-nibble first
-            out.append(Integer.toString( pduData[i]       & 0x0f,16));
-            /*out.append(Integer.toHexString(data[i]));*/ /* This is the same as above, but does not include the needed 0's
-                                                           e.g. it converts the value 3 to "3" and not "03" */
-        }
-        return out.toString();
+        byte[] out = new byte[(pduData.length + scAddressData.length)*2];
+        encodeBinary(pduData, scAddressData, out, 0);
+        try {
+            return new String(out, "US-ASCII");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e); // US-ASCII is always supported
+        }
+    }
+
+    /**
+     * Convert a byte[] of data to its hex representation, directly into a byte buffer.
+     * @param pduData the byte-array of data.
+     * @param scAddressData the byte-array of the encoded sc-Address.
+     * @param out the buffer to write to. (pduData.length + scAddressData.length)*2 bytes are written.
+     * @param offset the index in out of the first hex char.
+     * @return the index in out following the last hex char.
+     */
+    protected static int encodeBinary(byte[] pduData, byte[] scAddressData, byte[] out, int offset) {
+        offset = encodeHex(scAddressData, out, offset);
+        return encodeHex(pduData, out, offset);
+    }
+
+    private static int encodeHex(byte[] data, byte[] out, int offset) {
+        for(int i = 0, n = data.length; i < n; i++) {
+            out[offset++] = HEX_DIGITS[(data[i] >> 4) & 0x0f]; // MS-nibble first
+            out[offset++] = HEX_DIGITS[ data[i]       & 0x0f];
+        }
+        return offset;
     }
 
     /**
@@ -806,9 +896,46 @@ public abstract class BluetoothMapbMessage {
     }
 
     public byte[] encodeGeneric(ArrayList<byte[]> bodyFragments) throws UnsupportedEncodingException
+    {
+        int length = 0;
+        /* 22 is the length of the 'BEGIN:MSG' and 'END:MSG' + 3*CRLF */
+        for (byte[] fragment : bodyFragments) {
+            length += fragment.length + 22;
+        }
+
+        // Extract the initial part of the bMessage string
+        byte[] msgStart = encodeGenericStart(length);
+        byte[] msgEnd = encodeGenericEnd();
+
+        try {
+
+            ByteArrayOutputStream stream = new ByteArrayOutputStream(msgStart.length + msgEnd.length + length);
+            stream.write(msgStart);
+
+            for (byte[] fragment : bodyFragments) {
+                stream.write(BEGIN_MSG);
+                stream.write(fragment);
+                stream.write(END_MSG);
+            }
+            stream.write(msgEnd);
+
+            if(V) Log.v(TAG,stream.toString("UTF-8"));
+            return stream.toByteArray();
+        } catch (IOException e) {
+            Log.w(TAG,e);
+            return null;
+        }
+    }
+
+    /**
+     * Encode the bMessage properties, envelope and body properties, up to and
+     * including the LENGTH property.
+     * @param length the value of the LENGTH property, i.e. the length of all
+     * BEGIN:MSG to END:MSG sections including the tags.
+     */
+    protected byte[] encodeGenericStart(int length) throws UnsupportedEncodingException
     {
         StringBuilder sb = new StringBuilder(256);
-        byte[] msgStart, msgEnd;
         sb.append("BEGIN:BMSG").append("\r\n");
         sb.append(VERSION).append("\r\n");
         sb.append("STATUS:").append(status).append("\r\n");
@@ -836,41 +963,21 @@ public abstract class BluetoothMapbMessage {
         if(charset != null && charset != "")
             sb.append("CHARSET:").append(charset).append("\r\n");
 
-
-        int length = 0;
-        /* 22 is the length of the 'BEGIN:MSG' and 'END:MSG' + 3*CRLF */
-        for (byte[] fragment : bodyFragments) {
-            length += fragment.length + 22;
-        }
         sb.append("LENGTH:").append(length).append("\r\n");
 
-        // Extract the initial part of the bMessage string
-        msgStart = sb.toString().getBytes("UTF-8");
+        return sb.toString().getBytes("UTF-8");
+    }
 
-        sb = new StringBuilder(31);
+    /**
+     * Encode the END tags following the last END:MSG.
+     */
+    protected byte[] encodeGenericEnd() throws UnsupportedEncodingException
+    {
+        StringBuilder sb = new StringBuilder(31);
         sb.append("END:BBODY").append("\r\n");
         sb.append("END:BENV").append("\r\n");
         sb.append("END:BMSG").append("\r\n");
 
-        msgEnd = sb.toString().getBytes("UTF-8");
-
-        try {
-
-            ByteArrayOutputStream stream = new ByteArrayOutputStream(msgStart.length + msgEnd.length + length);
-            stream.write(msgStart);
-
-            for (byte[] fragment : bodyFragments) {
-                stream.write("BEGIN:MSG\r\n".getBytes("UTF-8"));
-                stream.write(fragment);
-                stream.write("\r\nEND:MSG\r\n".getBytes("UTF-8"));
-            }
-            stream.write(msgEnd);
-
-            if(V) Log.v(TAG,stream.toString("UTF-8"));
-            return stream.toByteArray();
-        } catch (IOException e) {
-            Log.w(TAG,e);
-            return null;
-        }
+        return sb.toString().getBytes("UTF-8");
     }
 }
@@ -14,6 +14,9 @@
 */
 package com.android.bluetooth.map;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.nio.charset.Charset;
 import java.text.SimpleDateFormat;
@@ -23,6 +26,8 @@ import java.util.Date;
 import java.util.Locale;
 import java.util.UUID;
 
+import android.content.ContentResolver;
+import android.net.Uri;
 import android.text.util.Rfc822Token;
 import android.text.util.Rfc822Tokenizer;
 import android.util.Base64;
@@ -41,22 +46,18 @@ public class BluetoothMapbMessageMmsEmail extends BluetoothMapbMessage {
                                                 holds a method for the mapping. */
         public String fileName = null;     /* Do not seem to be used */
         public byte[] data = null;        /* The raw un-encoded data e.g. the raw jpeg data or the text.getBytes("utf-8") */
+        public Uri dataUri = null;        /* Where to read the data from, when it is streamed rather than held in data */
+        public long dataLength = 0;       /* The number of bytes to read from dataUri */
 
-
+        /**
+         * @return true if the data of this part is read from dataUri while encoding.
+         */
+        public boolean isStreamed() {
+            return data == null && dataUri != null;
+        }
 
         public void encode(StringBuilder sb, String boundaryTag, boolean last) throws UnsupportedEncodingException {
-            sb.append("--").append(boundaryTag).append("\r\n");
-            if(contentType != null)
-                sb.append("Content-Type: ").append(contentType);
-            if(charsetName != null)
-                sb.append("; ").append("charset=\"").append(charsetName).append("\"");
-            sb.append("\r\n");
-            if(contentLocation != null)
-                sb.append("Content-Location: ").append(contentLocation).append("\r\n");
-            if(contentId != null)
-                sb.append("Content-ID: ").append(contentId).append("\r\n");
-            if(contentDisposition != null)
-                sb.append("Content-Disposition: ").append(contentDisposition).append("\r\n");
+            encodeHeaders(sb, boundaryTag);
             if(data != null) {
                 /* TODO: If errata 4176 is adopted in the current form (it is not in either 1.1 or 1.2),
                 the below is not allowed, Base64 should be used for text. */
@@ -77,6 +78,24 @@ public class BluetoothMapbMessageMmsEmail extends BluetoothMapbMessage {
             }
         }
 
+        /**
+         * Encode the boundary and the part headers, except the transfer encoding.
+         */
+        public void encodeHeaders(StringBuilder sb, String boundaryTag) {
+            sb.append("--").append(boundaryTag).append("\r\n");
+            if(contentType != null)
+                sb.append("Content-Type: ").append(contentType);
+            if(charsetName != null)
+                sb.append("; ").append("charset=\"").append(charsetName).append("\"");
+            sb.append("\r\n");
+            if(contentLocation != null)
+                sb.append("Content-Location: ").append(contentLocation).append("\r\n");
+            if(contentId != null)
+                sb.append("Content-ID: ").append(contentId).append("\r\n");
+            if(contentDisposition != null)
+                sb.append("Content-Disposition: ").append(contentDisposition).append("\r\n");
+        }
+
         public void encodePlainText(StringBuilder sb) throws UnsupportedEncodingException {
             if(contentType != null && contentType.toUpperCase().contains("TEXT")) {
                 sb.append(new String(data,"UTF-8")).append("\r\n");
@@ -406,6 +425,119 @@ public class BluetoothMapbMessageMmsEmail extends BluetoothMapbMessage {
         return encodeGeneric(bodyFragments);
     }
 
+    /* Number of raw bytes Base64 encoded at a time when streaming a part. A
+     * multiple of 57 bytes, which is one full 76 character line, so the chunks
+     * concatenate to the same output as encoding the part in one go. */
+    private static final int BASE64_CHUNK_SIZE = 57 * 144;
+
+    /**
+     * @return the length of Base64.encode(data, Base64.DEFAULT) for length bytes of data.
+     */
+    static long base64Length(long length) {
+        if (length == 0)
+            return 0;
+        long chars = (length + 2) / 3 * 4;
+        return chars + (chars + 75) / 76; /* A LF after each line of at most 76 characters */
+    }
+
+    /**
+     * Encode the bMessage as a MMS directly into a stream. Parts with a dataUri
+     * are read from the content provider and Base64 encoded in fixed size chunks
+     * while written, hence no part needs to be held in memory. The LENGTH
+     * property is calculated ahead of time from the part lengths.
+     * @param out the stream to write the bMessage to
+     * @param resolver used to open the streamed parts
+     * @throws IOException if writing fails, or a part is shorter than its dataLength
+     */
+    public void encodeMms(OutputStream out, ContentResolver resolver) throws IOException
+    {
+        /* The body alternates between text segments and streamed parts:
+         * text[0], streamed[0], text[1], ..., text[n] */
+        ArrayList<byte[]> textSegments = new ArrayList<byte[]>();
+        ArrayList<MimePart> streamedParts = new ArrayList<MimePart>();
+        StringBuilder sb = new StringBuilder();
+        int count = 0;
+
+        encoding = "8BIT"; // The encoding used
+
+        encodeHeaders(sb);
+        if(getIncludeAttachments() == false) {
+            for(MimePart part : parts) {
+                part.encodePlainText(sb); /* We call encode on all parts, to include a tag, where an attachment is missing. */
+            }
+        } else {
+            for(MimePart part : parts) {
+                count++;
+                if(part.isStreamed()) {
+                    part.encodeHeaders(sb, getBoundary());
+                    sb.append("Content-Transfer-Encoding: Base64\r\n\r\n"); // Add the header split empty line
+                    textSegments.add(escapeBody(sb.toString()));
+                    streamedParts.add(part);
+                    sb = new StringBuilder();
+                    sb.append("\r\n");
+                    if(count == parts.size()) {
+                        sb.append("--").append(getBoundary()).append("--").append("\r\n");
+                    }
+                } else {
+                    part.encode(sb, getBoundary(), (count == parts.size()));
+                }
+            }
+        }
+        textSegments.add(escapeBody(sb.toString()));
+
+        long length = 22; /* 22 is the length of the 'BEGIN:MSG' and 'END:MSG' + 3*CRLF */
+        for(byte[] segment : textSegments) {
+            length += segment.length;
+        }
+        for(MimePart part : streamedParts) {
+            length += base64Length(part.dataLength);
+        }
+
+        out.write(encodeGenericStart((int)length));
+        out.write("BEGIN:MSG\r\n".getBytes("UTF-8"));
+        byte[] buffer = streamedParts.isEmpty() ? null : new byte[BASE64_CHUNK_SIZE];
+        for(int i = 0; i < streamedParts.size(); i++) {
+            out.write(textSegments.get(i));
+            writeBase64(streamedParts.get(i), resolver, buffer, out);
+        }
+        out.write(textSegments.get(textSegments.size() - 1));
+        out.write("\r\nEND:MSG\r\n".getBytes("UTF-8"));
+        out.write(encodeGenericEnd());
+    }
+
+    private static byte[] escapeBody(String body) throws UnsupportedEncodingException {
+        // Replace any occurrences of END:MSG with \END:MSG
+        return body.replaceAll("END:MSG", "/END\\:MSG").getBytes("UTF-8");
+    }
+
+    private static void writeBase64(MimePart part, ContentResolver resolver, byte[] buffer,
+            OutputStream out) throws IOException {
+        InputStream is = resolver.openInputStream(part.dataUri);
+        if (is == null) {
+            throw new IOException("Unable to open " + part.dataUri);
+        }
+        try {
+            long remaining = part.dataLength;
+            while (remaining > 0) {
+                /* Only the last chunk may be shorter than the buffer */
+                int chunkLength = (int)Math.min(buffer.length, remaining);
+                int len = 0;
+                while (len < chunkLength) {
+                    int bytesRead = is.read(buffer, len, chunkLength - len);
+                    if (bytesRead == -1) {
+                        throw new IOException("Part " + part.dataUri + " shorter than "
+                                + part.dataLength + " bytes");
+                    }
+                    len += bytesRead;
+                }
+                out.write(Base64.encode(buffer, 0, len, Base64.DEFAULT));
+                remaining -= len;
+            }
+        } finally {
+            is.close();
+        }
+    }
+
 
     /**
      * Try to parse the hdrPart string as e-mail headers.
@@ -70,6 +70,10 @@ public class BluetoothMapbMessageSms extends BluetoothMapbMessage {
 
     public byte[] encode() throws UnsupportedEncodingException
     {
+        if (smsBody == null && smsBodyPdus != null && smsBodyPdus.size() > 0) {
+            return encodePdus();
+        }
+
         ArrayList<byte[]> bodyFragments = new ArrayList<byte[]>();
 
         /* Store the messages in an ArrayList to be able to handle the different message types in a generic way.
@@ -78,11 +82,6 @@ public class BluetoothMapbMessageSms extends BluetoothMapbMessage {
         if(smsBody != null) {
             String tmpBody = smsBody.replaceAll("END:MSG", "/END\\:MSG"); // Replace any occurrences of END:MSG with \END:MSG
             bodyFragments.add(tmpBody.getBytes("UTF-8"));
-        }else if (smsBodyPdus != null && smsBodyPdus.size() > 0) {
-            for (SmsPdu pdu : smsBodyPdus) {
-                // This cannot(must not) contain END:MSG
-                bodyFragments.add(encodeBinary(pdu.getData(),pdu.getScAddress()).getBytes("UTF-8"));
-            }
         } else {
             bodyFragments.add(new byte[0]); // TODO: Is this allowed? (An empty message)
         }
@@ -90,4 +89,36 @@ public class BluetoothMapbMessageSms extends BluetoothMapbMessage {
         return encodeGeneric(bodyFragments);
     }
 
+    /**
+     * Encode a bMessage with a PDU body. The PDUs are hex encoded directly
+     * into the resulting buffer, which is allocated once with the exact size.
+     */
+    private byte[] encodePdus() throws UnsupportedEncodingException
+    {
+        int length = 0;
+        for (SmsPdu pdu : smsBodyPdus) {
+            length += (pdu.getData().length + pdu.getScAddress().length) * 2
+                + BEGIN_MSG.length + END_MSG.length;
+        }
+
+        byte[] msgStart = encodeGenericStart(length);
+        byte[] msgEnd = encodeGenericEnd();
+        byte[] out = new byte[msgStart.length + length + msgEnd.length];
+
+        System.arraycopy(msgStart, 0, out, 0, msgStart.length);
+        int offset = msgStart.length;
+        for (SmsPdu pdu : smsBodyPdus) {
+            // This cannot(must not) contain END:MSG
+            System.arraycopy(BEGIN_MSG, 0, out, offset, BEGIN_MSG.length);
+            offset = encodeBinary(pdu.getData(), pdu.getScAddress(), out,
+                offset + BEGIN_MSG.length);
+            System.arraycopy(END_MSG, 0, out, offset, END_MSG.length);
+            offset += END_MSG.length;
+        }
+        System.arraycopy(msgEnd, 0, out, offset, msgEnd.length);
+
+        if(V) Log.v(TAG, new String(out, "UTF-8"));
+        return out;
+    }
+
 }
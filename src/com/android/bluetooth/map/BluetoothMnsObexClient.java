@@ -23,6 +23,7 @@ import android.os.HandlerThread;
 import android.os.Looper;
 import android.os.Message;
 import android.os.ParcelUuid;
+import android.os.SystemClock;
 import android.util.Log;
 import android.os.PowerManager;
 
@@ -31,6 +32,9 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayDeque;
+import java.util.HashMap;
 
 import javax.obex.ApplicationParameter;
 import javax.obex.ClientOperation;
@@ -66,6 +70,25 @@ public class BluetoothMnsObexClient {
 
     // Used by the MAS to forward notification registrations
     public static final int MSG_MNS_NOTIFICATION_REGISTRATION = 1;
+    // Used to send the queued event reports
+    private static final int MSG_MNS_SEND_EVENTS = 2;
+
+    /* Event reports are queued and sent from the handler thread. Reports
+     * queued within EVENT_COALESCE_DELAY_MS of each other are coalesced per
+     * message handle, and at most MAX_EVENTS_PER_BATCH are sent per handler
+     * message, to let registration changes through during long bursts. */
+    private static final int EVENT_COALESCE_DELAY_MS = 100;
+    private static final int MAX_EVENTS_PER_BATCH = 16;
+
+    private final ArrayDeque<PendingEvent> mPendingEvents = new ArrayDeque<PendingEvent>();
+    private final HashMap<String, PendingEvent> mPendingByHandle =
+            new HashMap<String, PendingEvent>();
+
+    private int mEventsQueued = 0;
+    private int mEventsCoalesced = 0;
+    private int mEventsSent = 0;
+    private long mPutTimeTotalMs = 0;
+    private long mPutTimeMaxMs = 0;
 
 
     public static final ParcelUuid BluetoothUuid_ObexMns =
@@ -105,6 +128,9 @@ public class BluetoothMnsObexClient {
             case MSG_MNS_NOTIFICATION_REGISTRATION:
                 handleRegistration(msg.arg1 /*masId*/, msg.arg2 /*status*/);
                 break;
+            case MSG_MNS_SEND_EVENTS:
+                sendPendingEvents();
+                break;
             default:
                 break;
             }
@@ -158,6 +184,10 @@ public class BluetoothMnsObexClient {
         if (mHandler != null) {
             // Shut down the thread
             mHandler.removeCallbacksAndMessages(null);
+            synchronized (mPendingEvents) {
+                mPendingEvents.clear();
+                mPendingByHandle.clear();
+            }
             Looper looper = mHandler.getLooper();
             if (looper != null) {
                 looper.quit();
@@ -246,6 +276,161 @@ public class BluetoothMnsObexClient {
         releaseMnsLock();
     }
 
+    private static class PendingEvent {
+        final String key;
+        final BluetoothMapContentObserver.Event evt;
+        final int masId;
+        boolean dropped = false;
+
+        PendingEvent(BluetoothMapContentObserver.Event evt, int masId) {
+            this.key = masId + ":" + evt.msgType + ":" + evt.handle;
+            this.evt = evt;
+            this.masId = masId;
+        }
+    }
+
+    private static boolean sameFolder(String a, String b) {
+        return (a == null) ? (b == null) : a.equals(b);
+    }
+
+    /**
+     * Try to merge an event into the pending event for the same handle.
+     * @return true if next needs no report of its own
+     */
+    private boolean coalesce(PendingEvent prev, PendingEvent next) {
+        String prevType = prev.evt.eventType;
+        String nextType = next.evt.eventType;
+
+        if (prevType.equals("NewMessage") && nextType.equals("MessageDeleted")) {
+            /* The peer never saw the message */
+            prev.dropped = true;
+            mPendingByHandle.remove(prev.key);
+            mEventsCoalesced += 2;
+            return true;
+        }
+        if (prevType.equals("MessageShift") && nextType.equals("MessageShift")) {
+            prev.evt.folder = next.evt.folder;
+            if (sameFolder(prev.evt.folder, prev.evt.oldFolder)) {
+                prev.dropped = true;
+                mPendingByHandle.remove(prev.key);
+                mEventsCoalesced++;
+            }
+            mEventsCoalesced++;
+            return true;
+        }
+        if (prevType.equals("MessageShift") && nextType.equals("MessageDeleted")) {
+            /* Report the delete from the folder the peer last saw */
+            next.evt.oldFolder = prev.evt.oldFolder;
+            prev.dropped = true;
+            mEventsCoalesced++;
+            return false;
+        }
+        if (prevType.equals(nextType) && sameFolder(prev.evt.folder, next.evt.folder)
+                && sameFolder(prev.evt.oldFolder, next.evt.oldFolder)) {
+            /* Duplicate */
+            mEventsCoalesced++;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Queue an event report for the MNS connection. The report is sent from
+     * the handler thread, after redundant reports for the same handle have
+     * been coalesced.
+     * @param evt the event to report
+     * @param masInstanceId the MAS instance the event belongs to
+     */
+    public void queueEvent(BluetoothMapContentObserver.Event evt, int masInstanceId) {
+        Handler handler = mHandler;
+        if (handler == null) {
+            Log.w(TAG, "queueEvent: MNS client stopped, event dropped");
+            return;
+        }
+        PendingEvent next = new PendingEvent(evt, masInstanceId);
+        synchronized (mPendingEvents) {
+            mEventsQueued++;
+            PendingEvent prev = mPendingByHandle.get(next.key);
+            if (prev != null && coalesce(prev, next)) {
+                return;
+            }
+            mPendingEvents.add(next);
+            mPendingByHandle.put(next.key, next);
+        }
+        if (!handler.hasMessages(MSG_MNS_SEND_EVENTS)) {
+            handler.sendEmptyMessageDelayed(MSG_MNS_SEND_EVENTS, EVENT_COALESCE_DELAY_MS);
+        }
+    }
+
+    private void sendPendingEvents() {
+        int sent = 0;
+        while (sent < MAX_EVENTS_PER_BATCH) {
+            PendingEvent pe;
+            synchronized (mPendingEvents) {
+                pe = mPendingEvents.poll();
+                if (pe == null) {
+                    break;
+                }
+                if (mPendingByHandle.get(pe.key) == pe) {
+                    mPendingByHandle.remove(pe.key);
+                }
+            }
+            if (pe.dropped) {
+                continue;
+            }
+            if (!isConnected()) {
+                if (D) Log.d(TAG, "sendPendingEvents: not connected, event dropped");
+                continue;
+            }
+
+            long start = SystemClock.elapsedRealtime();
+            try {
+                sendEvent(pe.evt.encode(), pe.masId);
+            } catch (UnsupportedEncodingException e) {
+                Log.w(TAG, "sendPendingEvents: " + e.toString());
+            }
+            long putTime = SystemClock.elapsedRealtime() - start;
+            sent++;
+            synchronized (mPendingEvents) {
+                mEventsSent++;
+                mPutTimeTotalMs += putTime;
+                mPutTimeMaxMs = Math.max(mPutTimeMaxMs, putTime);
+            }
+        }
+
+        Handler handler = mHandler;
+        synchronized (mPendingEvents) {
+            if (!mPendingEvents.isEmpty()) {
+                if (handler != null) {
+                    handler.sendEmptyMessage(MSG_MNS_SEND_EVENTS);
+                }
+            } else if (D) {
+                Log.d(TAG, "Events queued: " + mEventsQueued + " coalesced: " + mEventsCoalesced
+                    + " sent: " + mEventsSent + " put time avg: "
+                    + (mEventsSent > 0 ? mPutTimeTotalMs / mEventsSent : 0)
+                    + " ms max: " + mPutTimeMaxMs + " ms");
+            }
+        }
+    }
+
+    /**
+     * @return the number of event reports removed by coalescing.
+     */
+    public int getEventsCoalesced() {
+        synchronized (mPendingEvents) {
+            return mEventsCoalesced;
+        }
+    }
+
+    /**
+     * @return the average duration of an event report PUT in milliseconds.
+     */
+    public long getAveragePutTimeMs() {
+        synchronized (mPendingEvents) {
+            return mEventsSent > 0 ? mPutTimeTotalMs / mEventsSent : 0;
+        }
+    }
+
     public int sendEvent(byte[] eventBytes, int masInstanceId) {
 
         Log.d(TAG, "BluetoothMnsObexClient: sendEvent");
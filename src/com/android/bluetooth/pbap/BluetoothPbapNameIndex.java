@@ -0,0 +1,294 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.pbap;
+
+import android.telephony.PhoneNumberUtils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Snapshot of the phonebook name list, as returned in a vCard listing.
+ * Handle 0 is the owner, and handles 1..n are the visible contacts in
+ * listing order. The contact names are also kept sorted by their lower case
+ * form, so that a search by name prefix is a binary search instead of a scan
+ * of the whole list. The phone numbers of the contacts are kept the same way,
+ * keyed by their reversed digits, so that the candidates of a search by
+ * number are found by a binary search on their last digits. The candidates
+ * are then compared as PhoneLookup does. A snapshot is immutable; the vCard
+ * manager builds a new one when the contacts change.
+ */
+class BluetoothPbapNameIndex {
+    /* Trailing digits a number must share with the search value to be
+     * compared with it, the least PhoneNumberUtils.compare() matches on */
+    private static final int MIN_NUMBER_MATCH = 7;
+
+    private final String mOwnerName;
+    /* Contact names in listing order, at handle - 1 */
+    private final String[] mNames;
+    /* Lower case contact names, sorted */
+    private final String[] mKeys;
+    /* Handles of the names in mKeys */
+    private final int[] mHandles;
+    /* Reversed digits of the contact phone numbers, sorted */
+    private final String[] mNumberKeys;
+    /* Handles of the numbers in mNumberKeys */
+    private final int[] mNumberHandles;
+    /* The numbers of mNumberKeys, as stored */
+    private final String[] mNumbers;
+
+    /**
+     * @param ownerName the name at handle 0
+     * @param names the contact names in listing order
+     * @param numbers the contact phone numbers
+     * @param numberHandles the handle of the contact of each number
+     */
+    BluetoothPbapNameIndex(String ownerName, ArrayList<String> names,
+            ArrayList<String> numbers, ArrayList<Integer> numberHandles) {
+        mOwnerName = ownerName;
+        mNames = names.toArray(new String[names.size()]);
+
+        mKeys = new String[mNames.length];
+        mHandles = new int[mNames.length];
+        for (int i = 0; i < mNames.length; i++) {
+            mKeys[i] = mNames[i].toLowerCase();
+            mHandles[i] = i + 1;
+        }
+        sort(mKeys, mHandles, null);
+
+        ArrayList<String> numberKeys = new ArrayList<String>(numbers.size());
+        ArrayList<String> keyNumbers = new ArrayList<String>(numbers.size());
+        ArrayList<Integer> keyHandles = new ArrayList<Integer>(numbers.size());
+        for (int i = 0; i < numbers.size(); i++) {
+            String key = reverseDigits(numbers.get(i));
+            if (key.length() > 0) {
+                numberKeys.add(key);
+                keyNumbers.add(numbers.get(i));
+                keyHandles.add(numberHandles.get(i));
+            }
+        }
+        mNumberKeys = numberKeys.toArray(new String[numberKeys.size()]);
+        mNumbers = keyNumbers.toArray(new String[keyNumbers.size()]);
+        mNumberHandles = new int[mNumberKeys.length];
+        for (int i = 0; i < mNumberHandles.length; i++) {
+            mNumberHandles[i] = keyHandles.get(i);
+        }
+        sort(mNumberKeys, mNumberHandles, mNumbers);
+    }
+
+    private BluetoothPbapNameIndex(String ownerName, BluetoothPbapNameIndex index) {
+        mOwnerName = ownerName;
+        mNames = index.mNames;
+        mKeys = index.mKeys;
+        mHandles = index.mHandles;
+        mNumberKeys = index.mNumberKeys;
+        mNumberHandles = index.mNumberHandles;
+        mNumbers = index.mNumbers;
+    }
+
+    /* Sort keys, and handles and values if not null along with them */
+    private static void sort(final String[] keys, int[] handles, String[] values) {
+        Integer[] order = new Integer[keys.length];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer lhs, Integer rhs) {
+                return keys[lhs].compareTo(keys[rhs]);
+            }
+        });
+
+        String[] sortedKeys = new String[keys.length];
+        int[] sortedHandles = new int[keys.length];
+        String[] sortedValues = values != null ? new String[values.length] : null;
+        for (int i = 0; i < order.length; i++) {
+            sortedKeys[i] = keys[order[i]];
+            sortedHandles[i] = handles[order[i]];
+            if (values != null) sortedValues[i] = values[order[i]];
+        }
+        System.arraycopy(sortedKeys, 0, keys, 0, keys.length);
+        System.arraycopy(sortedHandles, 0, handles, 0, handles.length);
+        if (values != null) System.arraycopy(sortedValues, 0, values, 0, values.length);
+    }
+
+    /* The digits of a phone number, last digit first */
+    private static String reverseDigits(String number) {
+        StringBuilder digits = new StringBuilder(number.length());
+        for (int i = number.length() - 1; i >= 0; i--) {
+            char c = number.charAt(i);
+            if (c >= '0' && c <= '9') {
+                digits.append(c);
+            }
+        }
+        return digits.toString();
+    }
+
+    /**
+     * @return this index if the owner name is unchanged, else a copy with the
+     * new owner name sharing the contact names.
+     */
+    BluetoothPbapNameIndex withOwnerName(String ownerName) {
+        if (ownerName == null ? mOwnerName == null : ownerName.equals(mOwnerName)) {
+            return this;
+        }
+        return new BluetoothPbapNameIndex(ownerName, this);
+    }
+
+    /**
+     * @return the number of names, the owner included.
+     */
+    int size() {
+        return mNames.length + 1;
+    }
+
+    String getName(int handle) {
+        return handle == 0 ? mOwnerName : mNames[handle - 1];
+    }
+
+    /**
+     * @return the names in listing order, the owner first.
+     */
+    ArrayList<String> getNames() {
+        ArrayList<String> names = new ArrayList<String>(size());
+        names.add(mOwnerName);
+        names.addAll(Arrays.asList(mNames));
+        return names;
+    }
+
+    /**
+     * Search the names starting with a prefix, ignoring case.
+     * @param prefix the prefix, or null to match all names
+     * @param start the first handle to consider
+     * @param maxCount the maximum number of handles to return
+     * @return the handles of the matching names, in listing order.
+     */
+    int[] search(String prefix, int start, int maxCount) {
+        final int size = size();
+        if (start < 0) {
+            start = 0;
+        }
+        if (maxCount <= 0 || start >= size) {
+            return new int[0];
+        }
+
+        if (prefix == null || prefix.length() == 0) {
+            int[] result = new int[Math.min(size - start, maxCount)];
+            for (int i = 0; i < result.length; i++) {
+                result[i] = start + i;
+            }
+            return result;
+        }
+
+        String key = prefix.toLowerCase();
+        int from = lowerBound(mKeys, key);
+        int to = endOfPrefix(mKeys, key, from);
+
+        int[] matches = new int[to - from + 1];
+        int count = 0;
+        if (start == 0 && mOwnerName != null && mOwnerName.toLowerCase().startsWith(key)) {
+            matches[count++] = 0;
+        }
+        for (int i = from; i < to; i++) {
+            if (mHandles[i] >= start) {
+                matches[count++] = mHandles[i];
+            }
+        }
+        Arrays.sort(matches, 0, count);
+        return Arrays.copyOf(matches, Math.min(count, maxCount));
+    }
+
+    /**
+     * Search the contacts with a phone number matching a number. The numbers
+     * sharing the last MIN_NUMBER_MATCH digits of the number, or all of its
+     * digits if it has less, are compared to it with
+     * PhoneNumberUtils.compare(). This matches a national number with its
+     * international form, as the provider's PhoneLookup does, and a short
+     * number only with the same number.
+     * @param number the number, or null or empty to match all contacts
+     * @param start the first handle to consider
+     * @param maxCount the maximum number of handles to return
+     * @return the handles of the matching contacts, in listing order.
+     */
+    int[] searchNumber(String number, int start, int maxCount) {
+        if (number == null || number.length() == 0) {
+            return search(null, Math.max(start, 1), maxCount);
+        }
+        if (maxCount <= 0 || start >= size()) {
+            return new int[0];
+        }
+        String key = reverseDigits(number);
+        if (key.length() == 0) {
+            return new int[0];
+        }
+        if (key.length() > MIN_NUMBER_MATCH) {
+            key = key.substring(0, MIN_NUMBER_MATCH);
+        }
+
+        int from = lowerBound(mNumberKeys, key);
+        int to = endOfPrefix(mNumberKeys, key, from);
+        int[] matches = new int[to - from];
+        int count = 0;
+        for (int i = from; i < to; i++) {
+            if (mNumberHandles[i] >= start && PhoneNumberUtils.compare(mNumbers[i], number)) {
+                matches[count++] = mNumberHandles[i];
+            }
+        }
+
+        /* A contact matches once, however many of its numbers match */
+        Arrays.sort(matches, 0, count);
+        int distinct = 0;
+        for (int i = 0; i < count && distinct < maxCount; i++) {
+            if (distinct == 0 || matches[i] != matches[distinct - 1]) {
+                matches[distinct++] = matches[i];
+            }
+        }
+        return Arrays.copyOf(matches, distinct);
+    }
+
+    /* First position in keys whose key is not less than key */
+    private static int lowerBound(String[] keys, String key) {
+        int low = 0;
+        int high = keys.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (keys[mid].compareTo(key) < 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /* First position from start whose key does not start with prefix. The keys
+     * starting with prefix are contiguous from lowerBound(prefix). */
+    private static int endOfPrefix(String[] keys, String prefix, int start) {
+        int low = start;
+        int high = keys.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (keys[mid].startsWith(prefix)) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+}
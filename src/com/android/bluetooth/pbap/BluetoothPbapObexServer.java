@@ -161,7 +161,8 @@ public class BluetoothPbapObexServer extends ServerRequestHandler {
 
     public static int ORDER_BY_ALPHABETICAL = 1;
 
-    public static boolean sIsAborted = false;
+    /* Set by onAbort(), and read by the threads composing vCards */
+    public static volatile boolean sIsAborted = false;
 
     public static class ContentType {
         public static final int PHONEBOOK = 1;
@@ -334,6 +335,7 @@ public class BluetoothPbapObexServer extends ServerRequestHandler {
     @Override
     public void onClose() {
         acquirePbapWakeLock();
+        mVcardManager.close();
         if (mCallback != null) {
             Message msg = Message.obtain(mCallback);
             msg.what = BluetoothPbapService.MSG_SERVERSESSION_CLOSE;
@@ -669,14 +671,13 @@ public class BluetoothPbapObexServer extends ServerRequestHandler {
 
     private int createList(final int maxListCount, final int listStartOffset,
         final String searchValue, StringBuilder result, String type, boolean SIM) {
-        int itemsFound = 0;
-        ArrayList<String> nameList = null;
         //check if current request is for SIM
-        if(SIM) {
-             nameList = mVcardManager.getSIMPhonebookNameList(mOrderBy);
-        }else{
-             nameList = mVcardManager.getPhonebookNameList(mOrderBy);
+        if (!SIM) {
+            return createNameList(mVcardManager.getPhonebookNameIndex(mOrderBy),
+                    maxListCount, listStartOffset, searchValue, result, type);
         }
+        int itemsFound = 0;
+        ArrayList<String> nameList = mVcardManager.getSIMPhonebookNameList(mOrderBy);
         final int requestSize = nameList.size() >= maxListCount ? maxListCount : nameList.size();
         final int listSize = nameList.size();
         String compareValue = "", currentValue;
@@ -687,11 +688,7 @@ public class BluetoothPbapObexServer extends ServerRequestHandler {
         if (type.equals("number")) {
             ArrayList<String> names = null;
             // query the number, to get the names
-            if(SIM) {
-                names = mVcardManager.getSIMContactNamesByNumber(searchValue);
-            } else{
-                  names = mVcardManager.getContactNamesByNumber(searchValue);
-            }
+            names = mVcardManager.getSIMContactNamesByNumber(searchValue);
             for (int i = 0; i < names.size(); i++) {
                 compareValue = names.get(i).trim();
                 if (D) Log.d(TAG, "compareValue=" + compareValue);
@@ -725,6 +722,31 @@ public class BluetoothPbapObexServer extends ServerRequestHandler {
         return itemsFound;
     }
 
+    /**
+     * Write the phonebook names starting with searchValue, or the contacts with a
+     * phone number matching searchValue, found by a binary search.
+     */
+    private int createNameList(BluetoothPbapNameIndex index, final int maxListCount,
+            final int listStartOffset, final String searchValue, StringBuilder result,
+            String type) {
+        final int requestSize = index.size() >= maxListCount ? maxListCount : index.size();
+        String compareValue = searchValue != null ? searchValue.trim() : null;
+
+        if (D) Log.d(TAG, "search by " + type + ", requestSize=" + requestSize + " offset="
+                    + listStartOffset + " searchValue=" + searchValue);
+
+        int[] handles;
+        if (type.equals("number")) {
+            handles = index.searchNumber(compareValue, listStartOffset, requestSize);
+        } else {
+            handles = index.search(compareValue, listStartOffset, requestSize);
+        }
+        for (int handle : handles) {
+            writeVCardEntry(handle, index.getName(handle), result);
+        }
+        return handles.length;
+    }
+
     /**
      * Function to send obex header back to client such as get phonebook size
      * request
@@ -36,15 +36,17 @@ package com.android.bluetooth.pbap;
 
 import android.content.ContentResolver;
 import android.content.Context;
+import android.database.ContentObserver;
 import android.database.Cursor;
 import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
 import android.provider.CallLog;
 import android.provider.CallLog.Calls;
 import android.provider.ContactsContract.CommonDataKinds;
 import android.provider.ContactsContract.Contacts;
 import android.provider.ContactsContract.Data;
 import android.provider.ContactsContract.CommonDataKinds.Phone;
-import android.provider.ContactsContract.PhoneLookup;
 import android.telephony.PhoneNumberUtils;
 import android.text.TextUtils;
 import android.util.Log;
@@ -57,7 +59,22 @@ import com.android.vcard.VCardPhoneNumberTranslationCallback;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import javax.obex.ServerOperation;
 import javax.obex.Operation;
@@ -111,6 +128,54 @@ public class BluetoothPbapVcardManager {
 
     private static final String CLAUSE_ONLY_VISIBLE = Contacts.IN_VISIBLE_GROUP + "=1";
 
+    /* The properties starting a new attribute for the vCard filter. Any other
+     * line following a filtered property is dropped with it. */
+    private static final String[] FILTER_PROPERTIES = new String[] {
+            "N:", "TEL", "VERSION", "URL", "FN", "BDAY", "ADR", "EMAIL",
+            "TITLE", "ORG", "NOTE", "NICKNAME",
+    };
+
+    private static final int FILTER_TEL = 1;
+    private static final int FILTER_URL = 3;
+    private static final int FILTER_FN = 4;
+    private static final int FILTER_BDAY = 5;
+    private static final int FILTER_ADR = 6;
+    private static final int FILTER_EMAIL = 7;
+    private static final int FILTER_TITLE = 8;
+    private static final int FILTER_ORG = 9;
+    private static final int FILTER_NOTE = 10;
+    private static final int FILTER_NICKNAME = 11;
+
+    /* Contacts vCards are composed by COMPOSE_THREADS worker threads, in chunks of
+     * COMPOSE_CHUNK_SIZE contacts. At most COMPOSE_WINDOW chunks are composed ahead
+     * of the chunk being sent, which bounds the memory used. */
+    private static final int COMPOSE_THREADS = 2;
+    private static final int COMPOSE_CHUNK_SIZE = 16;
+    private static final int COMPOSE_WINDOW = 4;
+
+    private static final int INITIAL_VCARD_BUFFER_SIZE = 1024;
+    /* A vCard with a large photo should not keep its buffer alive */
+    private static final int MAX_VCARD_BUFFER_SIZE = 16 * 1024;
+
+    /* Phonebook names per listing order, ORDER_BY_INDEXED or ORDER_BY_ALPHABETICAL,
+     * dropped when the contacts change */
+    private final BluetoothPbapNameIndex[] mNameIndexes = new BluetoothPbapNameIndex[2];
+    private int mContactsGeneration = 0;
+    private boolean mObserverRegistered = false;
+
+    private final ContentObserver mContactsObserver =
+        new ContentObserver(new Handler(Looper.getMainLooper())) {
+            @Override
+            public void onChange(boolean selfChange) {
+                if (V) Log.v(TAG, "contacts changed - dropping phonebook names");
+                synchronized (mNameIndexes) {
+                    mNameIndexes[0] = null;
+                    mNameIndexes[1] = null;
+                    mContactsGeneration++;
+                }
+            }
+        };
+
     public BluetoothPbapVcardManager(final Context context) {
         mContext = context;
         mResolver = mContext.getContentResolver();
@@ -307,7 +372,15 @@ public class BluetoothPbapVcardManager {
 
 
     public final ArrayList<String> getPhonebookNameList(final int orderByWhat) {
-        ArrayList<String> nameList = new ArrayList<String>();
+        return getPhonebookNameIndex(orderByWhat).getNames();
+    }
+
+    /**
+     * Get the phonebook names, indexed for search by name. The contact names
+     * are cached until the contacts change; the owner name is read each time.
+     * @param orderByWhat ORDER_BY_INDEXED or ORDER_BY_ALPHABETICAL
+     */
+    final BluetoothPbapNameIndex getPhonebookNameIndex(final int orderByWhat) {
         //Owner vCard enhancement. Use "ME" profile if configured
         String ownerName = null;
         if (BluetoothPbapConfig.useProfileForOwnerVcard()) {
@@ -316,9 +389,48 @@ public class BluetoothPbapVcardManager {
         if (ownerName == null || ownerName.length()==0) {
             ownerName = BluetoothPbapService.getLocalPhoneName();
         }
-        nameList.add(ownerName);
         //End enhancement
 
+        final int order = orderByWhat == BluetoothPbapObexServer.ORDER_BY_ALPHABETICAL ? 1 : 0;
+        int generation;
+        synchronized (mNameIndexes) {
+            if (!mObserverRegistered) {
+                mResolver.registerContentObserver(Contacts.CONTENT_URI, true, mContactsObserver);
+                mObserverRegistered = true;
+            }
+            BluetoothPbapNameIndex index = mNameIndexes[order];
+            if (index != null) {
+                index = index.withOwnerName(ownerName);
+                mNameIndexes[order] = index;
+                return index;
+            }
+            generation = mContactsGeneration;
+        }
+
+        ArrayList<String> names = new ArrayList<String>();
+        HashMap<Long, Integer> handles = new HashMap<Long, Integer>();
+        loadPhonebookNames(orderByWhat, names, handles);
+        ArrayList<String> numbers = new ArrayList<String>();
+        ArrayList<Integer> numberHandles = new ArrayList<Integer>();
+        loadPhonebookNumbers(handles, numbers, numberHandles);
+        BluetoothPbapNameIndex index = new BluetoothPbapNameIndex(ownerName, names,
+                numbers, numberHandles);
+        synchronized (mNameIndexes) {
+            // Do not cache names read while the contacts were changing
+            if (generation == mContactsGeneration) {
+                mNameIndexes[order] = index;
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Read the contact names in listing order.
+     * @param nameList receives the names
+     * @param handles receives the handle of each contact id
+     */
+    private void loadPhonebookNames(final int orderByWhat, ArrayList<String> nameList,
+            HashMap<Long, Integer> handles) {
         final Uri myUri = Contacts.CONTENT_URI;
         Cursor contactCursor = null;
         try {
@@ -339,6 +451,8 @@ public class BluetoothPbapVcardManager {
                         name = mContext.getString(android.R.string.unknownName);
                     }
                     nameList.add(name);
+                    handles.put(contactCursor.getLong(CONTACTS_ID_COLUMN_INDEX),
+                            nameList.size());
                 }
             }
         } finally {
@@ -346,7 +460,50 @@ public class BluetoothPbapVcardManager {
                 contactCursor.close();
             }
         }
-        return nameList;
+    }
+
+    /**
+     * Read the phone numbers of the listed contacts.
+     * @param handles the handle of each contact id
+     * @param numbers receives the phone numbers
+     * @param numberHandles receives the handle of the contact of each number
+     */
+    private void loadPhonebookNumbers(HashMap<Long, Integer> handles,
+            ArrayList<String> numbers, ArrayList<Integer> numberHandles) {
+        Cursor c = null;
+        try {
+            c = mResolver.query(Phone.CONTENT_URI,
+                    new String[] {Phone.CONTACT_ID, Phone.NUMBER}, CLAUSE_ONLY_VISIBLE,
+                    null, null);
+            if (c != null) {
+                while (c.moveToNext()) {
+                    Integer handle = handles.get(c.getLong(0));
+                    String number = c.getString(1);
+                    if (handle != null && number != null) {
+                        numbers.add(number);
+                        numberHandles.add(handle);
+                    }
+                }
+            }
+        } finally {
+            if (c != null) {
+                c.close();
+            }
+        }
+    }
+
+    /**
+     * Drop the cached phonebook names and stop observing the contacts.
+     */
+    public final void close() {
+        synchronized (mNameIndexes) {
+            if (mObserverRegistered) {
+                mResolver.unregisterContentObserver(mContactsObserver);
+                mObserverRegistered = false;
+            }
+            mNameIndexes[0] = null;
+            mNameIndexes[1] = null;
+        }
     }
 
     public final ArrayList<String> getSIMContactNamesByNumber(final String phoneNumber) {
@@ -418,50 +575,6 @@ public class BluetoothPbapVcardManager {
 
         return nameList;
     }
-    public final ArrayList<String> getContactNamesByNumber(final String phoneNumber) {
-        ArrayList<String> nameList = new ArrayList<String>();
-        ArrayList<String> tempNameList = new ArrayList<String>();
-
-        Cursor contactCursor = null;
-        Uri uri = null;
-
-        if (phoneNumber != null && phoneNumber.length() == 0) {
-            uri = Contacts.CONTENT_URI;
-        } else {
-            uri = Uri.withAppendedPath(PhoneLookup.CONTENT_FILTER_URI,
-                Uri.encode(phoneNumber));
-        }
-
-        try {
-            contactCursor = mResolver.query(uri, CONTACTS_PROJECTION, CLAUSE_ONLY_VISIBLE,
-                        null, Contacts._ID);
-
-            if (contactCursor != null) {
-                for (contactCursor.moveToFirst(); !contactCursor.isAfterLast(); contactCursor
-                        .moveToNext()) {
-                    String name = contactCursor.getString(CONTACTS_NAME_COLUMN_INDEX);
-                    long id = contactCursor.getLong(CONTACTS_ID_COLUMN_INDEX);
-                    if (TextUtils.isEmpty(name)) {
-                        name = mContext.getString(android.R.string.unknownName);
-                    }
-                    if (V) Log.v(TAG, "got name " + name + " by number " + phoneNumber + " @" + id);
-                    tempNameList.add(name);
-                }
-            }
-        } finally {
-            if (contactCursor != null) {
-                contactCursor.close();
-            }
-        }
-        int tempListSize = tempNameList.size();
-        for (int index = 0; index < tempListSize; index++) {
-            String object = tempNameList.get(index);
-            if (!nameList.contains(object))
-                nameList.add(object);
-        }
-
-        return nameList;
-    }
 
     public final int composeAndSendCallLogVcards(final int type, Operation op,
             final int startPoint, final int endPoint, final boolean vcardType21, boolean ignorefilter, byte[] filter) {
@@ -535,10 +648,23 @@ public class BluetoothPbapVcardManager {
         Cursor contactCursor = null;
         long startPointId = 0;
         long endPointId = 0;
+        /* The ids of a range large enough to be composed in parallel */
+        long[] ids = null;
         try {
             contactCursor = mResolver.query(myUri, CONTACTS_PROJECTION, CLAUSE_ONLY_VISIBLE, null,
                     Contacts._ID);
             if (contactCursor != null) {
+                if (endPoint - startPoint + 1 > COMPOSE_CHUNK_SIZE) {
+                    ids = new long[endPoint - startPoint + 1];
+                    int count = 0;
+                    for (int pos = startPoint - 1; pos < endPoint
+                            && contactCursor.moveToPosition(pos); pos++) {
+                        ids[count++] = contactCursor.getLong(CONTACTS_ID_COLUMN_INDEX);
+                    }
+                    if (count < ids.length) {
+                        ids = Arrays.copyOf(ids, count);
+                    }
+                }
                 contactCursor.moveToPosition(startPoint - 1);
                 startPointId = contactCursor.getLong(CONTACTS_ID_COLUMN_INDEX);
                 if (V) Log.v(TAG, "Query startPointId = " + startPointId);
@@ -566,7 +692,8 @@ public class BluetoothPbapVcardManager {
 
         if (V) Log.v(TAG, "Query selection is: " + selection);
 
-        return composeAndSendVCards(op, selection, vcardType21, ownerVCard, true, ignorefilter, filter);
+        return composeAndSendVCards(op, selection, ids, vcardType21, ownerVCard, true,
+                ignorefilter, filter);
     }
     public final int composeAndSendSIMPhonebookVcards(Operation op, final int startPoint,
             final int endPoint, final boolean vcardType21, String ownerVCard) {
@@ -600,6 +727,9 @@ public class BluetoothPbapVcardManager {
                    }
                    buffer.onEntryCreated(vcard);
                }
+               if (!buffer.flush()) {
+                   return ResponseCodes.OBEX_HTTP_INTERNAL_ERROR;
+               }
             } finally {
                 if (composer != null) {
                     composer.terminate();
@@ -696,6 +826,9 @@ public class BluetoothPbapVcardManager {
                     return ResponseCodes.OBEX_HTTP_INTERNAL_ERROR;
                 }
                 buffer.onEntryCreated(vcard);
+                if (!buffer.flush()) {
+                    return ResponseCodes.OBEX_HTTP_INTERNAL_ERROR;
+                }
             } finally {
                 if (composer != null) {
                     composer.terminate();
@@ -708,8 +841,187 @@ public class BluetoothPbapVcardManager {
         return ResponseCodes.OBEX_HTTP_OK;
     }
 
+    private VCardComposer createContactsComposer(int vcardType) {
+        //Enhancement: customize Vcard based on preferences/settings and input from caller
+        VCardComposer composer = BluetoothPbapUtils.createFilteredVCardComposer(mContext,
+                vcardType, null);
+        //End enhancement
+
+        // BT does want PAUSE/WAIT conversion while it doesn't want the other formatting
+        // done by vCard library by default.
+        composer.setPhoneNumberTranslationCallback(
+                new VCardPhoneNumberTranslationCallback() {
+                    public String onValueReceived(
+                            String rawValue, int type, String label, boolean isPrimary) {
+                        // 'p' and 'w' are the standard characters for pause and wait
+                        // (see RFC 3601)
+                        // so use those when exporting phone numbers via vCard.
+                        String numberWithControlSequence = rawValue
+                                .replace(PhoneNumberUtils.PAUSE, 'p')
+                                .replace(PhoneNumberUtils.WAIT, 'w');
+                        return numberWithControlSequence;
+                    }
+                });
+        return composer;
+    }
+
+    /**
+     * The vCards composed from a chunk of contacts, filtered and encoded.
+     */
+    private static class ComposedChunk {
+        byte[] data = new byte[INITIAL_VCARD_BUFFER_SIZE];
+        int length = 0;
+        boolean failed = false;
+
+        void append(byte[] bytes, int count) {
+            if (length + count > data.length) {
+                byte[] larger = new byte[Math.max(data.length * 2, length + count)];
+                System.arraycopy(data, 0, larger, 0, length);
+                data = larger;
+            }
+            System.arraycopy(bytes, 0, data, length, count);
+            length += count;
+        }
+    }
+
+    /**
+     * Compose, filter and encode the vCards of a chunk of contacts.
+     */
+    private class ComposeTask implements Callable<ComposedChunk> {
+        private final String selection;
+        private final int vcardType;
+        private final boolean vcardType21;
+        private final FilterVcard filter;
+        private final AtomicBoolean cancelled;
+
+        ComposeTask(long[] ids, int start, int end, int vcardType, boolean vcardType21,
+                FilterVcard filter, AtomicBoolean cancelled) {
+            StringBuilder sb = new StringBuilder(Contacts._ID + " IN (");
+            for (int i = start; i < end; i++) {
+                if (i > start) sb.append(',');
+                sb.append(ids[i]);
+            }
+            sb.append(')');
+            this.selection = sb.toString();
+            this.vcardType = vcardType;
+            this.vcardType21 = vcardType21;
+            this.filter = filter;
+            this.cancelled = cancelled;
+        }
+
+        private boolean isCancelled() {
+            return cancelled.get() || BluetoothPbapObexServer.sIsAborted;
+        }
+
+        public ComposedChunk call() {
+            ComposedChunk chunk = new ComposedChunk();
+            VCardEncoder encoder = new VCardEncoder();
+            VCardComposer composer = null;
+            try {
+                composer = createContactsComposer(vcardType);
+                if (!composer.init(Contacts.CONTENT_URI, selection, null, Contacts._ID)) {
+                    Log.e(TAG, "Failed to init composer: " + composer.getErrorReason());
+                    chunk.failed = true;
+                    return chunk;
+                }
+                while (!composer.isAfterLast() && !isCancelled()) {
+                    String vcard = composer.createOneEntry();
+                    if (vcard == null) {
+                        Log.e(TAG, "Failed to read a contact. Error reason: "
+                                + composer.getErrorReason());
+                        chunk.failed = true;
+                        break;
+                    }
+                    // Without a filter set, this only strips the TEL values
+                    encoder.encode(vcard);
+                    int length = filter.applyFilter(encoder.array(), encoder.length(),
+                            vcardType21);
+                    chunk.append(encoder.array(), length);
+                }
+            } finally {
+                if (composer != null) {
+                    composer.terminate();
+                }
+            }
+            return chunk;
+        }
+    }
+
+    /**
+     * Send the vCards of a list of contacts. Worker threads compose the vCards ahead of
+     * the OBEX server thread, which sends them in order.
+     */
+    private int composeAndSendContactVCardsParallel(Operation op, long[] ids, int vcardType,
+            boolean vcardType21, String ownerVCard, FilterVcard vcardfilter) {
+        final AtomicBoolean cancelled = new AtomicBoolean(false);
+        ExecutorService executor = Executors.newFixedThreadPool(COMPOSE_THREADS);
+        ArrayDeque<Future<ComposedChunk>> pending = new ArrayDeque<Future<ComposedChunk>>();
+        HandlerForStringBuffer buffer = new HandlerForStringBuffer(op, ownerVCard);
+        int next = 0;
+
+        try {
+            if (!buffer.onInit(mContext)) {
+                return ResponseCodes.OBEX_HTTP_INTERNAL_ERROR;
+            }
+            while (next < ids.length && pending.size() < COMPOSE_WINDOW) {
+                int end = Math.min(next + COMPOSE_CHUNK_SIZE, ids.length);
+                pending.add(executor.submit(new ComposeTask(ids, next, end, vcardType,
+                        vcardType21, vcardfilter, cancelled)));
+                next = end;
+            }
+
+            while (!pending.isEmpty()) {
+                if (BluetoothPbapObexServer.sIsAborted) {
+                    ((ServerOperation)op).isAborted = true;
+                    BluetoothPbapObexServer.sIsAborted = false;
+                    break;
+                }
+                ComposedChunk chunk = pending.poll().get();
+                if (next < ids.length) {
+                    int end = Math.min(next + COMPOSE_CHUNK_SIZE, ids.length);
+                    pending.add(executor.submit(new ComposeTask(ids, next, end, vcardType,
+                            vcardType21, vcardfilter, cancelled)));
+                    next = end;
+                }
+                if (chunk.failed) {
+                    return ResponseCodes.OBEX_HTTP_INTERNAL_ERROR;
+                }
+                if (!buffer.write(chunk.data, 0, chunk.length)) {
+                    return ResponseCodes.OBEX_HTTP_INTERNAL_ERROR;
+                }
+            }
+            if (!buffer.flush()) {
+                return ResponseCodes.OBEX_HTTP_INTERNAL_ERROR;
+            }
+        } catch (InterruptedException e) {
+            Log.e(TAG, "Interrupted while composing vCards");
+            return ResponseCodes.OBEX_HTTP_INTERNAL_ERROR;
+        } catch (ExecutionException e) {
+            Log.e(TAG, "Failed to compose vCards", e.getCause());
+            return ResponseCodes.OBEX_HTTP_INTERNAL_ERROR;
+        } finally {
+            cancelled.set(true);
+            for (Future<ComposedChunk> f : pending) {
+                f.cancel(false);
+            }
+            executor.shutdown();
+            buffer.onTerminate();
+        }
+        return ResponseCodes.OBEX_HTTP_OK;
+    }
+
     public final int composeAndSendVCards(Operation op, final String selection,
             final boolean vcardType21, String ownerVCard, boolean isContacts, boolean ignorefilter, byte[] filter) {
+        return composeAndSendVCards(op, selection, null, vcardType21, ownerVCard, isContacts,
+                ignorefilter, filter);
+    }
+
+    /**
+     * @param ids the ids of the contacts matching selection, in _ID order, to compose
+     * them on worker threads when there are more than COMPOSE_CHUNK_SIZE; or null
+     */
+    private int composeAndSendVCards(Operation op, final String selection, long[] ids,
+            final boolean vcardType21, String ownerVCard, boolean isContacts, boolean ignorefilter, byte[] filter) {
         long timestamp = 0;
         if (V) timestamp = System.currentTimeMillis();
 
@@ -719,38 +1031,28 @@ public class BluetoothPbapVcardManager {
             if (!ignorefilter) {
                 vcardfilter.setFilter(filter);
             }
+            // Currently only support Generic Vcard 2.1 and 3.0
+            int vcardType;
+            if (vcardType21) {
+                vcardType = VCardConfig.VCARD_TYPE_V21_GENERIC;
+            } else {
+                vcardType = VCardConfig.VCARD_TYPE_V30_GENERIC;
+            }
+            if (!vcardfilter.isPhotoEnabled()) {
+                vcardType |= VCardConfig.FLAG_REFRAIN_IMAGE_EXPORT;
+            }
+
+            if (ids != null && ids.length > COMPOSE_CHUNK_SIZE) {
+                int result = composeAndSendContactVCardsParallel(op, ids, vcardType,
+                        vcardType21, ownerVCard, vcardfilter);
+                if (V) Log.v(TAG, "Total vcard composing and sending out takes "
+                        + (System.currentTimeMillis() - timestamp) + " ms");
+                return result;
+            }
+
             HandlerForStringBuffer buffer = null;
             try {
-                // Currently only support Generic Vcard 2.1 and 3.0
-                int vcardType;
-                if (vcardType21) {
-                    vcardType = VCardConfig.VCARD_TYPE_V21_GENERIC;
-                } else {
-                    vcardType = VCardConfig.VCARD_TYPE_V30_GENERIC;
-                }
-                if (!vcardfilter.isPhotoEnabled()) {
-                    vcardType |= VCardConfig.FLAG_REFRAIN_IMAGE_EXPORT;
-                }
-
-                //Enhancement: customize Vcard based on preferences/settings and input from caller
-                composer = BluetoothPbapUtils.createFilteredVCardComposer(mContext, vcardType,null);
-                //End enhancement
-
-                // BT does want PAUSE/WAIT conversion while it doesn't want the other formatting
-                // done by vCard library by default.
-                composer.setPhoneNumberTranslationCallback(
-                        new VCardPhoneNumberTranslationCallback() {
-                            public String onValueReceived(
-                                    String rawValue, int type, String label, boolean isPrimary) {
-                                // 'p' and 'w' are the standard characters for pause and wait
-                                // (see RFC 3601)
-                                // so use those when exporting phone numbers via vCard.
-                                String numberWithControlSequence = rawValue
-                                        .replace(PhoneNumberUtils.PAUSE, 'p')
-                                        .replace(PhoneNumberUtils.WAIT, 'w');
-                                return numberWithControlSequence;
-                            }
-                        });
+                composer = createContactsComposer(vcardType);
                 buffer = new HandlerForStringBuffer(op, ownerVCard);
                 if (!composer.init(Contacts.CONTENT_URI, selection, null, Contacts._ID) ||
                         !buffer.onInit(mContext)) {
@@ -764,28 +1066,22 @@ public class BluetoothPbapVcardManager {
                         break;
                     }
                     String vcard = composer.createOneEntry();
-                    Log.v (TAG , "vCard from composer: " + vcard);
-                    if (!ignorefilter) {
-                        vcard = vcardfilter.applyFilter(vcard, vcardType21);
-                        Log.v (TAG , "vCard on applying filter: " + vcard);
-                    }
-                    vcard = StripTelephoneNumber(vcard);
-
                     if (vcard == null) {
                         Log.e(TAG, "Failed to read a contact. Error reason: "
                                 + composer.getErrorReason());
                         return ResponseCodes.OBEX_HTTP_INTERNAL_ERROR;
                     }
-                    if (V) {
-                        Log.v(TAG, "Vcard Entry:");
-                        Log.v(TAG,vcard);
-                    }
+                    if (V) Log.v(TAG, "vCard from composer: " + vcard);
 
-                    if (!buffer.onEntryCreated(vcard)) {
+                    // Without a filter set, this only strips the TEL values
+                    if (!buffer.onEntryCreated(vcard, vcardfilter, vcardType21)) {
                         // onEntryCreate() already emits error.
                         return ResponseCodes.OBEX_HTTP_INTERNAL_ERROR;
                     }
                 }
+                if (!buffer.flush()) {
+                    return ResponseCodes.OBEX_HTTP_INTERNAL_ERROR;
+                }
             } finally {
                 if (composer != null) {
                     composer.terminate();
@@ -826,6 +1122,9 @@ public class BluetoothPbapVcardManager {
 
                     buffer.onEntryCreated(vcard);
                 }
+                if (!buffer.flush()) {
+                    return ResponseCodes.OBEX_HTTP_INTERNAL_ERROR;
+                }
             } finally {
                 if (composer != null) {
                     composer.terminate();
@@ -842,29 +1141,57 @@ public class BluetoothPbapVcardManager {
         return ResponseCodes.OBEX_HTTP_OK;
     }
 
-    public String StripTelephoneNumber (String vCard){
-        String attr [] = vCard.split(System.getProperty("line.separator"));
-        String Vcard = "";
-            for (int i=0; i < attr.length; i++) {
-                if(attr[i].startsWith("TEL")) {
-                    attr[i] = attr[i].replace("(", "");
-                    attr[i] = attr[i].replace(")", "");
-                    attr[i] = attr[i].replace("-", "");
-                    attr[i] = attr[i].replace(" ", "");
-                }
-            }
+    /**
+     * Encoder of vCards to UTF-8, into a buffer reused for all vCards. The buffer has
+     * room for one byte more than the encoded vCard, as needed by
+     * FilterVcard.applyFilter().
+     */
+    private static class VCardEncoder {
+        private final CharsetEncoder encoder = Charset.forName("UTF-8").newEncoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
 
-            for (int i=0; i < attr.length; i++) {
-                if(!attr[i].equals("")){
-                    Vcard = Vcard.concat(attr[i] + "\n");
-                }
+        private ByteBuffer encoded = ByteBuffer.allocate(INITIAL_VCARD_BUFFER_SIZE);
+
+        void encode(String vCard) {
+            if (encoded.capacity() > MAX_VCARD_BUFFER_SIZE
+                    && vCard.length() < INITIAL_VCARD_BUFFER_SIZE) {
+                encoded = ByteBuffer.allocate(INITIAL_VCARD_BUFFER_SIZE);
+            }
+            CharBuffer in = CharBuffer.wrap(vCard);
+            encoded.clear();
+            encoder.reset();
+            while (encoder.encode(in, encoded, true).isOverflow()) {
+                grow((int)(in.remaining() * encoder.averageBytesPerChar()));
+            }
+            while (encoder.flush(encoded).isOverflow()) {
+                grow(0);
             }
-        Log.v(TAG, "Vcard with stripped telephone no.: " + Vcard);
-        return Vcard;
+            if (encoded.remaining() == 0) {
+                grow(0);
+            }
+        }
+
+        private void grow(int needed) {
+            ByteBuffer larger = ByteBuffer.allocate(encoded.capacity() * 2 + needed);
+            encoded.flip();
+            larger.put(encoded);
+            encoded = larger;
+        }
+
+        byte[] array() {
+            return encoded.array();
+        }
+
+        int length() {
+            return encoded.position();
+        }
     }
 
     /**
      * Handler to emit vCards to PCE.
+     * Each vCard is encoded to UTF-8 by a VCardEncoder, filtered in place, and copied
+     * into packet sized chunks which are written to the OBEX stream.
      */
     public class HandlerForStringBuffer {
         private Operation operation;
@@ -873,6 +1200,14 @@ public class BluetoothPbapVcardManager {
 
         private String phoneOwnVCard = null;
 
+        /* The UTF-8 encoding of the current vCard */
+        private final VCardEncoder encoded = new VCardEncoder();
+
+        /* Bytes not yet written to the OBEX stream, up to one packet */
+        private byte[] packet;
+
+        private int packetLength = 0;
+
         public HandlerForStringBuffer(Operation op, String ownerVCard) {
             operation = op;
             if (ownerVCard != null) {
@@ -882,21 +1217,38 @@ public class BluetoothPbapVcardManager {
             }
         }
 
-        private boolean write(String vCard) {
+        private boolean write(byte[] data, int offset, int length) {
             try {
-                if (vCard != null) {
-                    outputStream.write(vCard.getBytes());
-                    return true;
+                while (length > 0) {
+                    int count = Math.min(length, packet.length - packetLength);
+                    System.arraycopy(data, offset, packet, packetLength, count);
+                    packetLength += count;
+                    offset += count;
+                    length -= count;
+                    if (packetLength == packet.length) {
+                        outputStream.write(packet, 0, packetLength);
+                        packetLength = 0;
+                    }
                 }
+                return true;
             } catch (IOException e) {
                 Log.e(TAG, "write outputstrem failed" + e.toString());
             }
             return false;
         }
 
+        private boolean write(String vCard) {
+            if (vCard != null) {
+                encoded.encode(vCard);
+                return write(encoded.array(), 0, encoded.length());
+            }
+            return false;
+        }
+
         public boolean onInit(Context context) {
             try {
                 outputStream = operation.openOutputStream();
+                packet = new byte[Math.max(operation.getMaxPacketSize(), 1)];
                 if (phoneOwnVCard != null) {
                     return write(phoneOwnVCard);
                 }
@@ -911,7 +1263,56 @@ public class BluetoothPbapVcardManager {
             return write(vcard);
         }
 
+        /**
+         * Emit a vCard after applying a filter to it.
+         */
+        public boolean onEntryCreated(String vcard, FilterVcard filter, boolean vCardType21) {
+            if (vcard == null) {
+                return false;
+            }
+            encoded.encode(vcard);
+            int length = filter.applyFilter(encoded.array(), encoded.length(), vCardType21);
+            if (V) {
+                try {
+                    Log.v(TAG, "Vcard Entry:");
+                    Log.v(TAG, new String(encoded.array(), 0, length, "UTF-8"));
+                } catch (UnsupportedEncodingException e) {
+                    // UTF-8 is always supported
+                }
+            }
+            return write(encoded.array(), 0, length);
+        }
+
+        /**
+         * Write the last, partial packet. Must be called once all the vCards were
+         * emitted, as onTerminate() drops what is still buffered. Nothing is written
+         * if the operation was aborted.
+         * @return false if the write failed.
+         */
+        public boolean flush() {
+            if (BluetoothPbapObexServer.sIsAborted) {
+                ((ServerOperation)operation).isAborted = true;
+                BluetoothPbapObexServer.sIsAborted = false;
+            }
+            if (((ServerOperation)operation).isAborted) {
+                packetLength = 0;
+                return true;
+            }
+            if (outputStream == null || packetLength == 0) {
+                return true;
+            }
+            try {
+                outputStream.write(packet, 0, packetLength);
+                packetLength = 0;
+                return true;
+            } catch (IOException e) {
+                Log.e(TAG, "write outputstrem failed" + e.toString());
+            }
+            return false;
+        }
+
         public void onTerminate() {
+            packetLength = 0;
             if (!BluetoothPbapObexServer.closeStream(outputStream, operation)) {
                 if (V) Log.v(TAG, "CloseStream failed!");
             } else {
@@ -925,6 +1326,8 @@ public class BluetoothPbapVcardManager {
         public FilterVcard(){
         };
 
+        private boolean filterSet = false;
+
         private final int FN_BIT = 1;
 
         private boolean fn = true;
@@ -968,6 +1371,7 @@ public class BluetoothPbapVcardManager {
 
         public void setFilter(byte[] filter){
 
+           filterSet = true;
            fn = checkbit(FN_BIT, filter);
            photo = checkbit(PHOTO_BIT, filter);
            bday = checkbit(BDAY_BIT, filter);
@@ -992,216 +1396,114 @@ public class BluetoothPbapVcardManager {
             return photo;
         }
 
-        private boolean checkValidFilter (String attr) {
-            if((attr.startsWith("N:")) || (attr.startsWith("TEL"))
-                || (attr.startsWith("VERSION")) || (attr.startsWith("URL"))
-                || (attr.startsWith("FN")) || (attr.startsWith("BDAY"))
-                || (attr.startsWith("ADR")) || (attr.startsWith("EMAIL"))
-                || (attr.startsWith("TITLE")) || (attr.startsWith("ORG"))
-                || (attr.startsWith("NOTE")) || (attr.startsWith("NICKNAME"))) {
-                return true;
+        /**
+         * Get the mask of the FILTER_PROPERTIES to drop from the vCards.
+         */
+        private int getDropMask(boolean vCardType21) {
+            if (!filterSet) {
+                return 0;
             }
-            return false;
-        }
-
-        public String applyFilter ( String vCard, boolean vCardType21){
-            String attr [] = vCard.split(System.getProperty("line.separator"));
-            String filteredVcard = "";
-
+            int mask = 0;
             //FN is not the mandatory field in 2.1 vCard
-            if(((!fn) && (vCardType21)) && (vCard.contains("FN"))) {
-                for (int i=0; i < attr.length; i++) {
-                    if(attr[i].startsWith("FN")){
-                        attr[i] = "";
-                        /** Remove multiline Content, if any */
-                        /** End traversal before END:VCARD */
-                        for (int j = i+1; j < attr.length - 1; j++) {
-                            if (checkValidFilter(attr[j])) {
-                                break;
-                            } else {
-                                /** Continuation of above attribute, remove */
-                                attr[j] = "";
-                            }
-                        }
-                    }
-                }
-            }
+            if (!fn && vCardType21) mask |= 1 << FILTER_FN;
+            //NOTE: No need to check photo, we already refrained it if it is not set in the filter
+            if (!bday) mask |= 1 << FILTER_BDAY;
+            if (!adr) mask |= 1 << FILTER_ADR;
+            if (!email) mask |= 1 << FILTER_EMAIL;
+            if (!title) mask |= 1 << FILTER_TITLE;
+            if (!org) mask |= 1 << FILTER_ORG;
+            if (!notes) mask |= 1 << FILTER_NOTE;
+            /*Nickname is not supported in 2.1 version.
+             *Android still ads it for 2.1 with nickname mentioned in lower case, and therefore
+             *we need to check for both cases.
+             */
+            if (!nickname || vCardType21) mask |= 1 << FILTER_NICKNAME;
+            if (!url) mask |= 1 << FILTER_URL;
+            return mask;
+        }
 
-          //NOTE: No need to check photo, we already refrained it if it is not set in the filter
-            if((!bday) && (vCard.contains("BDAY"))) {
-                for (int i=0; i < attr.length; i++) {
-                    if(attr[i].startsWith("BDAY")){
-                        attr[i] = "";
-                        /** Remove multiline Content, if any */
-                        /** End traversal before END:VCARD */
-                        for (int j = i+1; j < attr.length - 1; j++) {
-                            if (checkValidFilter(attr[j])) {
-                                break;
-                            } else {
-                                /** Continuation of above attribute, remove */
-                                attr[j] = "";
-                            }
-                        }
-                    }
+        /**
+         * Get the index in FILTER_PROPERTIES of the property starting the line at
+         * offset start, or -1 if the line is not the start of such a property.
+         */
+        private int getProperty(byte[] vCard, int start, int end) {
+            for (int i = 0; i < FILTER_PROPERTIES.length; i++) {
+                String property = FILTER_PROPERTIES[i];
+                int length = property.length();
+                if (end - start < length) {
+                    continue;
                 }
-            }
-
-            if((!adr) && (vCard.contains("ADR"))) {
-                for (int i=0; i < attr.length; i++) {
-                    if(attr[i].startsWith("ADR")){
-                        attr[i] = "";
-                        /** Remove multiline Content, if any */
-                        /** End traversal before END:VCARD */
-                        for (int j = i+1; j < attr.length - 1; j++) {
-                            if (checkValidFilter(attr[j])) {
-                                break;
-                            } else {
-                                /** Continuation of above attribute, remove */
-                                attr[j] = "";
-                            }
-                        }
-                    }
+                int j = 0;
+                while (j < length && vCard[start + j] == property.charAt(j)) {
+                    j++;
                 }
-            }
-
-            if((!email) && (vCard.contains("EMAIL"))) {
-                for (int i=0; i < attr.length; i++) {
-                    if(attr[i].startsWith("EMAIL")){
-                        attr[i] = "";
-                        /** Remove multiline Content, if any */
-                        /** End traversal before END:VCARD */
-                        for (int j = i+1; j < attr.length - 1; j++) {
-                            if (checkValidFilter(attr[j])) {
-                                break;
-                            } else {
-                                /** Continuation of above attribute, remove */
-                                attr[j] = "";
-                            }
-                        }
-                    }
+                if (j == length) {
+                    return i;
                 }
             }
+            return -1;
+        }
 
-            if((!title) && (vCard.contains("TITLE"))) {
-                for (int i=0; i < attr.length; i++) {
-                    if(attr[i].startsWith("TITLE")){
-                        attr[i] = "";
-                        /** Remove multiline Content, if any */
-                        /** End traversal before END:VCARD */
-                        for (int j = i+1; j < attr.length - 1; j++) {
-                            if (checkValidFilter(attr[j])) {
-                                break;
-                            } else {
-                                /** Continuation of above attribute, remove */
-                                attr[j] = "";
-                            }
-                        }
-                    }
-                }
+        /**
+         * Apply the filter to a UTF-8 encoded vCard, and strip the formatting from
+         * the TEL values, in a single pass over the lines of the vCard.
+         * A line starting with a filtered property is dropped along with the lines
+         * following it, up to the next line starting with one of the FILTER_PROPERTIES.
+         * The last line (END:VCARD) is always kept. Empty lines are dropped.
+         * If no filter has been set, only the TEL values are stripped.
+         * The vCard is filtered in place, with each line terminated by '\n', hence
+         * vCard must have room for one byte more than length.
+         * @return the length of the filtered vCard.
+         */
+        public int applyFilter(byte[] vCard, int length, boolean vCardType21) {
+            int dropMask = getDropMask(vCardType21);
+
+            /* The start of the last non empty line */
+            int last = length;
+            while (last > 0 && vCard[last - 1] == '\n') {
+                last--;
             }
-
-            if((!org) && (vCard.contains("ORG"))) {
-                for (int i=0; i < attr.length; i++) {
-                    if(attr[i].startsWith("ORG")){
-                        attr[i] = "";
-                        /** Remove multiline Content, if any */
-                        /** End traversal before END:VCARD */
-                        for (int j = i+1; j < attr.length - 1; j++) {
-                            if (checkValidFilter(attr[j])) {
-                                break;
-                            } else {
-                                /** Continuation of above attribute, remove */
-                                attr[j] = "";
-                            }
-                        }
-                    }
-                }
+            while (last > 0 && vCard[last - 1] != '\n') {
+                last--;
             }
 
-            if((!notes) && (vCard.contains("NOTE"))) {
-                for (int i=0; i < attr.length; i++) {
-                    if(attr[i].startsWith("NOTE")){
-                        attr[i] = "";
-                        /** Remove multiline Content, if any */
-                        /** End traversal before END:VCARD */
-                        for (int j = i+1; j < attr.length - 1; j++) {
-                            if (checkValidFilter(attr[j])) {
-                                break;
-                            } else {
-                                /** Continuation of above attribute, remove */
-                                attr[j] = "";
-                            }
-                        }
-                    }
+            boolean dropping = false;
+            int out = 0;
+            int start = 0;
+            while (start < length) {
+                int end = start;
+                while (end < length && vCard[end] != '\n') {
+                    end++;
                 }
-            }
-            /*Nickname is not supported in 2.1 version.
-             *Android still ads it for 2.1 with nickname mentioned in lower case, and therefore
-             *we need to check for both cases.
-             */
-            if(((!nickname) || (vCardType21)) && (vCard.contains("NICKNAME"))) {
-                for (int i=0; i < attr.length; i++) {
-                    if(attr[i].startsWith("NICKNAME")){
-                        attr[i] = "";
-                        /** Remove multiline Content, if any */
-                        /** End traversal before END:VCARD */
-                        for (int j = i+1; j < attr.length - 1; j++) {
-                            if (checkValidFilter(attr[j])) {
-                                break;
-                            } else {
-                                /** Continuation of above attribute, remove */
-                                attr[j] = "";
-                            }
-                        }
+                if (end > start) {
+                    int property = getProperty(vCard, start, end);
+                    boolean drop;
+                    if (property >= 0) {
+                        dropping = (dropMask & (1 << property)) != 0;
+                        drop = dropping;
+                    } else {
+                        /* Continuation of the above attribute */
+                        drop = dropping && start != last;
                     }
-                }
-            }
 
-            if((!url) && (vCard.contains("URL"))) {
-                for (int i=0; i < attr.length; i++) {
-                    if(attr[i].startsWith("URL")){
-                        attr[i] = "";
-                        /** Remove multiline Content, if any */
-                        /** End traversal before END:VCARD */
-                        for (int j = i+1; j < attr.length - 1; j++) {
-                            if (checkValidFilter(attr[j])) {
-                                break;
-                            } else {
-                                /** Continuation of above attribute, remove */
-                                attr[j] = "";
+                    if (!drop) {
+                        if (property == FILTER_TEL) {
+                            for (int i = start; i < end; i++) {
+                                byte b = vCard[i];
+                                if (b != '(' && b != ')' && b != '-' && b != ' ') {
+                                    vCard[out++] = b;
+                                }
                             }
+                        } else {
+                            System.arraycopy(vCard, start, vCard, out, end - start);
+                            out += end - start;
                         }
+                        vCard[out++] = '\n';
                     }
                 }
+                start = end + 1;
             }
-            /*Since PBAP does not have filter bit for IM and SIP,
-             *removing them by default.
-            */
-            if(vCard.toUpperCase().contains("IM")) {
-                for (int i=0; i < attr.length; i++) {
-                    if(attr[i].toUpperCase().contains("IM")){
-                        vCard = vCard.replace(attr[i] + "\n", "");
-                    }
-                }
-            }
-
-            if(vCard.toUpperCase().contains("SIP")) {
-                for (int i=0; i < attr.length; i++) {
-                    if(attr[i].toUpperCase().contains("SIP")){
-                        vCard = vCard.replace(attr[i] + "\n", "");
-                    }
-                }
-            }
-
-            Log.v(TAG, "Tokens after applying filter: ");
-
-            for (int i=0; i < attr.length; i++) {
-                if(!attr[i].equals("")){
-                    filteredVcard = filteredVcard.concat(attr[i] + "\n");
-                }
-            }
-
-            return filteredVcard;
+            return out;
         }
     }
 }
@@ -0,0 +1,220 @@
+package com.android.bluetooth.gatt;
+
+import android.test.AndroidTestCase;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.UUID;
+
+/***
+ *
+ * Test cases for the GATT server handle map.
+ *
+ */
+public class HandleMapTest extends AndroidTestCase {
+    protected static String TAG = "HandleMapTest";
+    protected static final boolean D = true;
+
+    private static final int SERVER_IF = 5;
+    private static final int ATTRS_PER_SERVICE = 10;
+
+    /**
+     * An attribute as registered by the test, searched by linear scan
+     * as the reference for the handle map lookups.
+     */
+    private static class Attribute {
+        final int type;
+        final int handle;
+        final UUID uuid;
+        final int serviceHandle;
+        final int charHandle;
+
+        Attribute(int type, int handle, UUID uuid, int serviceHandle, int charHandle) {
+            this.type = type;
+            this.handle = handle;
+            this.uuid = uuid;
+            this.serviceHandle = serviceHandle;
+            this.charHandle = charHandle;
+        }
+    }
+
+    public HandleMapTest() {
+        super();
+    }
+
+    private static UUID uuid16(int uuid) {
+        return new UUID(((long) uuid << 32) | 0x1000L, 0x800000805f9b34fbL);
+    }
+
+    /**
+     * Populates a handle map with services of one characteristic and
+     * eight descriptors each, until attrCount attributes are registered.
+     */
+    private HandleMap buildMap(int attrCount) {
+        return buildMap(attrCount, new ArrayList<Attribute>());
+    }
+
+    /**
+     * As buildMap(int), also adding every registered attribute to attributes.
+     */
+    private HandleMap buildMap(int attrCount, List<Attribute> attributes) {
+        HandleMap map = new HandleMap();
+        int handle = 1;
+        int service = 0;
+        while (handle <= attrCount) {
+            int srvcHandle = handle++;
+            UUID uuid = uuid16(0x1800 + service);
+            map.addService(SERVER_IF, srvcHandle, uuid, 0, 0);
+            attributes.add(new Attribute(HandleMap.TYPE_SERVICE, srvcHandle, uuid, 0, 0));
+
+            int charHandle = handle++;
+            uuid = uuid16(0x2A00 + service);
+            map.addCharacteristic(SERVER_IF, charHandle, uuid, srvcHandle);
+            attributes.add(new Attribute(HandleMap.TYPE_CHARACTERISTIC, charHandle, uuid,
+                    srvcHandle, 0));
+
+            for (int i = 2; i < ATTRS_PER_SERVICE && handle <= attrCount; i++) {
+                uuid = uuid16(0x2900 + i);
+                map.addDescriptor(SERVER_IF, handle, uuid, srvcHandle);
+                attributes.add(new Attribute(HandleMap.TYPE_DESCRIPTOR, handle++, uuid,
+                        srvcHandle, charHandle));
+            }
+            ++service;
+        }
+        return map;
+    }
+
+    private static Attribute scanByHandle(List<Attribute> attributes, int handle) {
+        for (Attribute attr : attributes) {
+            if (attr.handle == handle) return attr;
+        }
+        return null;
+    }
+
+    private static int scanHandle(List<Attribute> attributes, int type, UUID uuid,
+            int serviceHandle) {
+        for (Attribute attr : attributes) {
+            if (attr.type == type && attr.uuid.equals(uuid)
+                    && attr.serviceHandle == serviceHandle) {
+                return attr.handle;
+            }
+        }
+        return 0;
+    }
+
+    /***
+     * Validates lookups by handle, by (uuid, type, instance) and by request id.
+     */
+    public void testLookup() {
+        HandleMap map = buildMap(100);
+
+        int srvcHandle = map.getServiceHandle(uuid16(0x1803), 0, 0);
+        assertEquals(31, srvcHandle);
+        assertEquals(32, map.getCharacteristicHandle(srvcHandle, uuid16(0x2A03), 0));
+
+        HandleMap.Entry entry = map.getByHandle(33);
+        assertEquals(HandleMap.TYPE_DESCRIPTOR, entry.type);
+        assertEquals(31, entry.serviceHandle);
+        assertEquals(32, entry.charHandle);
+
+        map.addRequest(7, 33);
+        assertSame(entry, map.getByRequestId(7));
+        map.deleteRequest(7);
+        assertNull(map.getByRequestId(7));
+
+        map.setStarted(SERVER_IF, srvcHandle, true);
+        assertTrue(map.getByHandle(srvcHandle).started);
+        assertEquals(10, map.getServiceEntries(SERVER_IF).size());
+    }
+
+    /***
+     * Validates that deleting a service removes all of its attributes.
+     */
+    public void testDeleteService() {
+        HandleMap map = buildMap(100);
+        int srvcHandle = map.getServiceHandle(uuid16(0x1803), 0, 0);
+
+        map.deleteService(SERVER_IF, srvcHandle);
+
+        assertEquals(0, map.getServiceHandle(uuid16(0x1803), 0, 0));
+        assertEquals(0, map.getCharacteristicHandle(srvcHandle, uuid16(0x2A03), 0));
+        for (int handle = srvcHandle; handle < srvcHandle + ATTRS_PER_SERVICE; handle++) {
+            assertNull(map.getByHandle(handle));
+        }
+        assertNotNull(map.getByHandle(srvcHandle + ATTRS_PER_SERVICE));
+        assertEquals(9, map.getServiceEntries(SERVER_IF).size());
+    }
+
+    /***
+     * Validates that a service registered by a second server with the same
+     * (uuid, type, instance) is still found once the first one is deleted.
+     */
+    public void testSameServiceOnTwoServers() {
+        HandleMap map = new HandleMap();
+        map.addService(SERVER_IF, 1, uuid16(0x1800), 0, 0);
+        map.addCharacteristic(SERVER_IF, 2, uuid16(0x2A00), 1);
+        map.addService(SERVER_IF + 1, 3, uuid16(0x1800), 0, 0);
+        map.addCharacteristic(SERVER_IF + 1, 4, uuid16(0x2A00), 3);
+
+        assertEquals(1, map.getServiceHandle(uuid16(0x1800), 0, 0));
+
+        map.deleteService(SERVER_IF, 1);
+
+        assertEquals(3, map.getServiceHandle(uuid16(0x1800), 0, 0));
+        assertEquals(0, map.getCharacteristicHandle(1, uuid16(0x2A00), 0));
+        assertEquals(4, map.getCharacteristicHandle(3, uuid16(0x2A00), 0));
+    }
+
+    /***
+     * Validates every lookup by handle, service uuid and characteristic uuid
+     * against a linear scan of the registered attributes, at 10, 100 and
+     * 1000 attributes, and again after deleting a service.
+     */
+    public void testLookupMatchesLinearScan() {
+        int[] sizes = { 10, 100, 1000 };
+
+        for (int size : sizes) {
+            List<Attribute> attributes = new ArrayList<Attribute>();
+            HandleMap map = buildMap(size, attributes);
+            assertLookupsMatch(map, attributes, size);
+
+            int srvcHandle = 1 + (size / ATTRS_PER_SERVICE / 2) * ATTRS_PER_SERVICE;
+            map.deleteService(SERVER_IF, srvcHandle);
+            for (Iterator<Attribute> it = attributes.iterator(); it.hasNext();) {
+                Attribute attr = it.next();
+                if (attr.handle == srvcHandle || attr.serviceHandle == srvcHandle) it.remove();
+            }
+            assertLookupsMatch(map, attributes, size);
+        }
+    }
+
+    private void assertLookupsMatch(HandleMap map, List<Attribute> attributes, int attrCount) {
+        /* One handle past the last attribute, and one uuid past the last service */
+        for (int handle = 1; handle <= attrCount + 1; handle++) {
+            Attribute expected = scanByHandle(attributes, handle);
+            HandleMap.Entry entry = map.getByHandle(handle);
+            if (expected == null) {
+                assertNull(entry);
+                continue;
+            }
+            assertNotNull(entry);
+            assertEquals(expected.type, entry.type);
+            assertEquals(expected.uuid, entry.uuid);
+            assertEquals(expected.serviceHandle, entry.serviceHandle);
+            assertEquals(expected.charHandle, entry.charHandle);
+        }
+
+        int services = (attrCount + ATTRS_PER_SERVICE - 1) / ATTRS_PER_SERVICE;
+        for (int service = 0; service <= services; service++) {
+            UUID uuid = uuid16(0x1800 + service);
+            int srvcHandle = scanHandle(attributes, HandleMap.TYPE_SERVICE, uuid, 0);
+            assertEquals(srvcHandle, map.getServiceHandle(uuid, 0, 0));
+
+            uuid = uuid16(0x2A00 + service);
+            int charHandle = scanHandle(attributes, HandleMap.TYPE_CHARACTERISTIC, uuid,
+                    srvcHandle);
+            assertEquals(charHandle, map.getCharacteristicHandle(srvcHandle, uuid, 0));
+        }
+    }
+}
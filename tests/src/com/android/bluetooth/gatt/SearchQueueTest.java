@@ -0,0 +1,177 @@
+package com.android.bluetooth.gatt;
+
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/***
+ *
+ * Replays synthetic service discovery sequences through the search queue,
+ * the way GattService drives it from the native callbacks: the results of
+ * each native request are added to the queue, then SearchQueue.next() picks
+ * the next request.
+ *
+ */
+public class SearchQueueTest extends AndroidTestCase {
+    protected static String TAG = "SearchQueueTest";
+    protected static final boolean D = true;
+
+    private static final int CONN_ID = 3;
+    private static final int OTHER_CONN_ID = 4;
+
+    public SearchQueueTest() {
+        super();
+    }
+
+    /**
+     * Result of replaying one discovery.
+     */
+    private static class Replay {
+        int roundTrips = 0;
+        int firstServiceRoundTrips = -1;
+        long firstServiceNanos = -1;
+        long totalNanos = 0;
+        int servicesCompleted = 0;
+    }
+
+    /**
+     * Replays the discovery of a remote device with the given number of
+     * services, characteristics per service and descriptors per
+     * characteristic. Every native request counts as one round trip.
+     */
+    private Replay replay(SearchQueue queue, int connId, int services,
+                          int chars, int descrs) {
+        final Replay replay = new Replay();
+        final long start = System.nanoTime();
+        SearchQueue.ServiceListener listener = new SearchQueue.ServiceListener() {
+            @Override
+            public void onServiceExplored(SearchQueue.Entry service) {
+                if (replay.servicesCompleted++ == 0) {
+                    replay.firstServiceRoundTrips = replay.roundTrips;
+                    replay.firstServiceNanos = System.nanoTime() - start;
+                }
+            }
+        };
+
+        // onSearchResult() for every service, then onSearchCompleted()
+        queue.start(connId, true);
+        for (int s = 0; s < services; s++) {
+            queue.add(connId, 0, s, 0x800000805f9b34fbL, 0x1000L | ((0x1800L + s) << 32));
+        }
+        replay.roundTrips++;
+
+        SearchQueue.Entry entry = queue.next(connId, listener);
+        while (entry != null) {
+            if (entry.charUuidLsb == 0) {
+                // onGetCharacteristic() for each characteristic, then a
+                // failed onGetCharacteristic() and onGetIncludedService()
+                for (int c = 0; c < chars; c++) {
+                    queue.add(connId, entry.srvcType, entry.srvcInstId,
+                              entry.srvcUuidLsb, entry.srvcUuidMsb,
+                              c, 0x800000805f9b34fbL, 0x1000L | ((0x2A00L + c) << 32));
+                    replay.roundTrips++;
+                }
+                replay.roundTrips += 2;
+            } else {
+                // onGetDescriptor() for each descriptor, then a failed one
+                replay.roundTrips += descrs + 1;
+            }
+            entry = queue.next(connId, listener);
+        }
+
+        replay.totalNanos = System.nanoTime() - start;
+        return replay;
+    }
+
+    /***
+     * Validates that services are explored depth first and complete in order.
+     */
+    public void testDepthFirstDiscovery() {
+        SearchQueue queue = new SearchQueue();
+        Replay replay = replay(queue, CONN_ID, 5, 4, 2);
+
+        assertEquals(5, replay.servicesCompleted);
+        // 1 search + 4 characteristics + 2 + 4 * (2 descriptors + 1)
+        assertEquals(1 + 4 + 2 + 4 * 3, replay.firstServiceRoundTrips);
+        assertEquals(1 + 5 * (4 + 2 + 4 * 3), replay.roundTrips);
+        assertNull(queue.pop(CONN_ID));
+        assertFalse(queue.isStreaming(CONN_ID));
+    }
+
+    /***
+     * Validates the order of the entries, and that only streaming searches
+     * report the explored services, the last one included.
+     */
+    public void testNextEntries() {
+        for (boolean streaming : new boolean[] { true, false }) {
+            final ArrayList<Long> explored = new ArrayList<Long>();
+            SearchQueue.ServiceListener listener = new SearchQueue.ServiceListener() {
+                @Override
+                public void onServiceExplored(SearchQueue.Entry service) {
+                    explored.add(service.srvcUuidLsb);
+                }
+            };
+            SearchQueue queue = new SearchQueue();
+            queue.start(CONN_ID, streaming);
+            queue.add(CONN_ID, 0, 0, 1, 1);
+            queue.add(CONN_ID, 0, 1, 2, 2);
+
+            SearchQueue.Entry entry = queue.next(CONN_ID, listener);
+            assertEquals(1, entry.srvcUuidLsb);
+            assertEquals(0, entry.charUuidLsb);
+            queue.add(CONN_ID, 0, 0, 1, 1, 0, 10, 10);
+            queue.add(CONN_ID, 0, 0, 1, 1, 1, 11, 11);
+
+            assertEquals(10, queue.next(CONN_ID, listener).charUuidLsb);
+            assertEquals(11, queue.next(CONN_ID, listener).charUuidLsb);
+            assertTrue(explored.isEmpty());
+
+            entry = queue.next(CONN_ID, listener);
+            assertEquals(2, entry.srvcUuidLsb);
+            assertEquals(0, entry.charUuidLsb);
+            assertEquals(streaming ? Arrays.asList(1L) : Arrays.asList(), explored);
+
+            assertNull(queue.next(CONN_ID, listener));
+            assertEquals(streaming ? Arrays.asList(1L, 2L) : Arrays.asList(), explored);
+            assertFalse(queue.isStreaming(CONN_ID));
+            assertNull(queue.next(CONN_ID, listener));
+            assertEquals(streaming ? 2 : 0, explored.size());
+        }
+    }
+
+    /***
+     * Validates that concurrent searches on two connections do not interfere.
+     */
+    public void testConnectionsAreIndependent() {
+        SearchQueue queue = new SearchQueue();
+        queue.start(CONN_ID, false);
+        queue.start(OTHER_CONN_ID, false);
+        queue.add(CONN_ID, 0, 0, 1, 1);
+        queue.add(OTHER_CONN_ID, 0, 1, 2, 2);
+
+        assertEquals(1, queue.pop(CONN_ID).srvcUuidLsb);
+        queue.removeConnId(CONN_ID);
+        assertNull(queue.pop(CONN_ID));
+        assertEquals(2, queue.pop(OTHER_CONN_ID).srvcUuidLsb);
+        assertFalse(queue.isStreaming(OTHER_CONN_ID));
+    }
+
+    /***
+     * Reports time-to-first-service against total discovery time.
+     */
+    public void testTimeToFirstService() {
+        int[][] shapes = { { 5, 4, 1 }, { 20, 8, 2 }, { 100, 10, 2 } };
+
+        for (int[] shape : shapes) {
+            Replay replay = replay(new SearchQueue(), CONN_ID, shape[0], shape[1], shape[2]);
+            if (D) Log.d(TAG, shape[0] + " services x " + shape[1] + " chars x "
+                    + shape[2] + " descriptors: first service after "
+                    + replay.firstServiceRoundTrips + "/" + replay.roundTrips
+                    + " round trips (" + replay.firstServiceNanos + "/"
+                    + replay.totalNanos + " ns)");
+            assertTrue(replay.firstServiceRoundTrips < replay.roundTrips);
+        }
+    }
+}
@@ -0,0 +1,331 @@
+package com.android.bluetooth.map;
+
+import android.os.SystemProperties;
+import android.telephony.PhoneNumberUtils;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.android.bluetooth.map.BluetoothMapUtils.TYPE;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Date;
+
+/***
+ *
+ * Benchmarks of the bMessage code against the code it replaced, doing the
+ * same work on the same data. They are skipped unless enabled with:
+ *   adb shell setprop debug.bt.map.benchmark true
+ *   adb shell am instrument -w -e class com.android.bluetooth.map.BluetoothMapbMessageBenchmark \
+ *       com.android.bluetooth.tests/android.test.InstrumentationTestRunner
+ *
+ */
+public class BluetoothMapbMessageBenchmark extends AndroidTestCase {
+    protected static String TAG = "BluetoothMapbMessageBenchmark";
+    protected static final boolean D = true;
+
+    private static final int ITERATIONS = 200;
+
+    public BluetoothMapbMessageBenchmark() {
+        super();
+    }
+
+    private static boolean isEnabled() {
+        return SystemProperties.getBoolean("debug.bt.map.benchmark", false);
+    }
+
+    private static long opsPerSecond(long nanos) {
+        return ITERATIONS * 1000000000L / Math.max(nanos, 1);
+    }
+
+    /***
+     * Build a UTF-8 SMS bMessage with the given body, as in BluetoothMapbMessageTest.
+     */
+    private static byte[] buildUtf8Sms(String body) throws UnsupportedEncodingException {
+        int length = body.getBytes("UTF-8").length + 22; /* BEGIN:MSG and END:MSG lines */
+        return ("BEGIN:BMSG\r\n" +
+                    "VERSION:1.0\r\n" +
+                    "STATUS:UNREAD\r\n" +
+                    "TYPE:SMS_GSM\r\n" +
+                    "FOLDER:telecom/msg/outbox\r\n" +
+                    "BEGIN:VCARD\r\n" +
+                        "VERSION:3.0\r\n" +
+                        "FN:Casper Bonde\r\n" +
+                        "N:Bonde,Casper\r\n" +
+                        "TEL:+4512345678\r\n" +
+                    "END:VCARD\r\n" +
+                    "BEGIN:BENV\r\n" +
+                        "BEGIN:VCARD\r\n" +
+                            "VERSION:3.0\r\n" +
+                            "FN:J\u00f8rn Hansen\r\n" +
+                            "N:\r\n" +
+                            "TEL:+4587654321\r\n" +
+                        "END:VCARD\r\n" +
+                        "BEGIN:BBODY\r\n" +
+                            "CHARSET:UTF-8\r\n" +
+                            "LENGTH:" + length + "\r\n" +
+                            "BEGIN:MSG\r\n" +
+                                body + "\r\n" +
+                            "END:MSG\r\n" +
+                        "END:BBODY\r\n" +
+                    "END:BENV\r\n" +
+                 "END:BMSG\r\n").getBytes("UTF-8");
+    }
+
+    /***
+     * The bMessage line reader as it was before it was buffered: one read()
+     * per byte, and a new stream and array per line.
+     */
+    private static String legacyGetLine(InputStream is) throws IOException {
+        int readByte;
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        while ((readByte = is.read()) != -1) {
+            if (readByte == '\r') {
+                if ((readByte = is.read()) != -1 && readByte == '\n') {
+                    if(output.size() == 0)
+                        continue; /* Skip empty lines */
+                    else
+                        break;
+                } else {
+                    output.write('\r');
+                }
+            } else if (readByte == '\n' && output.size() == 0) {
+                /* Empty line - skip */
+                continue;
+            }
+
+            output.write(readByte);
+        }
+        byte[] line = output.toByteArray();
+        return line.length == 0 ? null : new String(line, "UTF-8");
+    }
+
+    /***
+     * Compares reading every line of short and 30 KB messages with the
+     * buffered BMsgReader and with the former unbuffered reader.
+     */
+    public void testReadLines() throws Exception {
+        if (!isEnabled()) return;
+
+        StringBuilder sb = new StringBuilder();
+        while (sb.length() < 30000) {
+            sb.append("Line ").append(sb.length()).append(" of a long message\r\n");
+        }
+        String[] names = { "short", "30k" };
+        byte[][] messages = {
+            buildUtf8Sms("This is a short message"),
+            buildUtf8Sms(sb.toString().trim()),
+        };
+
+        for (int m = 0; m < messages.length; m++) {
+            byte[] data = messages[m];
+            int lines = 0;
+            int legacyLines = 0;
+
+            long start = System.nanoTime();
+            for (int i = 0; i < ITERATIONS; i++) {
+                BluetoothMapbMessage.BMsgReader reader =
+                        new BluetoothMapbMessage.BMsgReader(new ByteArrayInputStream(data));
+                while (reader.getLine() != null) {
+                    lines++;
+                }
+            }
+            long bufferedNs = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (int i = 0; i < ITERATIONS; i++) {
+                InputStream is = new ByteArrayInputStream(data);
+                while (legacyGetLine(is) != null) {
+                    legacyLines++;
+                }
+            }
+            long legacyNs = System.nanoTime() - start;
+
+            assertEquals(legacyLines, lines);
+            Log.i(TAG, "bMessage " + names[m] + " (" + data.length + " bytes, "
+                    + lines / ITERATIONS + " lines): buffered " + opsPerSecond(bufferedNs)
+                    + " msg/s, unbuffered " + opsPerSecond(legacyNs) + " msg/s");
+        }
+    }
+
+    /***
+     * GSM submit to deliver PDU conversion as done before the deliver PDU was
+     * written into one array, with the time stamp formatted as a string.
+     */
+    private static byte[] legacyChangeToDeliverPdu(byte[] data, long date, String originator)
+            throws UnsupportedEncodingException {
+        ByteArrayOutputStream newPdu = new ByteArrayOutputStream(22);
+        int pidOffset = 2 + ((data[2]+1) & 0xff)/2 + 2;
+        int udlOffset;
+        switch(((data[0]  & 0xff) & (0x08 | 0x04))>>2) {
+        case 0:
+            udlOffset = pidOffset + 2;
+            break;
+        case 1:
+            udlOffset = pidOffset + 2 + 1;
+            break;
+        default:
+            udlOffset = pidOffset + 2 + 7;
+            break;
+        }
+
+        newPdu.write(0x04 | (data[0] & 0xff) & 0x40);
+        byte[] encodedAddress = PhoneNumberUtils.networkPortionToCalledPartyBCDWithLength(originator);
+        if(encodedAddress != null) {
+            int padding = (encodedAddress[encodedAddress.length-1] & 0xf0) == 0xf0 ? 1 : 0;
+            encodedAddress[0] = (byte)((encodedAddress[0]-1)*2 - padding);
+            newPdu.write(encodedAddress, 0, encodedAddress.length);
+        } else {
+            newPdu.write(0);
+            newPdu.write(0x81);
+        }
+        newPdu.write(data[pidOffset]);
+        newPdu.write(data[pidOffset + 1]);
+
+        String timeStr = new SimpleDateFormat("yyMMddHHmmss").format(new Date(date));
+        byte[] timeChars = timeStr.getBytes("US-ASCII");
+        for(int i = 0, n = timeStr.length(); i < n; i+=2) {
+            newPdu.write((timeChars[i+1]-0x30) << 4 | (timeChars[i]-0x30));
+        }
+        Calendar cal = Calendar.getInstance();
+        int offset = (cal.get(Calendar.ZONE_OFFSET) + cal.get(Calendar.DST_OFFSET)) / (15 * 60 * 1000);
+        if(offset < 0) {
+            char[] offsetChars = String.format("%1$02d", -(offset)).toCharArray();
+            newPdu.write((offsetChars[1]-0x30) << 4 | 0x40 | (offsetChars[0]-0x30));
+        } else {
+            char[] offsetChars = String.format("%1$02d", offset).toCharArray();
+            newPdu.write((offsetChars[1]-0x30) << 4 | (offsetChars[0]-0x30));
+        }
+
+        newPdu.write(data[udlOffset]);
+        newPdu.write(data, udlOffset + 1, data.length - udlOffset - 1);
+        return newPdu.toByteArray();
+    }
+
+    /***
+     * Hex encoding of PDUs as done before the lookup table encoder, through a
+     * StringBuilder and Integer.toString() per nibble.
+     */
+    private static String legacyEncodeBinary(byte[] pduData, byte[] scAddressData) {
+        StringBuilder out = new StringBuilder((pduData.length + scAddressData.length)*2);
+        for(int i = 0; i < scAddressData.length; i++) {
+            out.append(Integer.toString((scAddressData[i] >> 4) & 0x0f,16));
+            out.append(Integer.toString( scAddressData[i]       & 0x0f,16));
+        }
+        for(int i = 0; i < pduData.length; i++) {
+            out.append(Integer.toString((pduData[i] >> 4) & 0x0f,16));
+            out.append(Integer.toString( pduData[i]       & 0x0f,16));
+        }
+        return out.toString();
+    }
+
+    /***
+     * PDU bodied bMessage encoding as done before the PDUs were hex encoded
+     * into the final buffer: one String and one UTF-8 copy per segment,
+     * joined through a ByteArrayOutputStream.
+     */
+    private static byte[] legacyEncode(BluetoothMapbMessageSms msg,
+            ArrayList<BluetoothMapSmsPdu.SmsPdu> pdus) throws IOException {
+        ArrayList<byte[]> bodyFragments = new ArrayList<byte[]>();
+        int length = 0;
+        for (BluetoothMapSmsPdu.SmsPdu pdu : pdus) {
+            byte[] fragment = legacyEncodeBinary(pdu.getData(), pdu.getScAddress()).getBytes("UTF-8");
+            bodyFragments.add(fragment);
+            length += fragment.length + 22;
+        }
+
+        byte[] msgStart = msg.encodeGenericStart(length);
+        byte[] msgEnd = msg.encodeGenericEnd();
+        ByteArrayOutputStream stream = new ByteArrayOutputStream(msgStart.length + msgEnd.length + length);
+        stream.write(msgStart);
+        for (byte[] fragment : bodyFragments) {
+            stream.write("BEGIN:MSG\r\n".getBytes("UTF-8"));
+            stream.write(fragment);
+            stream.write("\r\nEND:MSG\r\n".getBytes("UTF-8"));
+        }
+        stream.write(msgEnd);
+        return stream.toByteArray();
+    }
+
+    /***
+     * Compares the GSM deliver PDU conversion and the bMessage encoding of
+     * native SMS messages of 1, 3 and 10 segments with the former code,
+     * starting from the same submit PDUs.
+     */
+    public void testEncodeDeliverPdus() throws Exception {
+        if (!isEnabled()) return;
+
+        final String address = "00498912345678";
+        long date = System.currentTimeMillis();
+        int[] segments = { 1, 3, 10 };
+
+        for (int n : segments) {
+            StringBuilder sb = new StringBuilder();
+            while (sb.length() < (n - 1) * 153 + 100) {
+                sb.append("Let's go fishing! ");
+            }
+            ArrayList<BluetoothMapSmsPdu.SmsPdu> pdus =
+                    BluetoothMapSmsPdu.getSubmitPdus(sb.toString(), address);
+            assertEquals(n, pdus.size());
+            byte[][] submits = new byte[n][];
+            for (int j = 0; j < n; j++) {
+                submits[j] = pdus.get(j).getData();
+            }
+
+            long start = System.nanoTime();
+            for (int i = 0; i < ITERATIONS; i++) {
+                for (byte[] submit : submits) {
+                    new BluetoothMapSmsPdu.SmsPdu(submit.clone(), BluetoothMapSmsPdu.SMS_TYPE_GSM)
+                            .gsmChangeToDeliverPdu(date, address);
+                }
+            }
+            long deliverNs = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (int i = 0; i < ITERATIONS; i++) {
+                for (byte[] submit : submits) {
+                    legacyChangeToDeliverPdu(submit.clone(), date, address);
+                }
+            }
+            long legacyDeliverNs = System.nanoTime() - start;
+
+            for (int j = 0; j < n; j++) {
+                pdus.get(j).gsmChangeToDeliverPdu(date, address);
+                assertTrue(Arrays.equals(legacyChangeToDeliverPdu(submits[j], date, address),
+                        pdus.get(j).getData()));
+            }
+
+            BluetoothMapbMessageSms msg = new BluetoothMapbMessageSms();
+            msg.addOriginator("Bonde,Casper", "Casper Bonde", new String[] {address}, null);
+            msg.setFolder("inbox");
+            msg.setSmsBodyPdus(pdus);
+            msg.setStatus(false);
+            msg.setType(TYPE.SMS_GSM);
+            assertTrue(Arrays.equals(legacyEncode(msg, pdus), msg.encode()));
+
+            start = System.nanoTime();
+            for (int i = 0; i < ITERATIONS; i++) {
+                msg.encode();
+            }
+            long encodeNs = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (int i = 0; i < ITERATIONS; i++) {
+                legacyEncode(msg, pdus);
+            }
+            long legacyEncodeNs = System.nanoTime() - start;
+
+            Log.i(TAG, "SMS " + n + " segments: deliver pdus " + opsPerSecond(deliverNs)
+                    + " msg/s, former " + opsPerSecond(legacyDeliverNs) + " msg/s; encode "
+                    + opsPerSecond(encodeNs) + " msg/s, former "
+                    + opsPerSecond(legacyEncodeNs) + " msg/s");
+        }
+    }
+}
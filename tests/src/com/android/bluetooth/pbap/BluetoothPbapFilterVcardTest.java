@@ -0,0 +1,252 @@
+package com.android.bluetooth.pbap;
+
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import java.io.UnsupportedEncodingException;
+import java.util.Arrays;
+
+/***
+ *
+ * Checks the single pass vCard filter against the former string filter
+ * followed by the TEL value stripping, for a set of filter masks and vCards.
+ *
+ */
+public class BluetoothPbapFilterVcardTest extends AndroidTestCase {
+    protected static String TAG = "BluetoothPbapFilterVcardTest";
+    protected static final boolean D = true;
+
+    /* Filter bits, as in FilterVcard */
+    private static final int FN_BIT = 1;
+    private static final int BDAY_BIT = 4;
+    private static final int ADR_BIT = 5;
+    private static final int EMAIL_BIT = 8;
+    private static final int TITLE_BIT = 12;
+    private static final int ORG_BIT = 16;
+    private static final int NOTES_BIT = 17;
+    private static final int URL_BIT = 20;
+    private static final int NICKNAME_BIT = 23;
+
+    private static final String VCARD_21 =
+            "BEGIN:VCARD\r\n"
+            + "VERSION:2.1\r\n"
+            + "N:Doe;John;;;\r\n"
+            + "FN:John Doe\r\n"
+            + "NICKNAME:Johnny\r\n"
+            + "TEL;CELL:(555) 123-4567\r\n"
+            + "TEL;HOME:+1 555-765 4321\r\n"
+            + "EMAIL;HOME:john@example.com\r\n"
+            + "ADR;HOME;ENCODING=QUOTED-PRINTABLE:;;1 Main St=0D=0A=\r\n"
+            + "Apt 2;Springfield;;12345;\r\n"
+            + "ORG:Example Inc.\r\n"
+            + "TITLE:Engineer\r\n"
+            + "NOTE;ENCODING=QUOTED-PRINTABLE:first line=0D=0A=\r\n"
+            + "second line=0D=0A=\r\n"
+            + "third line\r\n"
+            + "X-ANDROID-CUSTOM:vnd.android.cursor.item/nickname;Johnny\r\n"
+            + "BDAY:1980-01-01\r\n"
+            + "URL:http://example.com\r\n"
+            + "END:VCARD\r\n";
+
+    private static final String VCARD_30 =
+            "BEGIN:VCARD\r\n"
+            + "VERSION:3.0\r\n"
+            + "N:M\u00fcller;J\u00fcrgen;;;\r\n"
+            + "FN:J\u00fcrgen M\u00fcller\r\n"
+            + "NICKNAME:J\u00fcrg\r\n"
+            + "TEL;TYPE=WORK:(030) 1234-5678\r\n"
+            + "ADR;TYPE=WORK:;;Stra\u00dfe 1;Berlin;;10115;Germany\r\n"
+            + "NOTE:a note folded\r\n"
+            + " over two lines\r\n"
+            + "URL:http://example.de\r\n"
+            + "END:VCARD\r\n";
+
+    private BluetoothPbapVcardManager mManager;
+
+    public BluetoothPbapFilterVcardTest() {
+        super();
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mManager = new BluetoothPbapVcardManager(getContext());
+    }
+
+    /**
+     * Build a 64 bit PBAP filter with every bit set except the given ones.
+     */
+    private static byte[] filterWithout(int... bits) {
+        byte[] filter = new byte[8];
+        Arrays.fill(filter, (byte) 0xff);
+        for (int bit : bits) {
+            filter[filter.length - 1 - bit / 8] &= ~(1 << (bit % 8));
+        }
+        return filter;
+    }
+
+    private static boolean checkbit(int bit, byte[] filter) {
+        return ((filter[filter.length - 1 - bit / 8] >> (bit % 8)) & 0x01) != 0;
+    }
+
+    private static boolean isFilterProperty(String line) {
+        return line.startsWith("N:") || line.startsWith("TEL")
+            || line.startsWith("VERSION") || line.startsWith("URL")
+            || line.startsWith("FN") || line.startsWith("BDAY")
+            || line.startsWith("ADR") || line.startsWith("EMAIL")
+            || line.startsWith("TITLE") || line.startsWith("ORG")
+            || line.startsWith("NOTE") || line.startsWith("NICKNAME");
+    }
+
+    /**
+     * Drop the lines of a property, and its continuation lines, as the former
+     * FilterVcard.applyFilter(String, boolean) did. The last line is never
+     * dropped as a continuation.
+     */
+    private static void legacyDrop(String[] attr, String property) {
+        for (int i = 0; i < attr.length; i++) {
+            if (attr[i].startsWith(property)) {
+                attr[i] = "";
+                for (int j = i + 1; j < attr.length - 1; j++) {
+                    if (isFilterProperty(attr[j])) {
+                        break;
+                    }
+                    attr[j] = "";
+                }
+            }
+        }
+    }
+
+    private static String legacyJoin(String[] attr) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < attr.length; i++) {
+            if (!attr[i].equals("")) {
+                sb.append(attr[i]).append("\n");
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * The former filter, applied when a filter was set, followed by the former
+     * StripTelephoneNumber(). The IM and SIP removal of the former filter is left
+     * out, as its result was never used.
+     */
+    private static String legacyFilter(String vCard, byte[] filter, boolean vCardType21) {
+        if (filter != null) {
+            String[] attr = vCard.split("\n");
+            if (!checkbit(FN_BIT, filter) && vCardType21) legacyDrop(attr, "FN");
+            if (!checkbit(BDAY_BIT, filter)) legacyDrop(attr, "BDAY");
+            if (!checkbit(ADR_BIT, filter)) legacyDrop(attr, "ADR");
+            if (!checkbit(EMAIL_BIT, filter)) legacyDrop(attr, "EMAIL");
+            if (!checkbit(TITLE_BIT, filter)) legacyDrop(attr, "TITLE");
+            if (!checkbit(ORG_BIT, filter)) legacyDrop(attr, "ORG");
+            if (!checkbit(NOTES_BIT, filter)) legacyDrop(attr, "NOTE");
+            if (!checkbit(NICKNAME_BIT, filter) || vCardType21) legacyDrop(attr, "NICKNAME");
+            if (!checkbit(URL_BIT, filter)) legacyDrop(attr, "URL");
+            vCard = legacyJoin(attr);
+        }
+
+        String[] attr = vCard.split("\n");
+        for (int i = 0; i < attr.length; i++) {
+            if (attr[i].startsWith("TEL")) {
+                attr[i] = attr[i].replace("(", "").replace(")", "").replace("-", "")
+                    .replace(" ", "");
+            }
+        }
+        return legacyJoin(attr);
+    }
+
+    private String applyFilter(String vCard, byte[] filter, boolean vCardType21)
+            throws UnsupportedEncodingException {
+        BluetoothPbapVcardManager.FilterVcard vcardfilter = mManager.new FilterVcard();
+        if (filter != null) {
+            vcardfilter.setFilter(filter);
+        }
+        byte[] encoded = vCard.getBytes("UTF-8");
+        byte[] buffer = Arrays.copyOf(encoded, encoded.length + 1);
+        int length = vcardfilter.applyFilter(buffer, encoded.length, vCardType21);
+        return new String(buffer, 0, length, "UTF-8");
+    }
+
+    private void assertSameAsLegacy(String vCard, byte[] filter, boolean vCardType21)
+            throws UnsupportedEncodingException {
+        String expected = legacyFilter(vCard, filter, vCardType21);
+        String actual = applyFilter(vCard, filter, vCardType21);
+        if (D && !expected.equals(actual)) {
+            Log.d(TAG, "expected:\n" + expected + "\nactual:\n" + actual);
+        }
+        assertEquals(expected, actual);
+    }
+
+    private void assertSameAsLegacyForMasks(String vCard, boolean vCardType21)
+            throws UnsupportedEncodingException {
+        assertSameAsLegacy(vCard, null, vCardType21);
+        assertSameAsLegacy(vCard, filterWithout(), vCardType21);
+        int[] bits = { FN_BIT, BDAY_BIT, ADR_BIT, EMAIL_BIT, TITLE_BIT, ORG_BIT,
+                NOTES_BIT, URL_BIT, NICKNAME_BIT };
+        for (int bit : bits) {
+            assertSameAsLegacy(vCard, filterWithout(bit), vCardType21);
+        }
+        assertSameAsLegacy(vCard, filterWithout(bits), vCardType21);
+        assertSameAsLegacy(vCard, filterWithout(ADR_BIT, NOTES_BIT), vCardType21);
+    }
+
+    /***
+     * Checks each filter bit alone and combined, on 2.1 and 3.0 vCards.
+     */
+    public void testFilterMasks() throws UnsupportedEncodingException {
+        assertSameAsLegacyForMasks(VCARD_21, true);
+        assertSameAsLegacyForMasks(VCARD_21, false);
+        assertSameAsLegacyForMasks(VCARD_30, true);
+        assertSameAsLegacyForMasks(VCARD_30, false);
+    }
+
+    /***
+     * Checks a vCard without the final line break, or with extra ones.
+     */
+    public void testLineBreaksAtEnd() throws UnsupportedEncodingException {
+        String trimmed = VCARD_21.substring(0, VCARD_21.length() - 2);
+        assertSameAsLegacyForMasks(trimmed, true);
+        assertSameAsLegacyForMasks(trimmed.substring(0, trimmed.length() - 1) + "\n", true);
+        assertSameAsLegacyForMasks(VCARD_21 + "\n\n", true);
+        assertSameAsLegacyForMasks(VCARD_30 + "\r\n", false);
+    }
+
+    /***
+     * Checks a vCard without END:VCARD, ending with a continuation line of a
+     * filtered property, which is kept as the last line.
+     */
+    public void testMissingEnd() throws UnsupportedEncodingException {
+        String vCard = "BEGIN:VCARD\r\n"
+            + "VERSION:2.1\r\n"
+            + "TEL:555-1234\r\n"
+            + "NOTE;ENCODING=QUOTED-PRINTABLE:line=0D=0A=\r\n"
+            + "continued\r\n";
+        assertSameAsLegacyForMasks(vCard, true);
+        assertTrue(applyFilter(vCard, filterWithout(NOTES_BIT), true)
+                .endsWith("continued\r\n"));
+        assertSameAsLegacyForMasks(vCard.substring(0, vCard.length() - 2), false);
+    }
+
+    /***
+     * Checks the TEL values lose their formatting, and only them.
+     */
+    public void testStripTelephoneNumbers() throws UnsupportedEncodingException {
+        String vCard = "BEGIN:VCARD\r\n"
+            + "VERSION:3.0\r\n"
+            + "FN:A (B) C-D\r\n"
+            + "TEL;TYPE=CELL:+1 (555) 123-4567\r\n"
+            + "TEL:\r\n"
+            + "END:VCARD\r\n";
+        String expected = "BEGIN:VCARD\r\n"
+            + "VERSION:3.0\r\n"
+            + "FN:A (B) C-D\r\n"
+            + "TEL;TYPE=CELL:+15551234567\r\n"
+            + "TEL:\r\n"
+            + "END:VCARD\r\n";
+        assertEquals(expected, applyFilter(vCard, null, false));
+        assertSameAsLegacyForMasks(vCard, false);
+        assertSameAsLegacyForMasks(vCard, true);
+    }
+}
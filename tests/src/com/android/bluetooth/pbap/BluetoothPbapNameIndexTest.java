@@ -0,0 +1,198 @@
+package com.android.bluetooth.pbap;
+
+import android.test.AndroidTestCase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/***
+ *
+ * Test cases for the phonebook name index searched by PBAP vCard listings.
+ *
+ */
+public class BluetoothPbapNameIndexTest extends AndroidTestCase {
+    protected static String TAG = "BluetoothPbapNameIndexTest";
+    protected static final boolean D = true;
+
+    private static final String OWNER = "Alex Owner";
+
+    public BluetoothPbapNameIndexTest() {
+        super();
+    }
+
+    /**
+     * Contacts, at handles 1 to 6:
+     *   1 Bob        +1 (415) 555-1234, 555-0000, (650) 555-1234
+     *   2 alice      12
+     *   3 Alan       4155551234
+     *   4 bobby      (none)
+     *   5 Carl       555-9999, 030 1234567
+     *   6 Bob        +44 20 7946 0958
+     */
+    private static BluetoothPbapNameIndex buildIndex() {
+        ArrayList<String> names = new ArrayList<String>(Arrays.asList(
+                "Bob", "alice", "Alan", "bobby", "Carl", "Bob"));
+        ArrayList<String> numbers = new ArrayList<String>(Arrays.asList(
+                "+1 (415) 555-1234", "555-0000", "12", "4155551234", "555-9999",
+                "+44 20 7946 0958", "---", "(650) 555-1234", "030 1234567"));
+        ArrayList<Integer> handles = new ArrayList<Integer>(Arrays.asList(
+                1, 1, 2, 3, 5, 6, 4, 1, 5));
+        return new BluetoothPbapNameIndex(OWNER, names, numbers, handles);
+    }
+
+    private static void assertHandles(int[] actual, int... expected) {
+        assertEquals(Arrays.toString(expected), Arrays.toString(actual));
+    }
+
+    /***
+     * Validates the names, sizes and handles.
+     */
+    public void testNames() {
+        BluetoothPbapNameIndex index = buildIndex();
+
+        assertEquals(7, index.size());
+        assertEquals(OWNER, index.getName(0));
+        assertEquals("Bob", index.getName(1));
+        assertEquals("Bob", index.getName(6));
+        assertEquals(Arrays.asList(OWNER, "Bob", "alice", "Alan", "bobby", "Carl", "Bob"),
+                index.getNames());
+
+        assertSame(index, index.withOwnerName(OWNER));
+        BluetoothPbapNameIndex renamed = index.withOwnerName("Other");
+        assertEquals("Other", renamed.getName(0));
+        assertHandles(renamed.search("al", 0, 10), 2, 3);
+        assertHandles(renamed.searchNumber("5551234", 0, 10), 1, 3);
+    }
+
+    /***
+     * Validates the prefix search ignores case, includes the owner and returns
+     * the handles in listing order.
+     */
+    public void testSearchByName() {
+        BluetoothPbapNameIndex index = buildIndex();
+
+        assertHandles(index.search("al", 0, 10), 0, 2, 3);
+        assertHandles(index.search("AL", 0, 10), 0, 2, 3);
+        assertHandles(index.search("bob", 0, 10), 1, 4, 6);
+        assertHandles(index.search("Bob", 0, 10), 1, 4, 6);
+        assertHandles(index.search("bobby", 0, 10), 4);
+        assertHandles(index.search("bobbyz", 0, 10));
+        assertHandles(index.search("c", 0, 10), 5);
+        assertHandles(index.search("z", 0, 10));
+        assertHandles(index.search("a", 0, 10), 0, 2, 3);
+    }
+
+    /***
+     * Validates listStartOffset and maxListCount, with and without a search value.
+     */
+    public void testSearchRange() {
+        BluetoothPbapNameIndex index = buildIndex();
+
+        assertHandles(index.search(null, 0, 10), 0, 1, 2, 3, 4, 5, 6);
+        assertHandles(index.search("", 0, 10), 0, 1, 2, 3, 4, 5, 6);
+        assertHandles(index.search(null, 2, 3), 2, 3, 4);
+        assertHandles(index.search(null, 5, 10), 5, 6);
+        assertHandles(index.search(null, 7, 10));
+        assertHandles(index.search(null, -1, 2), 0, 1);
+        assertHandles(index.search(null, 0, 0));
+
+        /* The owner is only listed from offset 0 */
+        assertHandles(index.search("al", 1, 10), 2, 3);
+        assertHandles(index.search("al", 0, 1), 0);
+        assertHandles(index.search("bob", 2, 10), 4, 6);
+        assertHandles(index.search("bob", 0, 2), 1, 4);
+        assertHandles(index.search("bob", 6, 10), 6);
+        assertHandles(index.search("bob", 7, 10));
+    }
+
+    /***
+     * Validates a number matches the numbers it ends with, or ending with it,
+     * with at least seven digits in common, ignoring the formatting.
+     */
+    public void testSearchByNumber() {
+        BluetoothPbapNameIndex index = buildIndex();
+
+        assertHandles(index.searchNumber("4155551234", 0, 10), 1, 3);
+        assertHandles(index.searchNumber("(415) 555-1234", 0, 10), 1, 3);
+        assertHandles(index.searchNumber("+1 415 555 1234", 0, 10), 1, 3);
+        assertHandles(index.searchNumber("0014155551234", 0, 10), 1, 3);
+        assertHandles(index.searchNumber("650 555 1234", 0, 10), 1);
+        /* 5559999 has exactly seven digits */
+        assertHandles(index.searchNumber("5559999", 0, 10), 5);
+        assertHandles(index.searchNumber("+1 650 555 9999", 0, 10), 5);
+        assertHandles(index.searchNumber("415 555 0000", 0, 10), 1);
+        assertHandles(index.searchNumber("79460958", 0, 10), 6);
+        assertHandles(index.searchNumber("5551235", 0, 10));
+        assertHandles(index.searchNumber("555 0012", 0, 10));
+        assertHandles(index.searchNumber("abc", 0, 10));
+        assertHandles(index.searchNumber("---", 0, 10));
+    }
+
+    /***
+     * Validates a national number matches its international form, and the
+     * other way around.
+     */
+    public void testSearchByNationalNumber() {
+        BluetoothPbapNameIndex index = buildIndex();
+
+        /* 030 1234567 is stored with the trunk prefix */
+        assertHandles(index.searchNumber("+49301234567", 0, 10), 5);
+        assertHandles(index.searchNumber("+49 30 1234567", 0, 10), 5);
+        assertHandles(index.searchNumber("0049301234567", 0, 10), 5);
+        assertHandles(index.searchNumber("0301234567", 0, 10), 5);
+        /* +44 20 7946 0958 is stored with the country code */
+        assertHandles(index.searchNumber("020 7946 0958", 0, 10), 6);
+        assertHandles(index.searchNumber("02079460958", 0, 10), 6);
+    }
+
+    /***
+     * Validates a number of less than seven digits only matches the same number.
+     */
+    public void testSearchByShortNumber() {
+        BluetoothPbapNameIndex index = buildIndex();
+
+        assertHandles(index.searchNumber("12", 0, 10), 2);
+        assertHandles(index.searchNumber("2", 0, 10));
+        assertHandles(index.searchNumber("0", 0, 10));
+        assertHandles(index.searchNumber("1234", 0, 10));
+        assertHandles(index.searchNumber("0000", 0, 10));
+        assertHandles(index.searchNumber("4412", 0, 10));
+    }
+
+    /***
+     * Validates each contact is listed once, and the range parameters.
+     */
+    public void testSearchByNumberRange() {
+        BluetoothPbapNameIndex index = buildIndex();
+
+        /* Handle 1 has two numbers ending with 555-1234 */
+        assertHandles(index.searchNumber("5551234", 0, 10), 1, 3);
+        assertHandles(index.searchNumber("555-1234", 0, 10), 1, 3);
+        assertHandles(index.searchNumber("5551234", 0, 1), 1);
+        assertHandles(index.searchNumber("5551234", 2, 10), 3);
+        assertHandles(index.searchNumber("5551234", 3, 10), 3);
+        assertHandles(index.searchNumber("5551234", 4, 10));
+        assertHandles(index.searchNumber("5551234", 0, 0));
+        assertHandles(index.searchNumber("+1 650 555 1234", 0, 10), 1);
+
+        /* An empty number lists the contacts, without the owner */
+        assertHandles(index.searchNumber("", 0, 10), 1, 2, 3, 4, 5, 6);
+        assertHandles(index.searchNumber(null, 0, 3), 1, 2, 3);
+        assertHandles(index.searchNumber(null, 4, 10), 4, 5, 6);
+    }
+
+    /***
+     * Validates an empty phonebook only lists the owner.
+     */
+    public void testEmpty() {
+        BluetoothPbapNameIndex index = new BluetoothPbapNameIndex(OWNER,
+                new ArrayList<String>(), new ArrayList<String>(), new ArrayList<Integer>());
+
+        assertEquals(1, index.size());
+        assertHandles(index.search(null, 0, 10), 0);
+        assertHandles(index.search("alex", 0, 10), 0);
+        assertHandles(index.search("b", 0, 10));
+        assertHandles(index.searchNumber("123", 0, 10));
+        assertHandles(index.searchNumber("", 0, 10));
+    }
+}
@@ -5,13 +5,17 @@ import java.io.ByteArrayOutputStream;
 import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Date;
+import java.util.TimeZone;
 
 import org.apache.http.message.BasicHeaderValueFormatter;
 
 import android.preference.PreferenceFragment;
 import android.test.AndroidTestCase;
+import android.telephony.PhoneNumberUtils;
 import android.util.Log;
 import android.view.Menu;
 import android.view.MenuItem;
@@ -495,6 +499,282 @@ public class BluetoothMapbMessageTest extends AndroidTestCase {
         }
     }
 
+    /***
+     * Build a UTF-8 SMS bMessage with the given body.
+     */
+    private static String buildUtf8Sms(String body) throws UnsupportedEncodingException {
+        int length = body.getBytes("UTF-8").length + 22; /* BEGIN:MSG and END:MSG lines */
+        return "BEGIN:BMSG\r\n" +
+                    "VERSION:1.0\r\n" +
+                    "STATUS:UNREAD\r\n" +
+                    "TYPE:SMS_GSM\r\n" +
+                    "FOLDER:telecom/msg/outbox\r\n" +
+                    "BEGIN:VCARD\r\n" +
+                        "VERSION:3.0\r\n" +
+                        "FN:Casper Bonde\r\n" +
+                        "N:Bonde,Casper\r\n" +
+                        "TEL:+4512345678\r\n" +
+                    "END:VCARD\r\n" +
+                    "BEGIN:BENV\r\n" +
+                        "BEGIN:VCARD\r\n" +
+                            "VERSION:3.0\r\n" +
+                            "FN:J\u00f8rn Hansen\r\n" +
+                            "N:\r\n" +
+                            "TEL:+4587654321\r\n" +
+                        "END:VCARD\r\n" +
+                        "BEGIN:BBODY\r\n" +
+                            "CHARSET:UTF-8\r\n" +
+                            "LENGTH:" + length + "\r\n" +
+                            "BEGIN:MSG\r\n" +
+                                body + "\r\n" +
+                            "END:MSG\r\n" +
+                        "END:BBODY\r\n" +
+                    "END:BENV\r\n" +
+                 "END:BMSG\r\n";
+    }
+
+    /***
+     * Test decoding of a UTF-8 message with a body larger than the reader buffer.
+     */
+    public void testSmsUtf8LargeBodyDecode() throws UnsupportedEncodingException {
+        StringBuilder sb = new StringBuilder();
+        while (sb.length() < 10000) {
+            sb.append("Line ").append(sb.length()).append(" \u00e6\u00f8\u00e5 of a long message\r\n");
+        }
+        String body = sb.toString().trim();
+        InputStream is = new ByteArrayInputStream(buildUtf8Sms(body).getBytes("UTF-8"));
+        BluetoothMapbMessage newMsg = BluetoothMapbMessage.parse(is, BluetoothMapAppParams.CHARSET_UTF8);
+        assertEquals(TYPE.SMS_GSM, newMsg.getType());
+        assertEquals("telecom/msg/outbox", newMsg.getFolder());
+        assertEquals(body, ((BluetoothMapbMessageSms) newMsg).getSmsBody());
+        assertEquals("+4587654321", newMsg.getRecipients().get(0).getFirstPhoneNumber());
+    }
+
+    /***
+     * An input stream returning at most one byte per read(byte[], int, int),
+     * as a slow transport may do.
+     */
+    private static class OneByteInputStream extends ByteArrayInputStream {
+        public OneByteInputStream(byte[] data) {
+            super(data);
+        }
+
+        @Override
+        public synchronized int read(byte[] b, int off, int len) {
+            return super.read(b, off, Math.min(len, 1));
+        }
+    }
+
+    private static void assertParsedUtf8Sms(InputStream is, String body) {
+        BluetoothMapbMessage newMsg = BluetoothMapbMessage.parse(is, BluetoothMapAppParams.CHARSET_UTF8);
+        assertEquals(TYPE.SMS_GSM, newMsg.getType());
+        assertEquals("telecom/msg/outbox", newMsg.getFolder());
+        assertEquals(body, ((BluetoothMapbMessageSms) newMsg).getSmsBody());
+        assertEquals("+4587654321", newMsg.getRecipients().get(0).getFirstPhoneNumber());
+    }
+
+    /***
+     * Test decoding with every byte of the message at the 4096 byte boundary of
+     * the reader buffer, by prefixing the message with skipped empty lines, and
+     * with a stream returning one byte per read.
+     */
+    public void testSmsDecodeBufferBoundaries() throws UnsupportedEncodingException {
+        final int bufferSize = 4096;
+        String body = "Line one \u00e6\u00f8\u00e5\r\nLine two\rwith a lone CR";
+        byte[] data = buildUtf8Sms(body).getBytes("UTF-8");
+
+        assertParsedUtf8Sms(new OneByteInputStream(data), body);
+        for (int padding = bufferSize - data.length - 1; padding <= bufferSize; padding++) {
+            byte[] padded = new byte[padding + data.length];
+            Arrays.fill(padded, 0, padding, (byte)'\n');
+            System.arraycopy(data, 0, padded, padding, data.length);
+            assertParsedUtf8Sms(new ByteArrayInputStream(padded), body);
+        }
+    }
+
+    /***
+     * Hex encoding of PDUs as done before the lookup table encoder, through a
+     * StringBuilder and Integer.toString() per nibble.
+     */
+    private static String legacyEncodeBinary(byte[] pduData, byte[] scAddressData) {
+        StringBuilder out = new StringBuilder((pduData.length + scAddressData.length)*2);
+        for(int i = 0; i < scAddressData.length; i++) {
+            out.append(Integer.toString((scAddressData[i] >> 4) & 0x0f,16));
+            out.append(Integer.toString( scAddressData[i]       & 0x0f,16));
+        }
+        for(int i = 0; i < pduData.length; i++) {
+            out.append(Integer.toString((pduData[i] >> 4) & 0x0f,16));
+            out.append(Integer.toString( pduData[i]       & 0x0f,16));
+        }
+        return out.toString();
+    }
+
+    /***
+     * GSM submit to deliver PDU conversion as done before the deliver PDU was
+     * written into one array, with the time stamp formatted as a string.
+     */
+    private static byte[] legacyChangeToDeliverPdu(byte[] data, long date, String originator)
+            throws UnsupportedEncodingException {
+        ByteArrayOutputStream newPdu = new ByteArrayOutputStream(22);
+        int pidOffset = 2 + ((data[2]+1) & 0xff)/2 + 2;
+        int udlOffset;
+        switch(((data[0]  & 0xff) & (0x08 | 0x04))>>2) {
+        case 0:
+            udlOffset = pidOffset + 2;
+            break;
+        case 1:
+            udlOffset = pidOffset + 2 + 1;
+            break;
+        default:
+            udlOffset = pidOffset + 2 + 7;
+            break;
+        }
+
+        newPdu.write(0x04 | (data[0] & 0xff) & 0x40);
+        byte[] encodedAddress = PhoneNumberUtils.networkPortionToCalledPartyBCDWithLength(originator);
+        if(encodedAddress != null) {
+            int padding = (encodedAddress[encodedAddress.length-1] & 0xf0) == 0xf0 ? 1 : 0;
+            encodedAddress[0] = (byte)((encodedAddress[0]-1)*2 - padding);
+            newPdu.write(encodedAddress, 0, encodedAddress.length);
+        } else {
+            newPdu.write(0);
+            newPdu.write(0x81);
+        }
+        newPdu.write(data[pidOffset]);
+        newPdu.write(data[pidOffset + 1]);
+
+        String timeStr = new SimpleDateFormat("yyMMddHHmmss").format(new Date(date));
+        byte[] timeChars = timeStr.getBytes("US-ASCII");
+        for(int i = 0, n = timeStr.length(); i < n; i+=2) {
+            newPdu.write((timeChars[i+1]-0x30) << 4 | (timeChars[i]-0x30));
+        }
+        Calendar cal = Calendar.getInstance();
+        int offset = (cal.get(Calendar.ZONE_OFFSET) + cal.get(Calendar.DST_OFFSET)) / (15 * 60 * 1000);
+        if(offset < 0) {
+            char[] offsetChars = String.format("%1$02d", -(offset)).toCharArray();
+            newPdu.write((offsetChars[1]-0x30) << 4 | 0x40 | (offsetChars[0]-0x30));
+        } else {
+            char[] offsetChars = String.format("%1$02d", offset).toCharArray();
+            newPdu.write((offsetChars[1]-0x30) << 4 | (offsetChars[0]-0x30));
+        }
+
+        newPdu.write(data[udlOffset]);
+        newPdu.write(data, udlOffset + 1, data.length - udlOffset - 1);
+        return newPdu.toByteArray();
+    }
+
+    /***
+     * Test the deliver PDU of a single segment message against a fixed PDU, with
+     * the service center time stamp in time zones east and west of UTC.
+     * The PDU is the one of testSmsEncodeNativeDeliverPdu().
+     */
+    public void testSmsDeliverPduTimeStamp() {
+        final long date = 1394022896000L; /* 2014-03-05 12:34:56 UTC */
+        String[] zones = { "GMT+02:00", "GMT-05:00", "GMT" };
+        String[] timeStamps = { "41305041436580", "41305070436542", "41305021436500" };
+        TimeZone defaultZone = TimeZone.getDefault();
+        try {
+            for (int i = 0; i < zones.length; i++) {
+                TimeZone.setDefault(TimeZone.getTimeZone(zones[i]));
+                ArrayList<BluetoothMapSmsPdu.SmsPdu> pdus =
+                        BluetoothMapSmsPdu.getDeliverPdus("Let's go fishing!", "00498912345678", date);
+                assertEquals(1, pdus.size());
+                assertEquals("00040E81009498214365870000" + timeStamps[i]
+                        + "11CC32FD34079DDF20737A8E4EBBCF21",
+                        legacyEncodeBinary(pdus.get(0).getData(), pdus.get(0).getScAddress())
+                        .toUpperCase());
+            }
+        } finally {
+            TimeZone.setDefault(defaultZone);
+        }
+    }
+
+    /***
+     * Test the deliver PDUs and the bMessage of native SMS messages of 1 to 10
+     * segments against the legacy deliver PDU conversion and hex encoding,
+     * starting from the same submit PDUs.
+     */
+    public void testSmsEncodeNativeDeliverPdus() throws UnsupportedEncodingException {
+        String[] zones = { null, "GMT+05:30", "GMT-03:00" };
+        int[] segments = { 1, 3, 10 };
+        String[] phone = {"00498912345678", "+4587654321"};
+        String[] email = {"casper@email.add", "bonde@email.add"};
+        TimeZone defaultZone = TimeZone.getDefault();
+        try {
+            for (String zone : zones) {
+                if (zone != null) {
+                    TimeZone.setDefault(TimeZone.getTimeZone(zone));
+                }
+                long date = System.currentTimeMillis();
+                for (int n : segments) {
+                    StringBuilder sb = new StringBuilder();
+                    while (sb.length() < (n - 1) * 153 + 100) {
+                        sb.append("Let's go fishing! ");
+                    }
+
+                    ArrayList<BluetoothMapSmsPdu.SmsPdu> pdus =
+                            BluetoothMapSmsPdu.getSubmitPdus(sb.toString(), "00498912345678");
+                    assertEquals(n, pdus.size());
+                    StringBuilder body = new StringBuilder();
+                    for (BluetoothMapSmsPdu.SmsPdu pdu : pdus) {
+                        byte[] expected = legacyChangeToDeliverPdu(pdu.getData(), date,
+                                "00498912345678");
+                        pdu.gsmChangeToDeliverPdu(date, "00498912345678");
+                        assertTrue(Arrays.equals(expected, pdu.getData()));
+                        body.append("BEGIN:MSG\r\n")
+                            .append(legacyEncodeBinary(expected, pdu.getScAddress()))
+                            .append("\r\nEND:MSG\r\n");
+                    }
+
+                    BluetoothMapbMessageSms msg = new BluetoothMapbMessageSms();
+                    msg.addOriginator("Bonde,Casper", "Casper Bonde", phone, email);
+                    msg.addRecipient("", "Jens Hansen", phone, email);
+                    msg.setFolder("inbox");
+                    msg.setSmsBodyPdus(pdus);
+                    msg.setStatus(false);
+                    msg.setType(TYPE.SMS_GSM);
+                    String expected =
+                             "BEGIN:BMSG\r\n" +
+                                "VERSION:1.0\r\n" +
+                                "STATUS:UNREAD\r\n" +
+                                "TYPE:SMS_GSM\r\n" +
+                                "FOLDER:telecom/msg/inbox\r\n" +
+                                "BEGIN:VCARD\r\n" +
+                                    "VERSION:3.0\r\n" +
+                                    "FN:Casper Bonde\r\n" +
+                                    "N:Bonde,Casper\r\n" +
+                                    "TEL:00498912345678\r\n" +
+                                    "TEL:+4587654321\r\n" +
+                                    "EMAIL:casper@email.add\r\n" +
+                                    "EMAIL:bonde@email.add\r\n" +
+                                "END:VCARD\r\n" +
+                                "BEGIN:BENV\r\n" +
+                                    "BEGIN:VCARD\r\n" +
+                                        "VERSION:3.0\r\n" +
+                                        "FN:Jens Hansen\r\n" +
+                                        "N:\r\n" +
+                                        "TEL:00498912345678\r\n" +
+                                        "TEL:+4587654321\r\n" +
+                                        "EMAIL:casper@email.add\r\n" +
+                                        "EMAIL:bonde@email.add\r\n" +
+                                    "END:VCARD\r\n" +
+                                    "BEGIN:BBODY\r\n" +
+                                        "ENCODING:G-7BIT\r\n" +
+                                        "LENGTH:" + body.length() + "\r\n" +
+                                        body +
+                                    "END:BBODY\r\n" +
+                                "END:BENV\r\n" +
+                             "END:BMSG\r\n";
+                    String encoded = new String(msg.encode(), "UTF-8");
+                    if(D) Log.d(TAG, "\nEncoded: \n" + encoded);
+                    assertEquals(expected, encoded);
+                }
+            }
+        } finally {
+            TimeZone.setDefault(defaultZone);
+        }
+    }
+
     public void testHeaderEncode() {
         BasicHeaderElement header = new BasicHeaderElement("To","Jørgen <joergen@hest.com>");
         String headerStr = BasicHeaderValueFormatter.formatHeaderElement(header, true, BasicHeaderValueFormatter.DEFAULT);